@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hp.creals;
+
+import java.math.BigInteger;
+
+// Multiplication and division of the scaled integers manipulated by the
+// CR subclasses.  Private.
+// The operations that dominate very high precision evaluations go through
+// CR.arith rather than straight to BigInteger, so that asymptotically
+// faster algorithms can be substituted for huge operands.  Results must be
+// exactly those BigInteger would produce; division truncates towards zero.
+abstract class Arithmetic {
+    abstract BigInteger multiply(BigInteger x, BigInteger y);
+    BigInteger square(BigInteger x) {
+        return multiply(x, x);
+    }
+    abstract BigInteger divide(BigInteger x, BigInteger y);
+    BigInteger[] divide_and_remainder(BigInteger x, BigInteger y) {
+        BigInteger q = divide(x, y);
+        return new BigInteger[] { q, x.subtract(multiply(q, y)) };
+    }
+
+    // floor(sqrt(x)).
+    BigInteger sqrt(BigInteger x) {
+        if (x.signum() < 0) throw new ArithmeticException("sqrt(negative)");
+        return sqrt_rem(x)[0];
+    }
+
+    // s = floor(sqrt(x)) and x - s^2, for x >= 0.
+    // Zimmermann's Karatsuba square root: split the (normalized) argument
+    // into four chunks x3 x2 x1 x0, recursively take the square root
+    // s1 and remainder r1 of x3 x2, and obtain the low half of the root
+    // by dividing r1 x1 by 2 s1.  The estimate is at most one too large.
+    // The cost is that of a half length division plus a quarter length
+    // square per level.
+    BigInteger[] sqrt_rem(BigInteger x) {
+        int len = x.bitLength();
+        if (len <= 62) {
+            long v = x.longValue();
+            long s = (long)Math.sqrt((double)v);
+            while (s * s > v) --s;
+            while ((s + 1) * (s + 1) <= v) ++s;
+            return new BigInteger[] { BigInteger.valueOf(s),
+                                      BigInteger.valueOf(v - s * s) };
+        }
+        // Shift by an even amount, so that the top chunk, of k bits,
+        // has one of its leading two bits set.
+        int k = (len + 3) / 4;
+        int t = (4 * k - len) / 2;
+        BigInteger n = x.shiftLeft(2 * t);
+        BigInteger mask = BigInteger.ONE.shiftLeft(k).subtract(BigInteger.ONE);
+        BigInteger[] sr = sqrt_rem(n.shiftRight(2 * k));
+        BigInteger[] qu = divide_and_remainder(
+                sr[1].shiftLeft(k).or(n.shiftRight(k).and(mask)),
+                sr[0].shiftLeft(1));
+        BigInteger s = sr[0].shiftLeft(k).add(qu[0]);
+        BigInteger r = qu[1].shiftLeft(k).or(n.and(mask))
+                            .subtract(square(qu[0]));
+        while (r.signum() < 0) {
+            r = r.add(s.shiftLeft(1)).subtract(BigInteger.ONE);
+            s = s.subtract(BigInteger.ONE);
+        }
+        if (t == 0) return new BigInteger[] { s, r };
+        // Undo the shift.  With s = s0 2^t + low,
+        // x = s0^2 + (r + low (s0 2^(t+1) + low)) / 4^t.
+        BigInteger s0 = s.shiftRight(t);
+        BigInteger low = s.subtract(s0.shiftLeft(t));
+        BigInteger r0 = r.add(low.multiply(s0.shiftLeft(t + 1).add(low)))
+                         .shiftRight(2 * t);
+        return new BigInteger[] { s0, r0 };
+    }
+}
@@ -113,8 +113,20 @@
 
 package com.hp.creals;
 
+import java.lang.ref.SoftReference;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
 * Constructive real numbers, also known as recursive, or computable reals.
@@ -213,6 +225,8 @@ public static class PrecisionOverflowException extends RuntimeException {
       static final BigInteger big10 = BigInteger.TEN;
       static final BigInteger big750 = BigInteger.valueOf(750);
       static final BigInteger bigm750 = BigInteger.valueOf(-750);
+      static final BigInteger big1024 = BigInteger.valueOf(1024);
+      static final BigInteger bigm1024 = BigInteger.valueOf(-1024);
 
 /**
 * Setting this to true requests that  all computations be aborted by
@@ -222,6 +236,11 @@ public static class PrecisionOverflowException extends RuntimeException {
 */
 public volatile static boolean please_stop = false;
 
+    // Multiplication and division of large approximations.  Subclasses
+    // use this rather than the BigInteger operations wherever both
+    // operands may be as long as the requested precision.
+    static Arithmetic arith = new fast_arithmetic();
+
 /**
 * Must be defined in subclasses of <TT>CR</tt>.
 * Most users can ignore the existence of this method, and will
@@ -243,6 +262,92 @@ public volatile static boolean please_stop = false;
         // The scaled approximation corresponding to min_prec.
       transient boolean appr_valid = false;
         // min_prec and max_val are valid.
+      transient SoftReference<BigInteger> soft_appr;
+        // If not null, a more precise approximation than max_appr,
+        // which was rounded from it to max_strong_appr_bits bits.
+      transient int soft_prec;
+        // The precision corresponding to soft_appr.
+      transient boolean is_constant = false;
+        // Long-lived shared constant, whose approximation is always
+        // held in full.
+
+/**
+* The approximate number of bytes of approximations that
+* non-constant <TT>CR</tt>s keep strongly reachable, beyond
+* <TT>max_strong_appr_bits</tt> bits each.
+* Larger approximations are retained, in least recently used order,
+* until this budget is exhausted, and then only as long as the
+* garbage collector does not need the space.
+*/
+    public volatile static long approximation_cache_budget = 4L << 20;
+
+/**
+* Approximations cached by non-constant <TT>CR</tt>s are rounded to
+* this many bits, unless the more precise version is held within
+* <TT>approximation_cache_budget</tt>, or has not yet been reclaimed.
+*/
+    public static final int max_strong_appr_bits = 8192;
+
+/**
+* Expensive constructive reals, such as the series used for exponentials,
+* logarithms, trigonometric functions and pi, evaluate to more precision
+* than requested when successive requests keep asking for more.
+* After a node has been reevaluated to higher precision
+* <TT>precision_growth_after</tt> times, each further reevaluation
+* is carried out to at least <TT>precision_growth</tt> times the previous
+* precision.  A growth factor of 1 disables this.
+*/
+    public volatile static double precision_growth = 1.5;
+    public volatile static int precision_growth_after = 1;
+
+/**
+* The pool in which the power series used for exponentials, logarithms
+* and trigonometric functions are split between threads, when more than
+* <TT>parallel_series_bits</tt> bits are requested.  Null if series
+* should always be summed by the calling thread.  By default, a pool
+* with one thread per processor, if there is more than one processor.
+* Interrupting the calling thread, or setting <TT>please_stop</tt>,
+* aborts the summation, as for a sequential one.
+*/
+    public volatile static ForkJoinPool series_pool =
+            Runtime.getRuntime().availableProcessors() > 1?
+                new ForkJoinPool() : null;
+    public volatile static int parallel_series_bits = 100000;
+
+/**
+* The number of approximations requested from expensive constructive reals
+* since the last call to <TT>resetSlowApproximationCounts</tt>.
+*/
+    public static long slowApproximationRequests() {
+        return slow_CR.requests.get();
+    }
+
+/**
+* The number of those requests that could not be answered from a cached
+* approximation.  The cache hit rate is
+* 1 - slowApproximationEvaluations() / slowApproximationRequests().
+*/
+    public static long slowApproximationEvaluations() {
+        return slow_CR.evaluations.get();
+    }
+
+/**
+* Reset the counts reported by <TT>slowApproximationRequests</tt>
+* and <TT>slowApproximationEvaluations</tt>.
+*/
+    public static void resetSlowApproximationCounts() {
+        slow_CR.requests.set(0);
+        slow_CR.evaluations.set(0);
+    }
+
+    // Full approximations also referenced by soft_appr, in least recently
+    // used order, and their total size.  Only the map is referenced here,
+    // so that evicting an entry never requires locking its CR.
+    private static final LinkedHashMap<SoftReference<BigInteger>, BigInteger>
+            recent_apprs =
+            new LinkedHashMap<SoftReference<BigInteger>, BigInteger>(
+                    16, 0.75f, true /* access order */);
+    private static long recent_appr_bytes = 0;
 
     // Helper functions
       static int bound_log2(int n) {
@@ -358,13 +463,128 @@ public volatile static boolean please_stop = false;
         check_prec(precision);
         if (appr_valid && precision >= min_prec) {
             return scale(max_appr, min_prec - precision);
-        } else {
-            BigInteger result = approximate(precision);
-            min_prec = precision;
+        }
+        BigInteger recalled = recall_appr(precision);
+        if (recalled != null) {
+            return recalled;
+        }
+        BigInteger result = approximate(precision);
+        set_appr(precision, result);
+        return result;
+      }
+
+    // Cache result, an approximation to precision prec.  Large
+    // approximations of non-constant numbers are held softly, and
+    // max_appr is rounded from them, introducing an error of at most
+    // half an ulp in addition to the original one.
+    // Called with the lock on this object held.
+      void set_appr(int prec, BigInteger result) {
+        if (soft_appr != null) {
+            forget_appr(soft_appr);
+            soft_appr = null;
+        }
+        int excess_bits = result.bitLength() - max_strong_appr_bits;
+        if (is_constant || excess_bits <= 0) {
+            min_prec = prec;
             max_appr = result;
-            appr_valid = true;
-            return result;
+        } else {
+            soft_appr = new SoftReference<BigInteger>(result);
+            soft_prec = prec;
+            retain_appr(soft_appr, result);
+            min_prec = prec + excess_bits;
+            max_appr = scale(result, -excess_bits);
+        }
+        appr_valid = true;
+      }
+
+    // An approximation to precision prec from soft_appr, or null if
+    // there is none, or it has been reclaimed.
+    // Called with the lock on this object held.
+      BigInteger recall_appr(int prec) {
+        if (soft_appr == null || prec < soft_prec) {
+            return null;
+        }
+        BigInteger result = soft_appr.get();
+        if (result == null) {
+            soft_appr = null;
+            return null;
+        }
+        synchronized (recent_apprs) {
+            // Mark as recently used, or retain it again if it was evicted.
+            if (recent_apprs.get(soft_appr) == null) {
+                retain_appr(soft_appr, result);
+            }
         }
+        return scale(result, soft_prec - prec);
+      }
+
+      static long appr_bytes(BigInteger appr) {
+        return appr == null? 0 : 4 * ((appr.bitLength() + 32) / 32);
+      }
+
+      static void retain_appr(SoftReference<BigInteger> ref,
+                              BigInteger appr) {
+        synchronized (recent_apprs) {
+            recent_apprs.put(ref, appr);
+            recent_appr_bytes += appr_bytes(appr);
+            Iterator<BigInteger> eldest = recent_apprs.values().iterator();
+            while (recent_appr_bytes > approximation_cache_budget
+                   && eldest.hasNext()) {
+                recent_appr_bytes -= appr_bytes(eldest.next());
+                eldest.remove();
+            }
+        }
+      }
+
+      static void forget_appr(SoftReference<BigInteger> ref) {
+        synchronized (recent_apprs) {
+            recent_appr_bytes -= appr_bytes(recent_apprs.remove(ref));
+        }
+      }
+
+    // Mark x as a long-lived constant.
+      static CR constant(CR x) {
+        x.is_constant = true;
+        return x;
+      }
+
+    // The CRs from which this one is computed.
+      CR[] operands() {
+        return no_operands;
+      }
+      static final CR[] no_operands = new CR[0];
+
+    // Bytes of cached approximations retained by this CR alone.
+      synchronized long cached_bytes() {
+        long result = appr_valid? appr_bytes(max_appr) : 0;
+        if (soft_appr != null) {
+            result += appr_bytes(soft_appr.get());
+        }
+        return result;
+      }
+
+/**
+* The approximate number of bytes occupied by the cached approximations
+* of this <TT>CR</tt> and the <TT>CR</tt>s from which it is computed,
+* including approximations that are only softly reachable.
+* Each <TT>CR</tt> is counted once, even if it is shared.
+*/
+      public long cachedApproximationBytes() {
+        Map<CR, CR> visited = new IdentityHashMap<CR, CR>();
+        ArrayList<CR> pending = new ArrayList<CR>();
+        pending.add(this);
+        long result = 0;
+        while (!pending.isEmpty()) {
+            CR x = pending.remove(pending.size() - 1);
+            if (x == null || visited.put(x, x) != null) {
+                continue;
+            }
+            result += x.cached_bytes();
+            for (CR op : x.operands()) {
+                pending.add(op);
+            }
+        }
+        return result;
       }
 
     // Return the position of the msd.
@@ -447,7 +667,8 @@ public volatile static boolean please_stop = false;
         static CR ln2_2 =
                 valueOf(2).multiply(twentyfive_twentyfourths.simple_ln());
         static CR ln2_3 = valueOf(3).multiply(eightyone_eightyeths.simple_ln());
-        static CR ln2 = ln2_1.subtract(ln2_2).add(ln2_3);
+        static CR ln2 = constant(new precomputed_CR("ln2",
+                                        ln2_1.subtract(ln2_2).add(ln2_3)));
 
     // Atan of integer reciprocal.  Used for atan_PI.  Could perhaps be made
     // public.
@@ -891,7 +1112,13 @@ public volatile static boolean please_stop = false;
 /**
 * The ratio of a circle's circumference to its diameter.
 */
-    public static CR PI = new gl_pi_CR();
+    public static CR PI = constant(new precomputed_CR("pi", gl_pi()));
+
+    // A fresh Gauss-Legendre computation of pi, which ignores the
+    // precomputed table.  Used by ConstantTable to generate and check it.
+    static CR gl_pi() {
+        return new gl_pi_CR();
+    }
 
     // Our old PI implementation. Keep this around for now to allow checking.
     // This implementation may also be faster for BigInteger implementations
@@ -903,13 +1130,16 @@ public volatile static boolean please_stop = false;
     public static CR atan_PI = four.multiply(four.multiply(atan_reciprocal(5))
                                             .subtract(atan_reciprocal(239)));
         // pi/4 = 4*atan(1/5) - atan(1/239)
-    static CR half_pi = PI.shiftRight(1);
+    static CR half_pi = constant(PI.shiftRight(1));
+    // Shared by all argument reductions, so that its approximations
+    // are computed once rather than per call.
+    static CR pi_inverse = constant(PI.inverse());
 
 /**
 * The trigonometric cosine function.
 */
     public CR cos() {
-        BigInteger halfpi_multiples = divide(PI).get_appr(-1);
+        BigInteger halfpi_multiples = multiply(pi_inverse).get_appr(-1);
         BigInteger abs_halfpi_multiples = halfpi_multiples.abs();
         if (abs_halfpi_multiples.compareTo(big2) >= 0) {
             // Subtract multiples of PI
@@ -933,7 +1163,26 @@ public volatile static boolean please_stop = false;
 * The trigonometric sine function.
 */
     public CR sin() {
-        return half_pi.subtract(this).cos();
+        if (get_appr(-1).abs().compareTo(big2) < 0) {
+            // |x| < 1: sum the series directly, without involving PI.
+            return new prescaled_sin_CR(this);
+        }
+        // Subtract the nearest multiple of PI/2.  Since the quotient is
+        // rounded from an approximation with error < 1/16, the remainder
+        // is below (1/2 + 1/16) * PI/2 < 1 in magnitude.
+        BigInteger halfpi_multiples =
+                scale(multiply(pi_inverse).get_appr(-5), -4);
+        CR reduced = subtract(half_pi.multiply(CR.valueOf(halfpi_multiples)));
+        switch (halfpi_multiples.intValue() & 3) {
+            case 0:
+                return new prescaled_sin_CR(reduced);
+            case 1:
+                return new prescaled_cos_CR(reduced);
+            case 2:
+                return new prescaled_sin_CR(reduced).negate();
+            default:
+                return new prescaled_cos_CR(reduced).negate();
+        }
     }
 
 /**
@@ -947,7 +1196,7 @@ public volatile static boolean please_stop = false;
         } else if (rough_appr.compareTo(bigm750) < 0) {
             return negate().asin().negate();
         } else {
-            return new prescaled_asin_CR(this);
+            return new asin_CR(this);
         }
     }
 
@@ -958,6 +1207,20 @@ public volatile static boolean please_stop = false;
         return half_pi.subtract(asin());
     }
 
+/**
+* The trignonometric arc (inverse) tangent function.
+*/
+    public CR atan() {
+        BigInteger rough_appr = get_appr(-10);
+        if (rough_appr.compareTo(big1024) > 0) {
+            return half_pi.subtract(inverse().atan());
+        } else if (rough_appr.compareTo(bigm1024) < 0) {
+            return negate().atan().negate();
+        } else {
+            return new atan_CR(this);
+        }
+    }
+
     static final BigInteger low_ln_limit = big8; /* sixteenths, i.e. 1/2 */
     static final BigInteger high_ln_limit =
                         BigInteger.valueOf(16 + 8 /* 1.5 */);
@@ -996,6 +1259,29 @@ public volatile static boolean please_stop = false;
         return new sqrt_CR(this);
     }
 
+/**
+* The integer square root, i.e. the largest integer whose square does not
+* exceed <TT>n</tt>.
+* @exception ArithmeticException <TT>n</tt> is negative.
+*/
+    public static BigInteger floorSqrt(BigInteger n) {
+        return arith.sqrt(n);
+    }
+
+/**
+* A constructive real equal to <TT>x</tt>, which answers requests for
+* up to 65536 bits of precision from a built-in table of precomputed
+* constants.  <TT>name</tt> identifies the table entry: one of "pi", "e",
+* "ln2", "ln3", "ln5", "ln7", "sqrt2", "sqrt3", "sqrt5" or "sqrt7".
+* If there is no such entry, <TT>x</tt> itself is returned.
+* Entries are checked against a low precision evaluation of <TT>x</tt>
+* when first used, and ignored if they disagree.
+*/
+    public static CR precomputed(String name, CR x) {
+        if (!ConstantTable.has(name)) return x;
+        return new precomputed_CR(name, x);
+    }
+
 }  // end of CR
 
 
@@ -1012,18 +1298,206 @@ public volatile static boolean please_stop = false;
 abstract class slow_CR extends CR {
     static int max_prec = -64;
     static int prec_incr = 32;
+    // Precision of the most precise evaluation so far, or 0 if there was
+    // none, and the number of later evaluations that had to exceed it.
+    int best_prec = 0;
+    int refinements = 0;
+    static final AtomicLong requests = new AtomicLong();
+    static final AtomicLong evaluations = new AtomicLong();
     public synchronized BigInteger get_appr(int precision) {
         check_prec(precision);
+        requests.incrementAndGet();
         if (appr_valid && precision >= min_prec) {
             return scale(max_appr, min_prec - precision);
-        } else {
-            int eval_prec = (precision >= max_prec? max_prec :
-                             (precision - prec_incr + 1) & ~(prec_incr - 1));
-            BigInteger result = approximate(eval_prec);
-            min_prec = eval_prec;
-            max_appr = result;
-            appr_valid = true;
-            return scale(result, eval_prec - precision);
+        }
+        BigInteger recalled = recall_appr(precision);
+        if (recalled != null) {
+            return recalled;
+        }
+        int eval_prec = (precision >= max_prec? max_prec :
+                         (precision - prec_incr + 1) & ~(prec_incr - 1));
+        if (best_prec != 0 && eval_prec < best_prec) {
+            // Requests keep growing, as when a result is scrolled.
+            // Overshoot geometrically, so that the total work stays
+            // within a constant factor of that for the final precision.
+            if (refinements >= precision_growth_after) {
+                double grown = best_prec * precision_growth;
+                if (grown < eval_prec && grown > Integer.MIN_VALUE >> 4) {
+                    eval_prec = (int)grown & ~(prec_incr - 1);
+                }
+            }
+            ++refinements;
+        }
+        evaluations.incrementAndGet();
+        BigInteger result = approximate(eval_prec);
+        set_appr(eval_prec, result);
+        if (eval_prec < best_prec) best_prec = eval_prec;
+        return scale(result, eval_prec - precision);
+    }
+}
+
+// Summation of a power series first * sum_{n >= 0} c_n y^n by several
+// threads, for very high precision.  Private.
+// The coefficients satisfy c_0 = 1 and c_{n+1} = c_n * num(n) / den(n),
+// where num(n) and den(n) are small and |num(n)| <= |den(n)|.
+// The terms are dealt out to m lanes: lane j sums c_{im+j} * Y^i,
+// where Y = y^m, and multiplies the result by y^j.  Like the sequential
+// loops, each lane costs one full precision multiplication per term,
+// so m lanes take roughly 1/m of the time.  The partial sums are added
+// exactly.
+// All values are scaled by 2^calc_precision.  Assumes |first| <= 1,
+// |y| <= 1, and that the terms of each lane shrink by at least a
+// factor of 2, which holds if |y| <= 1/2 or |num(n)/den(n)| <= 1/2.
+abstract class parallel_series {
+    static final int max_lanes = 64;
+
+    abstract long num(int n);
+    abstract long den(int n);
+
+    // The pool in which to sum a series evaluated to precision p, or null
+    // if the calling thread should sum it.  Threads that already belong
+    // to a pool never wait for another one.
+    static ForkJoinPool pool_for(int p) {
+        ForkJoinPool pool = CR.series_pool;
+        if (pool == null || pool.getParallelism() < 2
+            || p > -CR.parallel_series_bits
+            || Thread.currentThread() instanceof ForkJoinWorkerThread) {
+            return null;
+        }
+        return pool;
+    }
+
+    static int lanes(ForkJoinPool pool) {
+        return Math.min(pool.getParallelism(), max_lanes);
+    }
+
+    // A bound, in units of 2^calc_precision, on the rounding error of
+    // a series with at most iterations terms, summed in pool.
+    // Sequentially, each term is accurate to 2 ulps.  In lanes, a term
+    // may be off by 3 ulps, and the powers of y used to start, step and
+    // combine the lanes add less than 16 m^2 ulps.
+    static int rounding_error(ForkJoinPool pool, int iterations) {
+        if (pool == null) return 2 * iterations;
+        int m = lanes(pool);
+        return 3 * iterations + 16 * m * m;
+    }
+
+    // Run tasks in pool, and wait for all of them.  They should check
+    // stop, which is set if the calling thread is interrupted.
+    static void invoke(ForkJoinPool pool, final ForkJoinTask<?>[] tasks,
+                       AtomicBoolean stop) {
+        ForkJoinTask<Void> all = pool.submit(new RecursiveAction() {
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        try {
+            all.get();
+        } catch (InterruptedException e) {
+            stop.set(true);
+            throw new CR.AbortedException();
+        } catch (ExecutionException e) {
+            stop.set(true);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new AssertionError(cause);
+        }
+    }
+
+    // first * sum c_n y^n, omitting terms smaller than max_trunc_error,
+    // or just sum c_n y^n if first is null.
+    BigInteger sum(BigInteger first, BigInteger y, int calc_precision,
+                   BigInteger max_trunc_error, ForkJoinPool pool) {
+        int m = lanes(pool);
+        BigInteger[] powers = new BigInteger[m + 1];
+        powers[0] = CR.big1.shiftLeft(-calc_precision);
+        powers[1] = y;
+        for (int j = 2; j <= m; ++j) {
+            powers[j] = CR.scale(CR.arith.multiply(powers[j-1], y),
+                                 calc_precision);
+        }
+        // Lane tails add up to less than max_trunc_error.
+        BigInteger lane_trunc_error =
+                max_trunc_error.shiftRight(CR.bound_log2(m));
+        AtomicBoolean stop = new AtomicBoolean();
+        BigInteger[] result = new BigInteger[m];
+        lane[] lanes = new lane[m];
+        for (int j = 0; j < m; ++j) {
+            lanes[j] = new lane(j, m, powers, calc_precision,
+                                lane_trunc_error, result, stop);
+        }
+        invoke(pool, lanes, stop);
+        BigInteger total = CR.big0;
+        for (int j = 0; j < m; ++j) {
+            total = total.add(result[j]);
+        }
+        if (first == null) return total;
+        return CR.scale(CR.arith.multiply(total, first), calc_precision);
+    }
+
+    // Product of num(n) or den(n) for n in [from, from + m).
+    BigInteger ratio_product(int from, int m, boolean numerator) {
+        BigInteger result = CR.big1;
+        for (int n = from; n < from + m; ++n) {
+            result = result.multiply(
+                    BigInteger.valueOf(numerator? num(n) : den(n)));
+        }
+        return result;
+    }
+
+    private class lane extends RecursiveAction {
+        final int j;
+        final int m;
+        final BigInteger[] powers;
+        final int calc_precision;
+        final BigInteger trunc_error;
+        final BigInteger[] result;
+        final AtomicBoolean stop;
+        lane(int j, int m, BigInteger[] powers, int calc_precision,
+             BigInteger trunc_error, BigInteger[] result,
+             AtomicBoolean stop) {
+            this.j = j;
+            this.m = m;
+            this.powers = powers;
+            this.calc_precision = calc_precision;
+            this.trunc_error = trunc_error;
+            this.result = result;
+            this.stop = stop;
+        }
+        protected void compute() {
+            // current_term = c_n * Y^((n - j) / m)
+            BigInteger current_term = powers[0];
+            for (int n = 0; n < j; ++n) {
+                current_term = current_term
+                        .multiply(BigInteger.valueOf(num(n)))
+                        .divide(BigInteger.valueOf(den(n)));
+            }
+            BigInteger current_sum = current_term;
+            int n = j;
+            while (current_term.abs().compareTo(trunc_error) >= 0) {
+                if (stop.get() || CR.please_stop) {
+                    throw new CR.AbortedException();
+                }
+                current_term = CR.scale(
+                        CR.arith.multiply(current_term, powers[m]),
+                        calc_precision);
+                current_term = current_term
+                        .multiply(ratio_product(n, m, true))
+                        .divide(ratio_product(n, m, false));
+                n += m;
+                current_sum = current_sum.add(current_term);
+            }
+            if (j != 0) {
+                current_sum = CR.scale(
+                        CR.arith.multiply(current_sum, powers[j]),
+                        calc_precision);
+            }
+            result[j] = current_sum;
         }
     }
 }
@@ -1048,6 +1522,7 @@ class assumed_int_CR extends CR {
     assumed_int_CR(CR x) {
         value = x;
     }
+    CR[] operands() { return new CR[] { value }; }
     protected BigInteger approximate(int p) {
         if (p >= 0) {
             return value.get_appr(p);
@@ -1065,6 +1540,7 @@ class add_CR extends CR {
         op1 = x;
         op2 = y;
     }
+    CR[] operands() { return new CR[] { op1, op2 }; }
     protected BigInteger approximate(int p) {
         // Args need to be evaluated so that each error is < 1/4 ulp.
         // Rounding error from the cale call is <= 1/2 ulp, so that
@@ -1081,6 +1557,7 @@ class shifted_CR extends CR {
         op = x;
         count = n;
     }
+    CR[] operands() { return new CR[] { op }; }
     protected BigInteger approximate(int p) {
         return op.get_appr(p - count);
     }
@@ -1092,6 +1569,7 @@ class neg_CR extends CR {
     neg_CR(CR x) {
         op = x;
     }
+    CR[] operands() { return new CR[] { op }; }
     protected BigInteger approximate(int p) {
         return op.get_appr(p).negate();
     }
@@ -1112,6 +1590,7 @@ class select_CR extends CR {
         op1 = x;
         op2 = y;
     }
+    CR[] operands() { return new CR[] { selector, op1, op2 }; }
     protected BigInteger approximate(int p) {
         if (selector_sign < 0) return op1.get_appr(p);
         if (selector_sign > 0) return op2.get_appr(p);
@@ -1142,6 +1621,7 @@ class mult_CR extends CR {
         op1 = x;
         op2 = y;
     }
+    CR[] operands() { return new CR[] { op1, op2 }; }
     protected BigInteger approximate(int p) {
         int half_prec = (p >> 1) - 1;
         int msd_op1 = op1.msd(half_prec);
@@ -1176,7 +1656,7 @@ class mult_CR extends CR {
         int prec1 = p - msd_op2 - 3;    // Precision needed for op1.
         BigInteger appr1 = op1.get_appr(prec1);
         int scale_digits =  prec1 + prec2 - p;
-        return scale(appr1.multiply(appr2), scale_digits);
+        return scale(arith.multiply(appr1, appr2), scale_digits);
     }
 }
 
@@ -1185,6 +1665,7 @@ class mult_CR extends CR {
 class inv_CR extends CR {
     CR op;
     inv_CR(CR x) { op = x; }
+    CR[] operands() { return new CR[] { op }; }
     protected BigInteger approximate(int p) {
         int msd = op.msd();
         int inv_msd = 1 - msd;
@@ -1211,7 +1692,7 @@ class inv_CR extends CR {
         BigInteger adj_dividend = dividend.add(
                                         abs_scaled_divisor.shiftRight(1));
                 // Adjustment so that final result is rounded.
-        BigInteger result = adj_dividend.divide(abs_scaled_divisor);
+        BigInteger result = arith.divide(adj_dividend, abs_scaled_divisor);
         if (scaled_divisor.signum() < 0) {
           return result.negate();
         } else {
@@ -1229,6 +1710,11 @@ class inv_CR extends CR {
 class prescaled_exp_CR extends CR {
     CR op;
     prescaled_exp_CR(CR x) { op = x; }
+    CR[] operands() { return new CR[] { op }; }
+    static final parallel_series series = new parallel_series() {
+        long num(int n) { return 1; }
+        long den(int n) { return n + 1; }
+    };
     protected BigInteger approximate(int p) {
         if (p >= 1) return big0;
         int iterations_needed = -p/2 + 2;  // conservative estimate > 0.
@@ -1236,8 +1722,10 @@ class prescaled_exp_CR extends CR {
           //  to 2*2^calc_precision.
           //  Total rounding error in series computation is
           //  2*iterations_needed*2^calc_precision,
-          //  exclusive of error in op.
-        int calc_precision = p - bound_log2(2*iterations_needed)
+          //  exclusive of error in op.  More if summed in parallel.
+        ForkJoinPool pool = parallel_series.pool_for(p);
+        int calc_precision = p - bound_log2(parallel_series.rounding_error(
+                                                pool, iterations_needed))
                                - 4; // for error in op, truncation.
         int op_prec = p - 3;
         BigInteger op_appr = op.get_appr(op_prec);
@@ -1252,11 +1740,18 @@ class prescaled_exp_CR extends CR {
         int n = 0;
         BigInteger max_trunc_error =
                 big1.shiftLeft(p - 4 - calc_precision);
+        if (pool != null) {
+            BigInteger y = op_appr.shiftLeft(op_prec - calc_precision);
+            current_sum = series.sum(null, y, calc_precision,
+                                     max_trunc_error, pool);
+            return scale(current_sum, calc_precision - p);
+        }
         while (current_term.abs().compareTo(max_trunc_error) >= 0) {
           if (Thread.interrupted() || please_stop) throw new AbortedException();
           n += 1;
           /* current_term = current_term * op / n */
-          current_term = scale(current_term.multiply(op_appr), op_prec);
+          current_term = scale(arith.multiply(current_term, op_appr),
+                               op_prec);
           current_term = current_term.divide(BigInteger.valueOf(n));
           current_sum = current_sum.add(current_term);
         }
@@ -1271,6 +1766,12 @@ class prescaled_cos_CR extends slow_CR {
     prescaled_cos_CR(CR x) {
         op = x;
     }
+    CR[] operands() { return new CR[] { op }; }
+    // In terms of op^2.
+    static final parallel_series series = new parallel_series() {
+        long num(int n) { return -1; }
+        long den(int n) { return (2L*n + 1) * (2L*n + 2); }
+    };
     protected BigInteger approximate(int p) {
         if (p >= 1) return big0;
         int iterations_needed = -p/2 + 4;  // conservative estimate > 0.
@@ -1278,8 +1779,10 @@ class prescaled_cos_CR extends slow_CR {
           //  to 2*2^calc_precision.
           //  Total rounding error in series computation is
           //  2*iterations_needed*2^calc_precision,
-          //  exclusive of error in op.
-        int calc_precision = p - bound_log2(2*iterations_needed)
+          //  exclusive of error in op.  More if summed in parallel.
+        ForkJoinPool pool = parallel_series.pool_for(p);
+        int calc_precision = p - bound_log2(parallel_series.rounding_error(
+                                                pool, iterations_needed))
                                - 4; // for error in op, truncation.
         int op_prec = p - 2;
         BigInteger op_appr = op.get_appr(op_prec);
@@ -1295,12 +1798,88 @@ class prescaled_cos_CR extends slow_CR {
         n = 0;
         current_term = big1.shiftLeft(-calc_precision);
         BigInteger current_sum = current_term;
+        // Square the argument once, rounding to calc_precision, so that
+        // each term costs one multiplication.  The added rounding error
+        // is < 1/2 ulp per term, since terms are bounded by 1.
+        BigInteger op_squared = scale(arith.square(op_appr),
+                                      2 * op_prec - calc_precision);
+        if (pool != null) {
+            current_sum = series.sum(null, op_squared, calc_precision,
+                                     max_trunc_error, pool);
+            return scale(current_sum, calc_precision - p);
+        }
+        while (current_term.abs().compareTo(max_trunc_error) >= 0) {
+          if (Thread.interrupted() || please_stop) throw new AbortedException();
+          n += 2;
+          /* current_term = - current_term * op * op / n * (n - 1)   */
+          current_term = scale(arith.multiply(current_term, op_squared),
+                               calc_precision);
+          BigInteger divisor = BigInteger.valueOf(-n)
+                                  .multiply(BigInteger.valueOf(n-1));
+          current_term = current_term.divide(divisor);
+          current_sum = current_sum.add(current_term);
+        }
+        return scale(current_sum, calc_precision - p);
+    }
+}
+
+// Representation of the sine of a constructive real.  Private.
+// Uses a Taylor series expansion.  Assumes |x| < 1.
+// Unlike cos(PI/2 - x), this retains the magnitude of x without
+// evaluating PI, so small arguments are cheap.
+class prescaled_sin_CR extends slow_CR {
+    CR op;
+    prescaled_sin_CR(CR x) {
+        op = x;
+    }
+    CR[] operands() { return new CR[] { op }; }
+    // In terms of op^2, after the first factor of op.
+    static final parallel_series series = new parallel_series() {
+        long num(int n) { return -1; }
+        long den(int n) { return (2L*n + 2) * (2L*n + 3); }
+    };
+    protected BigInteger approximate(int p) {
+        if (p >= 1) return big0;
+        int iterations_needed = -p/2 + 4;  // conservative estimate > 0.
+          //  Claim: each intermediate term is accurate
+          //  to 2*2^calc_precision.
+          //  Total rounding error in series computation is
+          //  2*iterations_needed*2^calc_precision,
+          //  exclusive of error in op.  More if summed in parallel.
+        ForkJoinPool pool = parallel_series.pool_for(p);
+        int calc_precision = p - bound_log2(parallel_series.rounding_error(
+                                                pool, iterations_needed))
+                               - 4; // for error in op, truncation.
+        int op_prec = p - 2;
+        BigInteger op_appr = op.get_appr(op_prec);
+          // Error in argument results in error of < 1/4 ulp.
+          // Cumulative arithmetic rounding error is < 1/16 ulp.
+          // Series truncation error < 1/16 ulp.
+          // Final rounding error is <= 1/2 ulp.
+          // Thus final error is < 1 ulp.
+        BigInteger current_term;
+        int n;
+        BigInteger max_trunc_error =
+                big1.shiftLeft(p - 4 - calc_precision);
+        n = 1;
+        current_term = scale(op_appr, op_prec - calc_precision);
+        BigInteger current_sum = current_term;
+        // Square the argument once, rounding to calc_precision, so that
+        // each term costs one multiplication.  The added rounding error
+        // is < 1/2 ulp per term, since terms are bounded by 1.
+        BigInteger op_squared = scale(arith.square(op_appr),
+                                      2 * op_prec - calc_precision);
+        if (pool != null) {
+            current_sum = series.sum(current_term, op_squared,
+                                     calc_precision, max_trunc_error, pool);
+            return scale(current_sum, calc_precision - p);
+        }
         while (current_term.abs().compareTo(max_trunc_error) >= 0) {
           if (Thread.interrupted() || please_stop) throw new AbortedException();
           n += 2;
           /* current_term = - current_term * op * op / n * (n - 1)   */
-          current_term = scale(current_term.multiply(op_appr), op_prec);
-          current_term = scale(current_term.multiply(op_appr), op_prec);
+          current_term = scale(arith.multiply(current_term, op_squared),
+                               calc_precision);
           BigInteger divisor = BigInteger.valueOf(-n)
                                   .multiply(BigInteger.valueOf(n-1));
           current_term = current_term.divide(divisor);
@@ -1324,7 +1903,9 @@ class integral_atan_CR extends slow_CR {
           //  Total rounding error in series computation is
           //  2*iterations_needed*base^calc_precision,
           //  exclusive of error in op.
-        int calc_precision = p - bound_log2(2*iterations_needed)
+        ForkJoinPool pool = parallel_series.pool_for(p);
+        int calc_precision = p - bound_log2(parallel_series.rounding_error(
+                                                pool, iterations_needed))
                                - 2; // for error in op, truncation.
           // Error in argument results in error of < 3/8 ulp.
           // Cumulative arithmetic rounding error is < 1/4 ulp.
@@ -1342,6 +1923,27 @@ class integral_atan_CR extends slow_CR {
         int n = 1;
         BigInteger max_trunc_error =
                 big1.shiftLeft(p - 2 - calc_precision);
+        if (pool != null) {
+            // Lane j sums the terms with n = 2j + 1 (mod 2m), each
+            // dividing the power of op by op^(2m), so that, as above,
+            // only divisions by small numbers are needed.
+            int m = parallel_series.lanes(pool);
+            AtomicBoolean stop = new AtomicBoolean();
+            BigInteger[] result = new BigInteger[m];
+            lane[] lanes = new lane[m];
+            BigInteger lane_trunc_error =
+                    max_trunc_error.shiftRight(bound_log2(m));
+            for (int j = 0; j < m; ++j) {
+                lanes[j] = new lane(j, m, scaled_1, lane_trunc_error,
+                                    result, stop);
+            }
+            parallel_series.invoke(pool, lanes, stop);
+            current_sum = big0;
+            for (int j = 0; j < m; ++j) {
+                current_sum = current_sum.add(result[j]);
+            }
+            return scale(current_sum, calc_precision - p);
+        }
         while (current_term.abs().compareTo(max_trunc_error) >= 0) {
           if (Thread.interrupted() || please_stop) throw new AbortedException();
           n += 2;
@@ -1353,6 +1955,46 @@ class integral_atan_CR extends slow_CR {
         }
         return scale(current_sum, calc_precision - p);
     }
+    private class lane extends RecursiveAction {
+        final int j;
+        final int m;
+        final BigInteger scaled_1;
+        final BigInteger trunc_error;
+        final BigInteger[] result;
+        final AtomicBoolean stop;
+        lane(int j, int m, BigInteger scaled_1, BigInteger trunc_error,
+             BigInteger[] result, AtomicBoolean stop) {
+            this.j = j;
+            this.m = m;
+            this.scaled_1 = scaled_1;
+            this.trunc_error = trunc_error;
+            this.result = result;
+            this.stop = stop;
+        }
+        protected void compute() {
+            BigInteger big_op = BigInteger.valueOf(op);
+            BigInteger step = big_op.pow(2 * m);
+            int n = 2 * j + 1;
+            int current_sign = (j % 2 == 0? 1 : -1);
+            int sign_step = (m % 2 == 0? 1 : -1);
+            BigInteger current_power = scaled_1.divide(big_op.pow(n));
+            BigInteger current_term =
+                current_power.divide(BigInteger.valueOf(current_sign*n));
+            BigInteger current_sum = current_term;
+            while (current_term.abs().compareTo(trunc_error) >= 0) {
+                if (stop.get() || please_stop) {
+                    throw new AbortedException();
+                }
+                n += 2 * m;
+                current_power = current_power.divide(step);
+                current_sign *= sign_step;
+                current_term =
+                    current_power.divide(BigInteger.valueOf(current_sign*n));
+                current_sum = current_sum.add(current_term);
+            }
+            result[j] = current_sum;
+        }
+    }
 }
 
 // Representation for ln(1 + op)
@@ -1367,14 +2009,22 @@ class prescaled_ln_CR extends slow_CR {
     // Note: this is known to be a bad algorithm for
     // floating point.  Unfortunately, other alternatives
     // appear to require precomputed tabular information.
+    CR[] operands() { return new CR[] { op }; }
+    // After the first factor of op.
+    static final parallel_series series = new parallel_series() {
+        long num(int n) { return -(n + 1); }
+        long den(int n) { return n + 2; }
+    };
     protected BigInteger approximate(int p) {
         if (p >= 0) return big0;
         int iterations_needed = -p;  // conservative estimate > 0.
           //  Claim: each intermediate term is accurate
           //  to 2*2^calc_precision.  Total error is
           //  2*iterations_needed*2^calc_precision
-          //  exclusive of error in op.
-        int calc_precision = p - bound_log2(2*iterations_needed)
+          //  exclusive of error in op.  More if summed in parallel.
+        ForkJoinPool pool = parallel_series.pool_for(p);
+        int calc_precision = p - bound_log2(parallel_series.rounding_error(
+                                                pool, iterations_needed))
                                - 4; // for error in op, truncation.
         int op_prec = p - 3;
         BigInteger op_appr = op.get_appr(op_prec);
@@ -1387,11 +2037,16 @@ class prescaled_ln_CR extends slow_CR {
         int current_sign = 1;   // (-1)^(n-1)
         BigInteger max_trunc_error =
                 big1.shiftLeft(p - 4 - calc_precision);
+        if (pool != null) {
+            current_sum = series.sum(x_nth, x_nth, calc_precision,
+                                     max_trunc_error, pool);
+            return scale(current_sum, calc_precision - p);
+        }
         while (current_term.abs().compareTo(max_trunc_error) >= 0) {
           if (Thread.interrupted() || please_stop) throw new AbortedException();
           n += 1;
           current_sign = -current_sign;
-          x_nth = scale(x_nth.multiply(op_appr), op_prec);
+          x_nth = scale(arith.multiply(x_nth, op_appr), op_prec);
           current_term = x_nth.divide(BigInteger.valueOf(n * current_sign));
                                 // x**n / (n * (-1)**(n-1))
           current_sum = current_sum.add(current_term);
@@ -1400,106 +2055,100 @@ class prescaled_ln_CR extends slow_CR {
     }
 }
 
-// Representation of the arcsine of a constructive real.  Private.
-// Uses a Taylor series expansion.  Assumes |x| < (1/2)^(1/3).
-class prescaled_asin_CR extends slow_CR {
+// The arcsine or arctangent of a constructive real, computed by
+// Newton iteration on the sine and cosine series.  Private.
+// Each approximation is derived from one with roughly half the
+// precision, which is cached like any other approximation, so the
+// precision doubles at each step, starting from a double precision
+// approximation.  Assumes that the result is less than 1 in magnitude,
+// so that prescaled_sin_CR and prescaled_cos_CR apply directly.
+abstract class newton_inverse_trig_CR extends CR {
     CR op;
-    prescaled_asin_CR(CR x) {
-        op = x;
-    }
+    newton_inverse_trig_CR(CR x) { op = x; }
+    final int fp_prec = 50;     // Conservative estimate of number of
+                                // significant bits in double precision
+                                // computation.
+    final int fp_op_prec = -60;
+    // The inverse function, applied to a double.
+    abstract double fp_inverse(double x);
+    // The Newton correction to the approximation y, scaled by 2^-w,
+    // given x, sin(y) and cos(y), each scaled by 2^-w and accurate to
+    // 1 ulp.  Must be accurate to 5 ulp, ignoring the quadratic error
+    // term.
+    abstract BigInteger correction(BigInteger op_appr, BigInteger sin_appr,
+                                   BigInteger cos_appr, int w);
+    CR[] operands() { return new CR[] { op }; }
     protected BigInteger approximate(int p) {
-        // The Taylor series is the sum of x^(2n+1) * (2n)!/(4^n n!^2 (2n+1))
-        // Note that (2n)!/(4^n n!^2) is always less than one.
-        // (The denominator is effectively 2n*2n*(2n-2)*(2n-2)*...*2*2
-        // which is clearly > (2n)!)
-        // Thus all terms are bounded by x^(2n+1).
-        // Unfortunately, there's no easy way to prescale the argument
-        // to less than 1/sqrt(2), and we can only approximate that.
-        // Thus the worst case iteration count is fairly high.
-        // But it doesn't make much difference.
-        if (p >= 2) return big0;  // Never bigger than 4.
-        int iterations_needed = -3 * p / 2 + 4;
-                                // conservative estimate > 0.
-                                // Follows from assumed bound on x and
-                                // the fact that only every other Taylor
-                                // Series term is present.
-          //  Claim: each intermediate term is accurate
-          //  to 2*2^calc_precision.
-          //  Total rounding error in series computation is
-          //  2*iterations_needed*2^calc_precision,
-          //  exclusive of error in op.
-        int calc_precision = p - bound_log2(2*iterations_needed)
-                               - 4; // for error in op, truncation.
-        int op_prec = p - 3;  // always <= -2
-        BigInteger op_appr = op.get_appr(op_prec);
-          // Error in argument results in error of < 1/4 ulp.
-          // (Derivative is bounded by 2 in the specified range and we use
-          // 3 extra digits.)
-          // Ignoring the argument error, each term has an error of
-          // < 3ulps relative to calc_precision, which is more precise than p.
-          // Cumulative arithmetic rounding error is < 3/16 ulp (relative to p).
-          // Series truncation error < 2/16 ulp.  (Each computed term
-          // is at most 2/3 of last one, so some of remaining series <
-          // 3/2 * current term.)
-          // Final rounding error is <= 1/2 ulp.
-          // Thus final error is < 1 ulp (relative to p).
-        BigInteger max_last_term =
-                big1.shiftLeft(p - 4 - calc_precision);
-        int exp = 1; // Current exponent, = 2n+1 in above expression
-        BigInteger current_term = op_appr.shiftLeft(op_prec - calc_precision);
-        BigInteger current_sum = current_term;
-        BigInteger current_factor = current_term;
-                                    // Current scaled Taylor series term
-                                    // before division by the exponent.
-                                    // Accurate to 3 ulp at calc_precision.
-        while (current_term.abs().compareTo(max_last_term) >= 0) {
-          if (Thread.interrupted() || please_stop) throw new AbortedException();
-          exp += 2;
-          // current_factor = current_factor * op * op * (exp-1) * (exp-2) /
-          // (exp-1) * (exp-1), with the two exp-1 factors cancelling,
-          // giving
-          // current_factor = current_factor * op * op * (exp-2) / (exp-1)
-          // Thus the error any in the previous term is multiplied by
-          // op^2, adding an error of < (1/2)^(2/3) < 2/3 the original
-          // error.
-          current_factor = current_factor.multiply(BigInteger.valueOf(exp - 2));
-          current_factor = scale(current_factor.multiply(op_appr), op_prec + 2);
-                // Carry 2 extra bits of precision forward; thus
-                // this effectively introduces 1/8 ulp error.
-          current_factor = current_factor.multiply(op_appr);
-          BigInteger divisor = BigInteger.valueOf(exp - 1);
-          current_factor = current_factor.divide(divisor);
-                // Another 1/4 ulp error here.
-          current_factor = scale(current_factor, op_prec - 2);
-                // Remove extra 2 bits.  1/2 ulp rounding error.
-          // Current_factor has original 3 ulp rounding error, which we
-          // reduced by 1, plus < 1 ulp new rounding error.
-          current_term = current_factor.divide(BigInteger.valueOf(exp));
-                // Contributes 1 ulp error to sum plus at most 3 ulp
-                // from current_factor.
-          current_sum = current_sum.add(current_term);
+        if (p >= 1) return big0;
+        if (-p <= fp_prec) {
+            // Use a double precision floating point approximation.
+            // Conversion of the argument, its error, and the error in
+            // fp_inverse each contribute < 1/8 ulp.  Final rounding
+            // error is <= 1/2 ulp.
+            double op_appr = op.get_appr(fp_op_prec).doubleValue();
+            double fp_result = fp_inverse(Math.scalb(op_appr, fp_op_prec));
+            return BigInteger.valueOf(Math.round(Math.scalb(fp_result, -p)));
         }
-        return scale(current_sum, calc_precision - p);
-      }
-  }
+        int w = p - 6;
+        // First compute the argument to maximal precision, so we don't end up
+        // reevaluating it incrementally.
+        BigInteger op_appr = op.get_appr(w);
+        int appr_prec = p/2 - 4;
+        BigInteger last_appr = get_appr(appr_prec);
+          // The error in last_appr is < 2^appr_prec, so the error after
+          // the Newton step is < 2^(2*appr_prec) < 1/64 ulp, since the
+          // second derivative is bounded in the assumed range.
+          // Correction error is < 5/64 ulp.
+          // Final rounding error is <= 1/2 ulp.
+          // Thus final error is < 1 ulp.
+        CR y = CR.valueOf(last_appr).shiftLeft(appr_prec);
+        BigInteger sin_appr = new prescaled_sin_CR(y).get_appr(w);
+        BigInteger cos_appr = new prescaled_cos_CR(y).get_appr(w);
+        BigInteger result = last_appr.shiftLeft(appr_prec - w)
+                .add(correction(op_appr, sin_appr, cos_appr, w));
+        return scale(result, w - p);
+    }
+}
+
+// The arcsine of a constructive real.  Assumes |x| < 3/4, so that
+// cos(asin(x)) > 0.65.
+class asin_CR extends newton_inverse_trig_CR {
+    asin_CR(CR x) { super(x); }
+    double fp_inverse(double x) { return Math.asin(x); }
+    // (x - sin(y))/cos(y).  The numerator is accurate to 2 ulp, and
+    // dividing by the cosine contributes < 1 ulp of truncation error.
+    BigInteger correction(BigInteger op_appr, BigInteger sin_appr,
+                          BigInteger cos_appr, int w) {
+        return arith.divide(op_appr.subtract(sin_appr).shiftLeft(-w),
+                            cos_appr);
+    }
+}
+
+// The arctangent of a constructive real.  Assumes |x| < 3/2.
+class atan_CR extends newton_inverse_trig_CR {
+    atan_CR(CR x) { super(x); }
+    double fp_inverse(double x) { return Math.atan(x); }
+    // (x - tan(y)) * cos(y)^2 = cos(y) * (x * cos(y) - sin(y)).
+    // The second factor is accurate to 4 ulp, and the product
+    // contributes another 1/2 ulp of rounding error.
+    BigInteger correction(BigInteger op_appr, BigInteger sin_appr,
+                          BigInteger cos_appr, int w) {
+        BigInteger difference =
+                scale(arith.multiply(op_appr, cos_appr), w)
+                .subtract(sin_appr);
+        return scale(arith.multiply(difference, cos_appr), w);
+    }
+}
 
 
 class sqrt_CR extends CR {
     CR op;
     sqrt_CR(CR x) { op = x; }
-    // Explicitly provide an initial approximation.
-    // Useful for arithmetic geometric mean algorithms, where we've previously
-    // computed a very similar square root.
-    sqrt_CR(CR x, int min_p, BigInteger max_a) {
-        op = x;
-        min_prec = min_p;
-        max_appr = max_a;
-        appr_valid = true;
-    }
     final int fp_prec = 50;     // Conservative estimate of number of
                                 // significant bits in double precision
                                 // computation.
     final int fp_op_prec = 60;
+    CR[] operands() { return new CR[] { op }; }
     protected BigInteger approximate(int p) {
         int max_op_prec_needed = 2*p - 1;
         int msd = op.iter_msd(max_op_prec_needed);
@@ -1507,23 +2156,19 @@ class sqrt_CR extends CR {
         int result_msd = msd/2;                 // +- 1
         int result_digits = result_msd - p;     // +- 2
         if (result_digits > fp_prec) {
-          // Compute less precise approximation and use a Newton iter.
-            int appr_digits = result_digits/2 + 6;
-                // This should be conservative.  Is fewer enough?
-            int appr_prec = result_msd - appr_digits;
-            int prod_prec = 2*appr_prec;
-            // First compute the argument to maximal precision, so we don't end up
-            // reevaluating it incrementally.
-            BigInteger op_appr = op.get_appr(prod_prec);
-            BigInteger last_appr = get_appr(appr_prec);
-            // Compute (last_appr * last_appr + op_appr) / last_appr / 2
-            // while adjusting the scaling to make everything work
-            BigInteger prod_prec_scaled_numerator =
-                last_appr.multiply(last_appr).add(op_appr);
-            BigInteger scaled_numerator =
-                scale(prod_prec_scaled_numerator, appr_prec - p);
-            BigInteger shifted_result = scaled_numerator.divide(last_appr);
-            return shifted_result.add(big1).shiftRight(1);
+          // Take the integer square root of an approximation to the
+          // argument, scaled by 2**(2*p - 4).  Since sqrt(x) >=
+          // 2**(result_msd - 2), the argument error contributes
+          // < 1/128 ulp, truncation < 1/4 ulp, and the final rounding
+          // another 1/2 ulp.
+            int op_prec = p + result_msd - 8;
+            int sqrt_prec = 2*p - 4;
+            BigInteger op_appr = op.get_appr(op_prec);
+            if (op_appr.signum() < 0)
+                throw new ArithmeticException("sqrt(negative)");
+            BigInteger root =
+                arith.sqrt(op_appr.shiftLeft(op_prec - sqrt_prec));
+            return root.add(big2).shiftRight(2);
         } else {
           // Use a double precision floating point approximation.
             // Make sure all precisions are even
@@ -1542,6 +2187,36 @@ class sqrt_CR extends CR {
     }
 }
 
+// A constant with a precomputed table entry.  Approximations to
+// precision ConstantTable.precision or less are obtained by rounding the
+// entry.  Its error of < 1 ulp shrinks to <= 1/2 ulp at any lower
+// precision, before the final rounding.  op is used for higher precision,
+// or if the entry is unavailable.
+class precomputed_CR extends CR {
+    final String name;
+    final CR op;
+    BigInteger entry;
+    boolean entry_checked;
+    precomputed_CR(String n, CR x) { name = n; op = x; }
+    CR[] operands() { return new CR[] { op }; }
+    protected BigInteger approximate(int p) {
+        if (p >= -ConstantTable.precision) {
+            if (!entry_checked) {
+                // Guard against an entry for a different constant.
+                entry = ConstantTable.get(name);
+                if (entry != null && !ConstantTable.agrees(entry, op)) {
+                    entry = null;
+                }
+                entry_checked = true;
+            }
+            if (entry != null) {
+                return scale(entry, -ConstantTable.precision - p);
+            }
+        }
+        return op.get_appr(p);
+    }
+}
+
 // The constant PI, computed using the Gauss-Legendre alternating
 // arithmetic-geometric mean algorithm:
 //      a[0] = 1
@@ -1556,20 +2231,7 @@ class sqrt_CR extends CR {
 //      pi is then approximated as (a[n+1]+b[n+1])^2 / 4*t[n+1].
 //
 class gl_pi_CR extends slow_CR {
-    // In addition to the best approximation kept by the CR base class, we keep
-    // the entire sequence b[n], to the extent we've needed it so far.  Each
-    // reevaluation leads to slightly different sqrt arguments, but the
-    // previous result can be used to avoid repeating low precision Newton
-    // iterations for the sqrt approximation.
-    ArrayList<Integer> b_prec = new ArrayList<Integer>();
-    ArrayList<BigInteger> b_val = new ArrayList<BigInteger>();
-    gl_pi_CR() {
-        b_prec.add(null);  // Zeroth entry unused.
-        b_val.add(null);
-    }
     private static BigInteger TOLERANCE = BigInteger.valueOf(4);
-    // sqrt(1/2)
-    private static CR SQRT_HALF = new sqrt_CR(ONE.shiftRight(1));
 
     protected BigInteger approximate(int p) {
         // Rough approximations are easy.
@@ -1583,37 +2245,19 @@ class gl_pi_CR extends slow_CR {
         // All our terms are implicitly scaled by eval_prec.
         final int eval_prec = p - extra_eval_prec;
         BigInteger a = BigInteger.ONE.shiftLeft(-eval_prec);
-        BigInteger b = SQRT_HALF.get_appr(eval_prec);
+        // sqrt(1/2), truncated.
+        BigInteger b = arith.sqrt(BigInteger.ONE.shiftLeft(-2 * eval_prec - 1));
         BigInteger t = BigInteger.ONE.shiftLeft(-eval_prec - 2);
         int n = 0;
         while (a.subtract(b).subtract(TOLERANCE).signum() > 0) {
             // Current values correspond to n, next_ values to n + 1
-            // b_prec.size() == b_val.size() >= n + 1
             final BigInteger next_a = a.add(b).shiftRight(1);
             final BigInteger a_diff = a.subtract(next_a);
-            CR next_b_as_CR;
-            final BigInteger b_prod = a.multiply(b).shiftRight(-eval_prec);
-            // We the compute square root approximations using a nested
-            // temporary CR computation, to avoid implementing BigInteger
-            // square roots separately.
-            final CR b_prod_as_CR = CR.valueOf(b_prod).shiftRight(-eval_prec);
-            if (b_prec.size() == n + 1) {
-                // Need an n+1st slot.
-                b_prec.add(null);
-                b_val.add(null);
-                next_b_as_CR = b_prod_as_CR.sqrt();
-            } else {
-                // Reuse previous approximation to reduce sqrt iterations,
-                // hopefully to one.
-                next_b_as_CR = new sqrt_CR(b_prod_as_CR, b_prec.get(n + 1),
-                                           b_val.get(n + 1));
-            }
-            // b_prec.size() == b_val.size() >= n + 2
-            final BigInteger next_b = next_b_as_CR.get_appr(eval_prec);
-            b_prec.set(n + 1, Integer.valueOf(p));
-            b_val.set(n + 1, scale(next_b, -extra_eval_prec));
+            // a * b is scaled by 2*eval_prec, so its integer square root
+            // is the truncated geometric mean, scaled by eval_prec.
+            final BigInteger next_b = arith.sqrt(arith.multiply(a, b));
             final BigInteger next_t =
-                    t.subtract(a_diff.multiply(a_diff)
+                    t.subtract(arith.square(a_diff)
                      .shiftLeft(n + eval_prec));  // shift dist. usually neg.
             a = next_a;
             b = next_b;
@@ -1621,7 +2265,8 @@ class gl_pi_CR extends slow_CR {
             ++n;
         }
         final BigInteger sum = a.add(b);
-        final BigInteger result = sum.multiply(sum).divide(t).shiftRight(2);
+        final BigInteger result =
+                arith.divide(arith.square(sum), t).shiftRight(2);
         return scale(result, -extra_eval_prec);
     }
 }
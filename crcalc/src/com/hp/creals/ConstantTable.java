@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hp.creals;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+
+// Approximations to frequently used constants, read from the resource
+// constants.bin, so that they need not be recomputed in every process.
+// Private.
+// The resource holds, for each name in names, the constant scaled by
+// 2^precision, with an error of less than one.  It is read on first use,
+// and each entry is converted to a BigInteger only when first requested.
+// A missing or malformed resource just means that constants are computed
+// as usual.
+// The resource is generated by running main() with the output file name.
+final class ConstantTable {
+    static final int magic = 0x43524331;        // "CRC1"
+    static final int precision = 65536;
+    static final String[] names = {
+        "pi", "e", "ln2", "ln3", "ln5", "ln7",
+        "sqrt2", "sqrt3", "sqrt5", "sqrt7"
+    };
+    // Set to false to ignore the resource, e.g. while generating it.
+    static volatile boolean enabled = true;
+
+    private static HashMap<String, byte[]> encoded;
+    private static final HashMap<String, BigInteger> decoded =
+            new HashMap<String, BigInteger>();
+
+    private ConstantTable() {}
+
+    static boolean has(String name) {
+        return Arrays.asList(names).contains(name);
+    }
+
+    // The entry for name, scaled by 2^precision, or null if it is not
+    // available.
+    static synchronized BigInteger get(String name) {
+        if (!enabled) return null;
+        if (decoded.containsKey(name)) return decoded.get(name);
+        if (encoded == null) encoded = read();
+        byte[] bytes = encoded.remove(name);
+        BigInteger result = bytes == null? null : new BigInteger(bytes);
+        decoded.put(name, result);
+        return result;
+    }
+
+    // Does entry plausibly approximate value?  Both approximations at
+    // precision -64 are accurate to within 1 ulp.
+    static boolean agrees(BigInteger entry, CR value) {
+        BigInteger check = CR.scale(entry, 64 - precision);
+        return check.subtract(value.get_appr(-64)).abs().compareTo(CR.big2) <= 0;
+    }
+
+    private static HashMap<String, byte[]> read() {
+        HashMap<String, byte[]> result = new HashMap<String, byte[]>();
+        InputStream in = ConstantTable.class.getResourceAsStream("constants.bin");
+        if (in == null) return result;
+        try {
+            DataInputStream data = new DataInputStream(in);
+            if (data.readInt() != magic || data.readInt() != precision) {
+                return result;
+            }
+            int count = data.readInt();
+            for (int i = 0; i < count; ++i) {
+                String name = data.readUTF();
+                byte[] bytes = new byte[data.readInt()];
+                data.readFully(bytes);
+                result.put(name, bytes);
+            }
+        } catch (IOException e) {
+            result.clear();
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Nothing useful to do.
+            }
+        }
+        return result;
+    }
+
+    // Independent definitions of the constants in names.
+    static CR definition(String name) {
+        if (name.equals("pi")) return CR.gl_pi();
+        if (name.equals("e")) return CR.ONE.exp();
+        if (name.startsWith("ln")) {
+            return CR.valueOf(Integer.parseInt(name.substring(2))).ln();
+        }
+        if (name.startsWith("sqrt")) {
+            return CR.valueOf(Integer.parseInt(name.substring(4))).sqrt();
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    public static void main(String[] args) throws IOException {
+        enabled = false;
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(args[0])));
+        try {
+            out.writeInt(magic);
+            out.writeInt(precision);
+            out.writeInt(names.length);
+            for (String name : names) {
+                byte[] bytes = definition(name).get_appr(-precision)
+                                              .toByteArray();
+                out.writeUTF(name);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -43,6 +43,8 @@ package com.hp.creals;
 // import android.util.Log;
 
 import java.math.BigInteger;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
 * Unary functions on constructive reals implemented as objects.
@@ -170,6 +172,81 @@ public abstract class UnaryCRFunction {
         return new monotoneDerivative_UnaryCRFunction(this, low, high);
     }
 
+/**
+* Approximate this function at each of the arguments.
+* Element i of the result is
+* <TT>execute(args[i]).get_appr(precision)</tt>.
+* The first argument is evaluated before any of the others, so that
+* constants shared by the evaluations, such as PI, are computed once,
+* rather than concurrently or at incrementally increasing precision.
+* The remaining arguments are evaluated in <TT>pool</tt>, if it is not
+* null, and sequentially otherwise.
+* Setting <TT>CR.please_stop</tt> aborts the computation, as for a single
+* evaluation.  With a pool, interrupting the calling thread does not.
+* @param args       The arguments.
+* @param precision  The precision, as for <TT>CR.get_appr</tt>.
+* @param pool       The pool for parallel evaluation, or null.
+*/
+    public BigInteger[] approximate(CR[] args, int precision,
+                                    ForkJoinPool pool) {
+        BigInteger[] result = new BigInteger[args.length];
+        if (args.length == 0) {
+            return result;
+        }
+        result[0] = execute(args[0]).get_appr(precision);
+        if (pool == null) {
+            for (int i = 1; i < args.length; ++i) {
+                if (Thread.interrupted() || CR.please_stop) {
+                    throw new CR.AbortedException();
+                }
+                result[i] = execute(args[i]).get_appr(precision);
+            }
+        } else {
+            pool.invoke(new batch_approximation(this, args, precision,
+                                                result, 1, args.length));
+        }
+        return result;
+    }
+
+/**
+* Approximate this function sequentially at each of the arguments.
+* Equivalent to <TT>approximate(args, precision, null)</tt>.
+*/
+    public BigInteger[] approximate(CR[] args, int precision) {
+        return approximate(args, precision, null);
+    }
+
+/**
+* Approximate this function at the rational arguments
+* <TT>numerators[i]/denominator</tt>, as for
+* <TT>approximate(CR[], int, ForkJoinPool)</tt>.
+* This is the natural form for evenly spaced points, and shares
+* the reciprocal of the denominator between all arguments.
+*/
+    public BigInteger[] approximate(BigInteger[] numerators,
+                                    BigInteger denominator, int precision,
+                                    ForkJoinPool pool) {
+        if (denominator.signum() == 0) {
+            throw new ArithmeticException("Zero denominator");
+        }
+        CR[] args = new CR[numerators.length];
+        int shift = denominator.getLowestSetBit();
+        if (denominator.abs().bitLength() == shift + 1) {
+            // Power of two.
+            boolean negate = (denominator.signum() < 0);
+            for (int i = 0; i < numerators.length; ++i) {
+                BigInteger n = (negate? numerators[i].negate() : numerators[i]);
+                args[i] = CR.valueOf(n).shiftRight(shift);
+            }
+        } else {
+            CR reciprocal = CR.valueOf(denominator).inverse();
+            for (int i = 0; i < numerators.length; ++i) {
+                args[i] = CR.valueOf(numerators[i]).multiply(reciprocal);
+            }
+        }
+        return approximate(args, precision, pool);
+    }
+
 }
 
 // Subclasses of UnaryCRFunction for various built-in functions.
@@ -203,17 +280,9 @@ class acos_UnaryCRFunction extends UnaryCRFunction {
     }
 }
 
-// This uses the identity (sin x)^2 = (tan x)^2/(1 + (tan x)^2)
-// Since we know the tangent of the result, we can get its sine,
-// and then use the asin function.  Note that we don't always
-// want the positive square root when computing the sine.
 class atan_UnaryCRFunction extends UnaryCRFunction {
-    CR one = CR.valueOf(1);
     public CR execute(CR x) {
-        CR x2 = x.multiply(x);
-        CR abs_sin_atan = x2.divide(one.add(x2)).sqrt();
-        CR sin_atan = x.select(abs_sin_atan.negate(), abs_sin_atan);
-        return sin_atan.asin();
+        return x.atan();
     }
 }
 
@@ -259,6 +328,38 @@ class sqrt_UnaryCRFunction extends UnaryCRFunction {
     }
 }
 
+// Evaluation of a range of batch arguments, splitting it in halves
+// until single arguments remain.
+class batch_approximation extends RecursiveAction {
+    final UnaryCRFunction f;
+    final CR[] args;
+    final int precision;
+    final BigInteger[] result;
+    final int from;
+    final int to;
+    batch_approximation(UnaryCRFunction f, CR[] args, int precision,
+                        BigInteger[] result, int from, int to) {
+        this.f = f;
+        this.args = args;
+        this.precision = precision;
+        this.result = result;
+        this.from = from;
+        this.to = to;
+    }
+    protected void compute() {
+        if (to - from == 1) {
+            if (CR.please_stop) throw new CR.AbortedException();
+            result[from] = f.execute(args[from]).get_appr(precision);
+        } else if (to > from) {
+            int mid = (from + to) >>> 1;
+            invokeAll(new batch_approximation(f, args, precision,
+                                              result, from, mid),
+                      new batch_approximation(f, args, precision,
+                                              result, mid, to));
+        }
+    }
+}
+
 class compose_UnaryCRFunction extends UnaryCRFunction {
     UnaryCRFunction f1;
     UnaryCRFunction f2;
@@ -328,6 +429,7 @@ class inverseMonotone_UnaryCRFunction extends UnaryCRFunction {
         inverseIncreasingCR(CR x) {
             arg = f_negated[0]? x.negate() : x;
         }
+        CR[] operands() { return new CR[] { arg }; }
         // Comparison with a difference of one treated as equality.
         int sloppy_compare(BigInteger x, BigInteger y) {
             BigInteger difference = x.subtract(y);
@@ -354,7 +456,9 @@ class inverseMonotone_UnaryCRFunction extends UnaryCRFunction {
             int working_eval_prec = working_arg_prec + deriv_msd[0] - 20;
                         // initial guess
             // We use a combination of binary search and something like
-            // the secant method.  This always converges linearly,
+            // the secant method, followed by a Newton step whose result
+            // is checked by evaluating f on either side of it.
+            // This always converges linearly,
             // and should converge quadratically under favorable assumptions.
             // F_l and f_h are always the approximate images of l and h.
             // At any point, arg is between f_l and f_h, or no more than
@@ -550,6 +654,52 @@ class inverseMonotone_UnaryCRFunction extends UnaryCRFunction {
                         f_l = f_guess;
                         at_left = false;
                     }
+                    if (!binary_step) {
+                        // Newton step from guess, using the slope of the
+                        // old interval as the derivative.  If f is
+                        // smooth, the answer is now much closer to the
+                        // predicted point than guess was.  Confirm that
+                        // by evaluating f slightly beyond and then
+                        // slightly short of the prediction, each of
+                        // which narrows the interval even if the
+                        // prediction was poor.  Small_step_deficit
+                        // still falls back to bisection if this fails
+                        // repeatedly.
+                        BigInteger distance = f_guess.subtract(arg_appr)
+                                .abs().multiply(difference)
+                                .divide(f_difference.abs());
+                        BigInteger margin = distance.shiftRight(8).add(big2);
+                        if (outcome > 0) {
+                            distance = distance.negate();
+                            margin = margin.negate();
+                        }
+                        BigInteger prediction = guess.add(distance);
+                        BigInteger checks[] = { prediction.add(margin),
+                                                prediction.subtract(margin) };
+                        for (BigInteger check : checks) {
+                            if (check.compareTo(l) <= 0
+                                || check.compareTo(h) >= 0) {
+                                continue;
+                            }
+                            trace("checking Newton step at " + check);
+                            CR check_cr = CR.valueOf(check)
+                                            .shiftLeft(working_arg_prec);
+                            BigInteger f_check = fn.execute(check_cr)
+                                                .get_appr(working_eval_prec);
+                            int check_outcome = sloppy_compare(f_check,
+                                                               arg_appr);
+                            if (check_outcome > 0) {
+                                h = check;
+                                f_h = f_check;
+                                at_right = false;
+                            } else if (check_outcome < 0) {
+                                l = check;
+                                f_l = f_check;
+                                at_left = false;
+                            }
+                            if (h.subtract(l).compareTo(big6) < 0) break;
+                        }
+                    }
                     BigInteger new_difference = h.subtract(l);
                     if (!binary_step) {
                         if (new_difference.compareTo(difference
@@ -630,6 +780,7 @@ class monotoneDerivative_UnaryCRFunction extends UnaryCRFunction {
                                 max_delta_left_msd
                                 : max_delta_right_msd);
         }
+        CR[] operands() { return new CR[] { arg, f_arg }; }
         protected BigInteger approximate(int p) {
             final int extra_prec = 4;
             int log_delta = p - deriv2_msd[0];
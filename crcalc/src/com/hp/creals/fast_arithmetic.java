@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hp.creals;
+
+import java.math.BigInteger;
+
+// BigInteger arithmetic, except that products of two large operands
+// are computed with a number theoretic transform, and large quotients
+// by Newton iteration on the reciprocal of the divisor.
+// The thresholds were measured against OpenJDK 17's BigInteger on
+// x86-64 Linux; below them BigInteger's Toom-Cook and
+// Burnikel-Ziegler algorithms are faster.  Multiplication breaks even
+// at around 1.5 million bits, and is 3 times faster at 16 million.
+// Division needs several multiplications to catch up with
+// Burnikel-Ziegler, and breaks even only between 16 and 32 million bits.
+class fast_arithmetic extends java_arithmetic {
+    // Both multiplication operands must have at least this many bits.
+    static int mult_threshold = 1600000;
+    // Both the divisor and the quotient must have at least this many bits.
+    static int div_threshold = 20000000;
+    // Reciprocals shorter than this are computed by BigInteger division.
+    static int recip_threshold = 100000;
+
+    BigInteger multiply(BigInteger x, BigInteger y) {
+        if (x.bitLength() < mult_threshold || y.bitLength() < mult_threshold) {
+            return x.multiply(y);
+        }
+        return ntt_multiply(x, y);
+    }
+    BigInteger square(BigInteger x) {
+        if (x.bitLength() < mult_threshold) {
+            return x.multiply(x);
+        }
+        return ntt_multiply(x, x);
+    }
+    private static boolean below_div_threshold(BigInteger x, BigInteger y) {
+        int ylen = y.bitLength();
+        return ylen < div_threshold || x.bitLength() - ylen < div_threshold;
+    }
+    BigInteger divide(BigInteger x, BigInteger y) {
+        if (below_div_threshold(x, y)) return x.divide(y);
+        return divide_and_remainder(x, y)[0];
+    }
+    BigInteger[] divide_and_remainder(BigInteger x, BigInteger y) {
+        if (below_div_threshold(x, y)) return x.divideAndRemainder(y);
+        BigInteger[] result = newton_divide(x.abs(), y.abs());
+        if (x.signum() != y.signum()) result[0] = result[0].negate();
+        if (x.signum() < 0) result[1] = result[1].negate();
+        return result;
+    }
+
+    // Number theoretic transform multiplication.
+    // Operands are split into 16 bit limbs, and the convolution of the
+    // limb sequences is computed modulo two primes of the form k*2^n + 1,
+    // whose product exceeds any convolution coefficient for operands
+    // of up to 2^26 limbs.  The coefficients are then recovered by the
+    // Chinese remainder theorem, and carries propagated.
+    static final int P1 = 2013265921;   // 15 * 2^27 + 1
+    static final int G1 = 31;           // Primitive root mod P1
+    static final int P2 = 469762049;    // 7 * 2^26 + 1
+    static final int G2 = 3;            // Primitive root mod P2
+    static final int max_log_size = 26;
+    // P1^-1 mod P2
+    static final long P1_INV = pow_mod(P1 % P2, P2 - 2, P2);
+
+    // Root tables for each prime.  For 1 <= m < table size, m a power of
+    // two, entries m through 2m-1 hold w^0 ... w^(m-1), w a primitive
+    // 2m-th root of unity.  Grown on demand, never shrunk.
+    private static int[] roots1 = new int[0];
+    private static int[] roots2 = new int[0];
+
+    static long pow_mod(long base, long exp, long mod) {
+        long result = 1;
+        base %= mod;
+        while (exp > 0) {
+            if ((exp & 1) != 0) result = result * base % mod;
+            base = base * base % mod;
+            exp >>= 1;
+        }
+        return result;
+    }
+
+    private static int[] make_roots(int size, int p, int g) {
+        int[] result = new int[size];
+        for (int m = 1; m < size; m <<= 1) {
+            long w = pow_mod(g, (p - 1) / (2L * m), p);
+            long r = 1;
+            for (int j = 0; j < m; ++j) {
+                result[m + j] = (int)r;
+                r = r * w % p;
+            }
+        }
+        return result;
+    }
+
+    private static synchronized int[] roots(int size, int p) {
+        if (p == P1) {
+            if (roots1.length < size) roots1 = make_roots(size, P1, G1);
+            return roots1;
+        } else {
+            if (roots2.length < size) roots2 = make_roots(size, P2, G2);
+            return roots2;
+        }
+    }
+
+    // In place transform of a, whose length n is a power of two.
+    // Inverse transforms are unscaled.
+    private static void transform(int[] a, int p, int[] roots,
+                                  boolean inverse) {
+        final int n = a.length;
+        for (int i = 1, j = 0; i < n; ++i) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) j ^= bit;
+            j ^= bit;
+            if (i < j) {
+                int tmp = a[i]; a[i] = a[j]; a[j] = tmp;
+            }
+        }
+        for (int m = 1; m < n; m <<= 1) {
+            if (Thread.interrupted() || CR.please_stop) {
+                throw new CR.AbortedException();
+            }
+            for (int i = 0; i < n; i += 2 * m) {
+                for (int j = 0; j < m; ++j) {
+                    int u = a[i + j];
+                    int v = (int)((long)a[i + j + m] * roots[m + j] % p);
+                    int sum = u + v - p;            // No overflow: p < 2^31
+                    a[i + j] = sum < 0? sum + p : sum;
+                    int diff = u - v;
+                    a[i + j + m] = diff < 0? diff + p : diff;
+                }
+            }
+        }
+        if (inverse) {
+            // Reversing a[1..n-1] turns the forward into the inverse
+            // transform.
+            for (int i = 1, j = n - 1; i < j; ++i, --j) {
+                int tmp = a[i]; a[i] = a[j]; a[j] = tmp;
+            }
+        }
+    }
+
+    // Limbs of |x|, least significant first, padded with zeroes to n.
+    private static int[] limbs(BigInteger x, int n) {
+        byte[] bytes = x.abs().toByteArray();
+        int[] result = new int[n];
+        for (int i = bytes.length - 1, k = 0; i >= 0; i -= 2, ++k) {
+            int limb = bytes[i] & 0xff;
+            if (i > 0) limb |= (bytes[i - 1] & 0xff) << 8;
+            if (limb != 0) result[k] = limb;
+        }
+        return result;
+    }
+
+    private static int limb_count(BigInteger x) {
+        return (x.bitLength() + 15) >> 4;
+    }
+
+    // Cyclic convolution of the limbs of x and y modulo p.
+    private static int[] convolve(BigInteger x, BigInteger y, int size,
+                                  int p) {
+        int[] roots = roots(size, p);
+        int[] a = limbs(x, size);
+        transform(a, p, roots, false);
+        if (x == y) {
+            for (int i = 0; i < size; ++i) {
+                a[i] = (int)((long)a[i] * a[i] % p);
+            }
+        } else {
+            int[] b = limbs(y, size);
+            transform(b, p, roots, false);
+            for (int i = 0; i < size; ++i) {
+                a[i] = (int)((long)a[i] * b[i] % p);
+            }
+        }
+        transform(a, p, roots, true);
+        long size_inv = pow_mod(size, p - 2, p);
+        for (int i = 0; i < size; ++i) {
+            a[i] = (int)(a[i] * size_inv % p);
+        }
+        return a;
+    }
+
+    static BigInteger ntt_multiply(BigInteger x, BigInteger y) {
+        int signum = x.signum() * y.signum();
+        if (signum == 0) return BigInteger.ZERO;
+        int result_limbs = limb_count(x) + limb_count(y);
+        int size = Integer.highestOneBit(result_limbs - 1) << 1;
+        if (size > (1 << max_log_size)) {
+            throw new ArithmeticException("Multiplication operands too large");
+        }
+        int[] c1 = convolve(x, y, size, P1);
+        int[] c2 = convolve(x, y, size, P2);
+        // Two bytes per limb; coefficients beyond result_limbs are zero.
+        byte[] bytes = new byte[2 * result_limbs + 1];
+        long carry = 0;
+        for (int i = 0, k = bytes.length - 1; i < result_limbs; ++i) {
+            long r1 = c1[i];
+            long t = (c2[i] - r1 % P2) % P2;
+            if (t < 0) t += P2;
+            t = t * P1_INV % P2;
+            long coeff = r1 + P1 * t + carry;   // < P1 * P2 + 2^44 < 2^61
+            bytes[k--] = (byte)coeff;
+            bytes[k--] = (byte)(coeff >>> 8);
+            carry = coeff >>> 16;
+        }
+        BigInteger result = new BigInteger(1, bytes);
+        return signum < 0? result.negate() : result;
+    }
+
+    // Reciprocal approximation for d > 0: an r within a few units
+    // of 2^(2n)/d, where n is the bit length of d.
+    // Each level halves the precision, and recovers it with one Newton
+    // step r' = r + r (2^(2n) - d r) / 2^(2n), which doubles the number
+    // of correct bits.
+    private BigInteger reciprocal(BigInteger d) {
+        int n = d.bitLength();
+        if (n < recip_threshold) {
+            return BigInteger.ONE.shiftLeft(2 * n).divide(d);
+        }
+        int h = n / 2 + 32;
+        int shift = n - h;
+        // r = rh * 2^shift, so both products can be formed from rh,
+        // which has only about half as many bits.
+        BigInteger rh = reciprocal(d.shiftRight(shift));
+        BigInteger error = BigInteger.ONE.shiftLeft(2 * n - shift)
+                                        .subtract(multiply(d, rh));
+        // rh * error / 2^(2h) has only about n - h significant bits, so
+        // bits of error below 2^(h - 34) contribute < 2^-32.
+        int error_shift = h - 34;
+        BigInteger correction = multiply(rh, error.shiftRight(error_shift))
+                                    .shiftRight(2 * h - error_shift);
+        return rh.shiftLeft(shift).add(correction);
+    }
+
+    // Quotient and remainder of x / y for x, y > 0.
+    // Only the leading bits of the divisor affect the leading bits of the
+    // quotient, so we approximate the quotient from truncated operands and
+    // a reciprocal of comparable length, then correct it exactly using
+    // the remainder.
+    private BigInteger[] newton_divide(BigInteger x, BigInteger y) {
+        int quotient_bits = x.bitLength() - y.bitLength() + 1;
+        // Scale the divisor to quotient_bits + 32 significant bits.
+        int shift = y.bitLength() - quotient_bits - 32;
+        BigInteger xs = shift >= 0? x.shiftRight(shift) : x.shiftLeft(-shift);
+        BigInteger ys = shift >= 0? y.shiftRight(shift) : y.shiftLeft(-shift);
+        BigInteger r = reciprocal(ys);
+        // Bits of xs below 2^(n - 64) change the quotient by < 2^-63.
+        int n = ys.bitLength();
+        BigInteger q = multiply(xs.shiftRight(n - 64), r)
+                           .shiftRight(n + 64);
+        BigInteger rem = x.subtract(multiply(q, y));
+        while (rem.signum() < 0) {
+            q = q.subtract(BigInteger.ONE);
+            rem = rem.add(y);
+        }
+        while (rem.compareTo(y) >= 0) {
+            q = q.add(BigInteger.ONE);
+            rem = rem.subtract(y);
+        }
+        return new BigInteger[] { q, rem };
+    }
+}
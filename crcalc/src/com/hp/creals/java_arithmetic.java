@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.hp.creals;
+
+import java.math.BigInteger;
+
+// Plain BigInteger arithmetic.
+class java_arithmetic extends Arithmetic {
+    BigInteger multiply(BigInteger x, BigInteger y) {
+        return x.multiply(y);
+    }
+    BigInteger divide(BigInteger x, BigInteger y) {
+        return x.divide(y);
+    }
+    BigInteger[] divide_and_remainder(BigInteger x, BigInteger y) {
+        return x.divideAndRemainder(y);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Times BigInteger multiplication against the number theoretic transform
+// used by fast_arithmetic, at sizes around fast_arithmetic.mult_threshold,
+// so that the threshold can be checked on a new platform.  Timings are
+// logged; the test fails only if the two products differ.
+
+package com.hp.creals;
+
+import android.util.Log;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import java.math.BigInteger;
+import java.util.Random;
+
+public class ArithmeticBenchmark extends TestCase {
+    private static final String TAG = "ArithmeticBenchmark";
+    // Each product is timed this many times, and the fastest run reported.
+    private static final int RUNS = 3;
+
+    private static void check(boolean x, String s) {
+        if (!x) throw new AssertionFailedError(s);
+    }
+
+    private static void benchmark(int bits) {
+        Random r = new Random(bits);
+        BigInteger x = new BigInteger(bits, r).setBit(bits - 1);
+        BigInteger y = new BigInteger(bits, r).setBit(bits - 1);
+        long java_time = Long.MAX_VALUE;
+        long ntt_time = Long.MAX_VALUE;
+        BigInteger java_product = null;
+        BigInteger ntt_product = null;
+        for (int i = 0; i < RUNS; ++i) {
+            long start = System.nanoTime();
+            java_product = x.multiply(y);
+            long multiplied = System.nanoTime();
+            ntt_product = fast_arithmetic.ntt_multiply(x, y);
+            long transformed = System.nanoTime();
+            java_time = Math.min(java_time, multiplied - start);
+            ntt_time = Math.min(ntt_time, transformed - multiplied);
+        }
+        Log.i(TAG, bits + " bits: BigInteger " + java_time / 1000000
+                + " ms, NTT " + ntt_time / 1000000 + " ms");
+        check(java_product.equals(ntt_product), "product of " + bits + " bits");
+    }
+
+    public void testMultiplyCrossover() {
+        for (int bits = fast_arithmetic.mult_threshold / 8;
+             bits <= fast_arithmetic.mult_threshold * 8; bits *= 2) {
+            benchmark(bits);
+        }
+    }
+}
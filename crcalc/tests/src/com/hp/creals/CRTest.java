@@ -47,6 +47,7 @@
 package com.hp.creals;
 
 import java.math.BigInteger;
+import java.util.concurrent.ForkJoinPool;
 import junit.framework.AssertionFailedError;
 import junit.framework.TestCase;
 
@@ -130,8 +131,35 @@ public class CRTest extends TestCase {
                  "atan(tan(-1) failed");
         check_eq(tan.execute(atan.execute(huge)), huge,
                  "tan(atan(10**15)) failed");
+        check_eq(one.atan().shiftLeft(2), CR.PI, "atan(1) failed");
+        check_eq(half.asin().multiply(CR.valueOf(6)), CR.PI,
+                 "asin(1/2) failed");
+        for (int n = -16; n <= 16; ++n) {
+            CR x = CR.valueOf(n).shiftRight(4);
+            CR y = x.asin();
+            check(y.sin().compareTo(x, -1000) == 0,
+                  "sin(asin(" + n + "/16)) failed");
+            CR z = x.shiftLeft(3).atan();
+            check(tan.execute(z).compareTo(x.shiftLeft(3), -1000) == 0,
+                  "tan(atan(" + n + "/2)) failed");
+        }
         CR sqrt13 = thirteen.sqrt();
         check_eq(sqrt13.multiply(sqrt13), thirteen, "sqrt(13)*sqrt(13) failed");
+        // Exercise the integer square root path at several magnitudes.
+        for (int k = -3000; k <= 3000; k += 1500) {
+            CR x = thirteen.shiftLeft(k);
+            CR root = x.sqrt();
+            check(root.multiply(root).compareTo(x, k - 2000) == 0,
+                  "sqrt(13*2^" + k + ") failed");
+        }
+        BigInteger big_square = BigInteger.TEN.pow(500).add(BigInteger.ONE)
+                                    .pow(2);
+        check(CR.floorSqrt(big_square)
+              .equals(BigInteger.TEN.pow(500).add(BigInteger.ONE)),
+              "floorSqrt(square) failed");
+        check(CR.floorSqrt(big_square.subtract(BigInteger.ONE))
+              .equals(BigInteger.TEN.pow(500)),
+              "floorSqrt(square - 1) failed");
         CR tmp = CR.PI.add(CR.valueOf(-123).exp());
         CR tmp2 = tmp.subtract(CR.PI);
         check(tmp2.ln().intValue() == -123, "intValue(...) failed");
@@ -159,5 +187,190 @@ public class CRTest extends TestCase {
         check_appr_eq(Math.cos(12345678.0),
                       CR.valueOf(12345678).cos().doubleValue(),
                       "cos failed at " + 12345678);
+        check_appr_eq(Math.sin(12345678.0),
+                      CR.valueOf(12345678).sin().doubleValue(),
+                      "sin failed at " + 12345678);
+        for (int n = -40; n <= 40; n += 3) {
+            CR x = CR.valueOf(n).shiftRight(3);
+            check_eq(x.sin(), half_pi.subtract(x).cos(),
+                     "sin(" + n + "/8) failed");
+        }
+        CR tiny = one.shiftRight(200);
+        check_eq(tiny.sin().shiftLeft(200), one, "sin(2**-200) failed");
+        BigInteger[] numerators = new BigInteger[25];
+        CR[] args = new CR[numerators.length];
+        for (int i = 0; i < numerators.length; ++i) {
+            numerators[i] = BigInteger.valueOf(7 * i - 80);
+            args[i] = CR.valueOf(7 * i - 80).divide(CR.valueOf(3));
+        }
+        BigInteger[] batch = UnaryCRFunction.sinFunction
+                .approximate(args, -100);
+        BigInteger[] parallel_batch = UnaryCRFunction.sinFunction
+                .approximate(numerators, BigInteger.valueOf(3), -100,
+                             new ForkJoinPool(2));
+        for (int i = 0; i < numerators.length; ++i) {
+            BigInteger expected = args[i].sin().get_appr(-100);
+            check(batch[i].subtract(expected).abs().compareTo(BigInteger.ONE)
+                  <= 0, "batch sin failed at " + i);
+            check(parallel_batch[i].subtract(expected).abs()
+                  .compareTo(BigInteger.ONE) <= 0,
+                  "parallel batch sin failed at " + i);
+        }
+    }
+    public void testCachedApproximations() {
+        long saved_budget = CR.approximation_cache_budget;
+        CR.approximation_cache_budget = 0;
+        try {
+            CR sqrt6 = CR.valueOf(2).sqrt().multiply(CR.valueOf(3).sqrt());
+            BigInteger appr = sqrt6.get_appr(-20000);
+            BigInteger expected = CR.valueOf(6).sqrt().get_appr(-20000);
+            check(appr.subtract(expected).abs().compareTo(BigInteger.ONE) <= 0,
+                  "sqrt(2)*sqrt(3) failed");
+            // Whether or not the full approximation has been reclaimed,
+            // the tree retains at least the rounded ones, and the
+            // results remain consistent.
+            check(sqrt6.cachedApproximationBytes()
+                  >= 3 * CR.max_strong_appr_bits / 8,
+                  "cachedApproximationBytes failed");
+            check(sqrt6.get_appr(-20000).subtract(appr).abs()
+                  .compareTo(BigInteger.ONE) <= 0, "recomputation failed");
+            check_eq(sqrt6, CR.valueOf(6).sqrt(), "rounded approximation failed");
+        } finally {
+            CR.approximation_cache_budget = saved_budget;
+        }
+    }
+    public void testPrecisionGrowth() {
+        double saved_growth = CR.precision_growth;
+        try {
+            long[] counts = new long[2];
+            for (int i = 0; i < 2; ++i) {
+                CR.precision_growth = (i == 0? 1.0 : 1.5);
+                CR.resetSlowApproximationCounts();
+                CR x = CR.valueOf(3).shiftRight(2).cos();
+                CR y = CR.valueOf(3).shiftRight(2).cos();
+                for (int p = -100; p >= -3000; p -= 100) {
+                    check(x.get_appr(p).subtract(y.get_appr(p)).abs()
+                          .compareTo(BigInteger.ONE) <= 0,
+                          "precision growth changed result");
+                    y = CR.valueOf(3).shiftRight(2).cos();
+                }
+                counts[i] = CR.slowApproximationEvaluations();
+                check(CR.slowApproximationRequests() >= counts[i],
+                      "slow approximation counts failed");
+            }
+            check(counts[1] < counts[0], "precision growth failed");
+        } finally {
+            CR.precision_growth = saved_growth;
+        }
+    }
+
+    public void testPrecomputedConstants() {
+        for (String name : ConstantTable.names) {
+            BigInteger entry = ConstantTable.get(name);
+            check(entry != null, name + " missing");
+            check(ConstantTable.agrees(entry, ConstantTable.definition(name)),
+                  name + " disagrees");
+        }
+        check(CR.PI.compareTo(CR.atan_PI, -10000) == 0, "precomputed pi failed");
+        // Beyond the table, approximations come from the definition.
+        CR sqrt2 = CR.precomputed("sqrt2", CR.valueOf(2).sqrt());
+        BigInteger two = sqrt2.multiply(sqrt2).get_appr(-100000);
+        check(two.subtract(BigInteger.ONE.shiftLeft(100001)).abs()
+              .compareTo(BigInteger.ONE) <= 0, "sqrt2 beyond table failed");
+        check(CR.precomputed("sqrt11", CR.ONE) == CR.ONE,
+              "unknown name failed");
+        // An entry for a different constant is ignored.
+        CR sqrt3 = CR.valueOf(3).sqrt();
+        CR mislabeled = CR.precomputed("sqrt2", sqrt3);
+        check(mislabeled.compareTo(sqrt3, -1000) == 0, "mislabeled failed");
+    }
+
+    public void testFastArithmetic() {
+        int saved_mult = fast_arithmetic.mult_threshold;
+        int saved_div = fast_arithmetic.div_threshold;
+        int saved_recip = fast_arithmetic.recip_threshold;
+        fast_arithmetic.mult_threshold = 1000;
+        fast_arithmetic.div_threshold = 1000;
+        fast_arithmetic.recip_threshold = 300;
+        try {
+            Arithmetic arith = new fast_arithmetic();
+            java.util.Random r = new java.util.Random(4711);
+            for (int i = 0; i < 50; ++i) {
+                BigInteger x = new BigInteger(1 + r.nextInt(40000), r);
+                BigInteger y = new BigInteger(1 + r.nextInt(20000), r)
+                                   .add(BigInteger.ONE);
+                if (r.nextBoolean()) x = x.negate();
+                if (r.nextBoolean()) y = y.negate();
+                check(arith.multiply(x, y).equals(x.multiply(y)),
+                      "multiply failed");
+                check(arith.square(x).equals(x.multiply(x)), "square failed");
+                check(arith.divide(x, y).equals(x.divide(y)), "divide failed");
+                // Exact multiples, where the quotient estimate may be
+                // one too large.
+                BigInteger xy = x.multiply(y);
+                check(arith.divide(xy, y).equals(x), "exact divide failed");
+            }
+            BigInteger ones = BigInteger.ONE.shiftLeft(100000)
+                                  .subtract(BigInteger.ONE);
+            check(arith.square(ones).equals(ones.multiply(ones)),
+                  "square of ones failed");
+            CR sqrt2 = CR.valueOf(2).sqrt();
+            BigInteger two = sqrt2.multiply(sqrt2).get_appr(-5000);
+            check(two.subtract(BigInteger.ONE.shiftLeft(5001)).abs()
+                  .compareTo(BigInteger.ONE) <= 0, "fast sqrt failed");
+            BigInteger pi = CR.gl_pi().get_appr(-5000);
+            check(pi.subtract(CR.atan_PI.get_appr(-5000)).abs()
+                  .compareTo(BigInteger.ONE) <= 0, "fast pi failed");
+        } finally {
+            fast_arithmetic.mult_threshold = saved_mult;
+            fast_arithmetic.div_threshold = saved_div;
+            fast_arithmetic.recip_threshold = saved_recip;
+        }
+    }
+
+    // Sum each series sequentially and in three lanes.
+    public void testParallelSeries() {
+        ForkJoinPool saved_pool = CR.series_pool;
+        int saved_bits = CR.parallel_series_bits;
+        ForkJoinPool pool = new ForkJoinPool(3);
+        CR x = CR.valueOf(3).divide(CR.valueOf(7));
+        CR small = x.shiftRight(4);
+        CR[] sequential = null;
+        try {
+            for (int i = 0; i < 2; ++i) {
+                CR.series_pool = (i == 0? null : pool);
+                CR.parallel_series_bits = 1000;
+                CR[] values = {
+                    // These sum the series directly.
+                    small.exp(),
+                    small.negate().exp(),
+                    x.cos(),
+                    x.negate().sin(),
+                    x.add(CR.ONE).simple_ln(),
+                    CR.ONE.subtract(x).simple_ln(),
+                    CR.atan_reciprocal(5),
+                    CR.atan_reciprocal(239),
+                    CR.valueOf(10).exp(),
+                    CR.valueOf(10).ln(),
+                    x.cos().add(x.sin())
+                };
+                if (i == 0) {
+                    sequential = values;
+                    continue;
+                }
+                for (int j = 0; j < values.length; ++j) {
+                    for (int p : new int[] { -1000, -1300, -4000 }) {
+                        BigInteger difference = sequential[j].get_appr(p)
+                                .subtract(values[j].get_appr(p));
+                        check(difference.abs().compareTo(BigInteger.ONE) <= 0,
+                              "parallel series " + j + " failed at " + p);
+                    }
+                }
+            }
+        } finally {
+            CR.series_pool = saved_pool;
+            CR.parallel_series_bits = saved_bits;
+            pool.shutdown();
+        }
     }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Times the power series behind exp, cos, ln and atan, summed by
+// parallel_series in 1 to availableProcessors() lanes, so that the speedup
+// can be reproduced and regressions noticed.  Timings are logged; the test
+// fails only if the lanes disagree with the sequential sum.
+
+package com.hp.creals;
+
+import android.util.Log;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import java.math.BigInteger;
+import java.util.concurrent.ForkJoinPool;
+
+public class SeriesBenchmark extends TestCase {
+    private static final String TAG = "SeriesBenchmark";
+    // Precision, in bits, of the approximations we time.
+    private static final int PREC = -20000;
+
+    private static void check(boolean x, String s) {
+        if (!x) throw new AssertionFailedError(s);
+    }
+
+    // Fresh copies of the series, so that nothing is cached between runs.
+    private static CR[] series() {
+        CR x = CR.valueOf(3).divide(CR.valueOf(7));
+        return new CR[] {
+            x.shiftRight(4).exp(),
+            x.cos(),
+            x.add(CR.ONE).simple_ln(),
+            CR.atan_reciprocal(5)
+        };
+    }
+
+    public void testLanes() {
+        ForkJoinPool saved_pool = CR.series_pool;
+        int saved_bits = CR.parallel_series_bits;
+        int processors = Runtime.getRuntime().availableProcessors();
+        BigInteger[] sequential = null;
+        long sequential_time = 0;
+        try {
+            CR.parallel_series_bits = -PREC / 2;
+            for (int m = 1; m <= processors; ++m) {
+                // A single lane is summed by the calling thread.
+                ForkJoinPool pool = (m == 1? null : new ForkJoinPool(m));
+                CR.series_pool = pool;
+                try {
+                    CR[] values = series();
+                    BigInteger[] apprs = new BigInteger[values.length];
+                    long start = System.nanoTime();
+                    for (int i = 0; i < values.length; ++i) {
+                        apprs[i] = values[i].get_appr(PREC);
+                    }
+                    long time = System.nanoTime() - start;
+                    if (m == 1) {
+                        sequential = apprs;
+                        sequential_time = time;
+                    }
+                    double speedup = (double) sequential_time / time;
+                    Log.i(TAG, m + " lanes: " + time / 1000000 + " ms, speedup "
+                          + String.format("%.2f", speedup));
+                    for (int i = 0; i < apprs.length; ++i) {
+                        check(apprs[i].subtract(sequential[i]).abs()
+                              .compareTo(BigInteger.ONE) <= 0,
+                              "series " + i + " in " + m + " lanes");
+                    }
+                } finally {
+                    if (pool != null) pool.shutdown();
+                }
+            }
+        } finally {
+            CR.series_pool = saved_pool;
+            CR.parallel_series_bits = saved_bits;
+        }
+    }
+}
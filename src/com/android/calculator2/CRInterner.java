@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import androidx.annotation.VisibleForTesting;
+
+import com.android.calculator2.expression.BoundedRational;
+import com.hp.creals.CR;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+
+/**
+ * Hash-consing for the constructive reals built by UnifiedReal.
+ * <p>
+ * Applying the same operation to the same operand objects, or converting equal rationals,
+ * returns the same CR for as long as that CR remains reachable.  Since CRs cache their
+ * approximations, identical subexpressions of different expressions, e.g. sqrt(2)*pi in
+ * several history entries, or a history result referenced by later expressions, are then
+ * evaluated only once.  Operands are compared by identity, so sharing propagates upwards from
+ * rationals and the named constants interned by UnifiedReal.
+ * <p>
+ * Results are only weakly reachable from the table.  Entries whose results have been
+ * collected are removed on the next lookup.
+ */
+final class CRInterner {
+
+    /**
+     * Share nodes as described above.  Otherwise every call builds a new CR.
+     */
+    public static volatile boolean enabled = true;
+
+    private static final int RATIONAL = 0;
+    private static final int ADD = 1;
+    private static final int MULTIPLY = 2;
+    private static final int NEGATE = 3;
+    private static final int INVERSE = 4;
+    private static final int SQRT = 5;
+    private static final int EXP = 6;
+    private static final int LN = 7;
+    private static final int SIN = 8;
+    private static final int COS = 9;
+    private static final int ASIN = 10;
+    private static final int ATAN = 11;
+
+    // An operation applied to operands.  The operand of RATIONAL is a BoundedRational, compared
+    // by value.  All other operands are CRs, compared by identity.  The operands of commutative
+    // operations are ordered by identity hash code, so that a + b and b + a share a node.
+    private static final class Key {
+        final int mOp;
+        final Object mFirst;
+        final Object mSecond;
+
+        Key(int op, Object first, Object second) {
+            if (second != null
+                    && System.identityHashCode(second) < System.identityHashCode(first)) {
+                final Object tmp = first;
+                first = second;
+                second = tmp;
+            }
+            mOp = op;
+            mFirst = first;
+            mSecond = second;
+        }
+
+        @Override
+        public int hashCode() {
+            final int first = mOp == RATIONAL ? mFirst.hashCode() : System.identityHashCode(mFirst);
+            return (mOp * 31 + first) * 31 + System.identityHashCode(mSecond);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key k = (Key) o;
+            return mOp == k.mOp && mSecond == k.mSecond
+                    && (mOp == RATIONAL ? mFirst.equals(k.mFirst) : mFirst == k.mFirst);
+        }
+    }
+
+    // A table entry, which remembers its key so that it can be removed once the CR is gone.
+    private static final class Entry extends WeakReference<CR> {
+        final Key mKey;
+
+        Entry(Key key, CR cr, ReferenceQueue<CR> queue) {
+            super(cr, queue);
+            mKey = key;
+        }
+    }
+
+    // Both protected by the CRInterner class lock.  Keys hold their operands strongly, but so does
+    // the CR they map to, as long as it is alive.
+    private static final HashMap<Key, Entry> sTable = new HashMap<Key, Entry>();
+    private static final ReferenceQueue<CR> sCollected = new ReferenceQueue<CR>();
+
+    private CRInterner() {
+    }
+
+    private static synchronized CR lookup(Key key) {
+        purge();
+        final Entry entry = sTable.get(key);
+        return entry == null ? null : entry.get();
+    }
+
+    /**
+     * Record cr as the value of key, unless another thread got there first.  Return the
+     * recorded value.
+     */
+    private static synchronized CR insert(Key key, CR cr) {
+        final Entry entry = sTable.get(key);
+        final CR previous = entry == null ? null : entry.get();
+        if (previous != null) {
+            return previous;
+        }
+        sTable.put(key, new Entry(key, cr, sCollected));
+        return cr;
+    }
+
+    /**
+     * Return the number of entries whose results have not been collected.
+     */
+    @VisibleForTesting
+    static synchronized int size() {
+        purge();
+        return sTable.size();
+    }
+
+    private static void purge() {
+        Entry entry;
+        while ((entry = (Entry) sCollected.poll()) != null) {
+            // The key may since have been reused for a new entry.
+            if (sTable.get(entry.mKey) == entry) {
+                sTable.remove(entry.mKey);
+            }
+        }
+    }
+
+    private static CR build(int op, Object first, Object second) {
+        switch (op) {
+            case RATIONAL:
+                return ((BoundedRational) first).crValue();
+            case ADD:
+                return ((CR) first).add((CR) second);
+            case MULTIPLY:
+                return ((CR) first).multiply((CR) second);
+            case NEGATE:
+                return ((CR) first).negate();
+            case INVERSE:
+                return ((CR) first).inverse();
+            case SQRT:
+                return ((CR) first).sqrt();
+            case EXP:
+                return ((CR) first).exp();
+            case LN:
+                return ((CR) first).ln();
+            case SIN:
+                return ((CR) first).sin();
+            case COS:
+                return ((CR) first).cos();
+            case ASIN:
+                return ((CR) first).asin();
+            case ATAN:
+                return ((CR) first).atan();
+            default:
+                throw new AssertionError("Unknown operation " + op);
+        }
+    }
+
+    private static CR apply(int op, Object first, Object second) {
+        if (!enabled) {
+            return build(op, first, second);
+        }
+        final Key key = new Key(op, first, second);
+        final CR result = lookup(key);
+        if (result != null) {
+            return result;
+        }
+        // Some constructors look at approximations of their argument, so build the node without
+        // holding the lock.
+        return insert(key, build(op, first, second));
+    }
+
+    public static CR valueOf(BoundedRational r) {
+        return apply(RATIONAL, r, null);
+    }
+
+    public static CR add(CR x, CR y) {
+        return apply(ADD, x, y);
+    }
+
+    public static CR multiply(CR x, CR y) {
+        return apply(MULTIPLY, x, y);
+    }
+
+    public static CR negate(CR x) {
+        return apply(NEGATE, x, null);
+    }
+
+    public static CR inverse(CR x) {
+        return apply(INVERSE, x, null);
+    }
+
+    public static CR sqrt(CR x) {
+        return apply(SQRT, x, null);
+    }
+
+    public static CR exp(CR x) {
+        return apply(EXP, x, null);
+    }
+
+    public static CR ln(CR x) {
+        return apply(LN, x, null);
+    }
+
+    public static CR sin(CR x) {
+        return apply(SIN, x, null);
+    }
+
+    public static CR cos(CR x) {
+        return apply(COS, x, null);
+    }
+
+    public static CR asin(CR x) {
+        return apply(ASIN, x, null);
+    }
+
+    public static CR atan(CR x) {
+        return apply(ATAN, x, null);
+    }
+}
@@ -33,6 +33,7 @@ import android.animation.ObjectAnimator;
 import android.animation.PropertyValuesHolder;
 import android.app.ActionBar;
 import android.app.Activity;
+import android.app.AlertDialog;
 import android.app.Fragment;
 import android.app.FragmentManager;
 import android.app.FragmentTransaction;
@@ -44,6 +45,7 @@ import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.graphics.Color;
 import android.graphics.Rect;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
@@ -58,6 +60,7 @@ import android.util.Property;
 import android.view.ActionMode;
 import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
+import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.MotionEvent;
@@ -70,6 +73,7 @@ import android.view.animation.AccelerateDecelerateInterpolator;
 import android.widget.HorizontalScrollView;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
@@ -79,6 +83,7 @@ import androidx.gridlayout.widget.GridLayout;
 import androidx.viewpager.widget.ViewPager;
 
 import com.android.calculator2.expression.Evaluator;
+import com.android.calculator2.expression.PasteTokenizer;
 import com.android.calculator2.fragment.AlertDialogFragment;
 import com.android.calculator2.fragment.HistoryFragment;
 import com.android.calculator2.theme.WallpaperColorInfo;
@@ -238,7 +243,7 @@ public class CalculatorActivity extends Activity
                         //} else {
                         //  addChars(item.coerceToText(CalculatorActivity.this).toString(), false);
                         //}
-                        addChars(item.coerceToText(CalculatorActivity.this).toString(), false);
+                        pasteChars(item.coerceToText(CalculatorActivity.this).toString());
                     } else {
                         removeAndAddCharAtCursorSelection(item.coerceToText(CalculatorActivity.this).toString());
                     }
@@ -324,6 +329,12 @@ public class CalculatorActivity extends Activity
     // been added to the underlying expression.
     private String mUnprocessedChars = null;
 
+    // Pasted text at least this long is converted to tokens in the background.
+    private static final int BACKGROUND_PASTE_LENGTH = 2000;
+
+    // Conversion of long pasted text in progress, or null.
+    private PasteTask mPasteTask = null;
+
     // Color to highlight unprocessed characters from physical keyboard.
     // TODO: should probably match this to the error color?
     private ForegroundColorSpan mUnprocessedColorSpan = new ForegroundColorSpan(Color.RED);
@@ -746,6 +757,9 @@ public class CalculatorActivity extends Activity
 
     @Override
     protected void onDestroy() {
+        if (mPasteTask != null) {
+            mPasteTask.abandon();
+        }
         mDragLayout.removeDragCallback(this);
         if (!isQAndAbove()) {
             WallpaperColorInfo wallpaperColorInfo = WallpaperColorInfo.getInstance(this);
@@ -1835,6 +1849,132 @@ public class CalculatorActivity extends Activity
         showOrHideToolbar();
     }
 
+    /**
+     * Add pasted characters to the end of the expression, as addChars(moreChars, false) does.
+     * Long text is converted in the background, and the formula is updated once at the end.
+     */
+    private void pasteChars(String moreChars) {
+        if (mPasteTask != null) {
+            // The progress dialog should prevent this.
+            return;
+        }
+        if (moreChars.length() < BACKGROUND_PASTE_LENGTH) {
+            addChars(moreChars, false);
+            return;
+        }
+        if (mUnprocessedChars != null) {
+            moreChars = mUnprocessedChars + moreChars;
+        }
+        // As in addKeyToExpr().
+        if (mCurrentState == CalculatorState.ERROR) {
+            setState(CalculatorState.INPUT);
+        } else if (mCurrentState == CalculatorState.RESULT) {
+            switchToInput(KeyMaps.keyForChar(moreChars.charAt(0)));
+        }
+        mPasteTask = new PasteTask(new PasteTokenizer(KeyMaps.getInputMap(),
+                mEvaluator.getExpr(Evaluator.MAIN_INDEX), moreChars));
+        mPasteTask.execute();
+    }
+
+    /**
+     * Convert long pasted text in the background, displaying progress in a cancellable dialog.
+     * The main expression is replaced only once conversion is complete.
+     */
+    private class PasteTask extends AsyncTask<Void, Integer, Boolean>
+            implements PasteTokenizer.ProgressListener, DialogInterface.OnCancelListener {
+        private final PasteTokenizer mTokenizer;
+        private AlertDialog mDialog;
+        private ProgressBar mProgressBar;
+
+        PasteTask(PasteTokenizer tokenizer) {
+            mTokenizer = tokenizer;
+        }
+
+        @Override
+        protected void onPreExecute() {
+            final AlertDialog.Builder builder =
+                    new AlertDialog.Builder(CalculatorActivity.this, R.style.DialogStyle);
+            mProgressBar = (ProgressBar) LayoutInflater.from(builder.getContext()).inflate(
+                    R.layout.dialog_progress, null /* root */);
+            builder.setMessage(R.string.pasting);
+            builder.setView(mProgressBar);
+            builder.setOnCancelListener(this);
+            builder.setNegativeButton(android.R.string.cancel,
+                    new DialogInterface.OnClickListener() {
+                        @Override
+                        public void onClick(DialogInterface dialog, int which) {
+                            dialog.cancel();
+                        }
+                    });
+            mDialog = builder.create();
+            mDialog.setCanceledOnTouchOutside(false);
+            mDialog.show();
+        }
+
+        @Override
+        protected Boolean doInBackground(Void... nothing) {
+            return mTokenizer.run(this);
+        }
+
+        @Override
+        public boolean onProgress(int processed, int total) {
+            // Runs in background thread.
+            if (isCancelled()) {
+                return false;
+            }
+            publishProgress((int) (100L * processed / total));
+            return true;
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... percent) {
+            mProgressBar.setProgress(percent[0]);
+        }
+
+        @Override
+        public void onCancel(DialogInterface dialog) {
+            cancel(false);
+        }
+
+        @Override
+        protected void onPostExecute(Boolean complete) {
+            mDialog.dismiss();
+            mPasteTask = null;
+            if (complete) {
+                mEvaluator.replaceMain(mTokenizer.getExpr());
+                mUnprocessedChars = mTokenizer.getUnprocessed();
+                final int lastKey = mTokenizer.getLastKey();
+                if (lastKey != View.NO_ID) {
+                    mCurrentButton = findViewById(lastKey);
+                }
+            }
+            redisplayAfterFormulaChange();
+            showOrHideToolbar();
+        }
+
+        @Override
+        protected void onCancelled(Boolean complete) {
+            mDialog.dismiss();
+            if (mPasteTask != this) {
+                // Abandoned.
+                return;
+            }
+            mPasteTask = null;
+            // The expression is unchanged, but may have been cleared when leaving RESULT state.
+            redisplayAfterFormulaChange();
+            showOrHideToolbar();
+        }
+
+        /**
+         * Stop conversion without touching the expression or the display.
+         */
+        void abandon() {
+            cancel(false);
+            mDialog.dismiss();
+            mPasteTask = null;
+        }
+    }
+
     /**
      * Add text at current cursor
      *
@@ -19,9 +19,16 @@ package com.android.calculator2;
 import com.android.calculator2.expression.BoundedRational;
 import com.android.calculator2.util.StringUtils;
 import com.hp.creals.CR;
-import com.hp.creals.UnaryCRFunction;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Computable real numbers, represented so that we can get exact decidable comparisons
@@ -50,6 +57,19 @@ public class UnifiedReal {
     // irrational, etc.  This sometimes happens even if mCrFactor is not one of the known ones.
     // And exact comparisons between rationals and known irrationals are decidable.
 
+    // If non-null, the number is really the sum of mTermRats[i] * mTermCrs[i], where the
+    // mTermCrs[i] are distinct named constructive reals, and no mTermRats[i] is zero.  There are
+    // always at least two terms.  Logarithms of composite numbers are expanded into logarithms
+    // of primes, so that the terms are as independent as we can make them.
+    // In this case mRatFactor is ONE and mCrFactor is the corresponding sum, so that code that
+    // doesn't know about terms still sees the correct value.
+    private final BoundedRational[] mTermRats;
+    private final CR[] mTermCrs;
+
+    // The maximum number of terms we are willing to track symbolically.  Beyond that we revert
+    // to an opaque constructive real.
+    private static final int MAX_TERMS = 16;
+
     /**
      * Perform some nontrivial consistency checks.
      *
@@ -70,6 +90,25 @@ public class UnifiedReal {
         // We don't normally traffic in null CRs, and hence don't test explicitly.
         mCrFactor = cr;
         mRatFactor = rat;
+        mTermRats = null;
+        mTermCrs = null;
+    }
+
+    /**
+     * Build a sum of terms.  The arguments are owned by the new object, and must satisfy the
+     * constraints described for mTermRats and mTermCrs.
+     */
+    private UnifiedReal(BoundedRational[] rats, CR[] crs) {
+        CR sum = null;
+        for (int i = 0; i < crs.length; ++i) {
+            final CR rat = CRInterner.valueOf(rats[i]);
+            final CR term = crs[i] == CR_ONE ? rat : CRInterner.multiply(rat, crs[i]);
+            sum = (sum == null ? term : CRInterner.add(sum, term));
+        }
+        mRatFactor = BoundedRational.ONE;
+        mCrFactor = sum;
+        mTermRats = rats;
+        mTermCrs = crs;
     }
 
     public UnifiedReal(CR cr) {
@@ -106,53 +145,212 @@ public class UnifiedReal {
     }
 
     // Various helpful constants
-    private final static BigInteger BIG_24 = BigInteger.valueOf(24);
     private final static int DEFAULT_COMPARE_TOLERANCE = -1000;
 
+    // Square roots of square-free integers and natural logarithms of primes that we recognize.
+    // These are created on demand and interned, so that all instances of, for example,
+    // sqrt(15) share a single constructive real.  That allows us to recognize them, and
+    // to reuse previously computed approximations across expressions.  Those with entries in
+    // CR's table of precomputed constants start out with 65536 bits available.  We bound the
+    // table sizes, and simply stop recognizing new values once they are full.
+    private static final int MAX_INTERNED = 500;
+    // Largest radicand or logarithm argument we intern.
+    private static final long MAX_INTERNED_ARG = Integer.MAX_VALUE;
+    // The maps are read without locking, so that evaluations on different threads don't
+    // serialize on isNamed().  Entries are only added, with the UnifiedReal class lock held,
+    // and to the map from CRs first, so that any thread that finds an interned CR can also
+    // recognize it.  CR does not override equals(), so CR keys are compared by identity.
+    private static final ConcurrentHashMap<Long, CR> sSqrts = new ConcurrentHashMap<Long, CR>();
+    private static final ConcurrentHashMap<Long, CR> sLogs = new ConcurrentHashMap<Long, CR>();
+    private static final ConcurrentHashMap<CR, Long> sRadicands =
+            new ConcurrentHashMap<CR, Long>();
+    private static final ConcurrentHashMap<CR, Long> sLogArgs = new ConcurrentHashMap<CR, Long>();
+
+    /**
+     * Return the unique constructive real sqrt(n), for square-free n > 1.
+     * Return null if the table is full.
+     */
+    private static CR internSqrt(long n) {
+        final CR result = sSqrts.get(n);
+        return result != null ? result : addSqrt(n);
+    }
+
+    private static synchronized CR addSqrt(long n) {
+        CR result = sSqrts.get(n);
+        if (result == null) {
+            if (sSqrts.size() >= MAX_INTERNED || n > MAX_INTERNED_ARG) {
+                return null;
+            }
+            result = CR.precomputed("sqrt" + n, CR.valueOf(n).sqrt());
+            sRadicands.put(result, n);
+            sSqrts.put(n, result);
+        }
+        return result;
+    }
+
+    /**
+     * Return the unique constructive real ln(p), for prime p.
+     * Return null if the table is full.
+     */
+    private static CR internLn(long p) {
+        final CR result = sLogs.get(p);
+        return result != null ? result : addLn(p);
+    }
+
+    private static synchronized CR addLn(long p) {
+        CR result = sLogs.get(p);
+        if (result == null) {
+            if (sLogs.size() >= MAX_INTERNED || p > MAX_INTERNED_ARG) {
+                return null;
+            }
+            result = CR.precomputed("ln" + p, primeLn(p));
+            sLogArgs.put(result, p);
+            sLogs.put(p, result);
+        }
+        return result;
+    }
+
+    // Logarithms of ratios close to one, which can be evaluated quickly, and from which we
+    // compute ln(2), ln(3) and ln(5), as CR does for ln(2).
+    private static final CR LN_10_9 = lnRatio(10, 9);
+    private static final CR LN_25_24 = lnRatio(25, 24);
+    private static final CR LN_81_80 = lnRatio(81, 80);
+
+    private static CR lnRatio(long n, long d) {
+        return CR.valueOf(n).divide(CR.valueOf(d)).ln();
+    }
+
+    /**
+     * Return sum of coeffs[i] * crs[i].
+     */
+    private static CR linearCombination(long[] coeffs, CR[] crs) {
+        CR result = CR.valueOf(coeffs[0]).multiply(crs[0]);
+        for (int i = 1; i < crs.length; ++i) {
+            result = result.add(CR.valueOf(coeffs[i]).multiply(crs[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Return a constructive real for ln(p), p prime, that shares as much work as possible with
+     * the logarithms of smaller primes.  Called with the class lock held.
+     * We express ln(p) in terms of those, plus the logarithm of a ratio close to one, which
+     * is computed by a rapidly converging series:
+     * ln(p) = (ln(p - 1) + ln(p + 1) + ln(p^2 / (p^2 - 1))) / 2,
+     * where p - 1 and p + 1 have only smaller prime factors.
+     */
+    private static CR primeLn(long p) {
+        if (p == 2) {
+            return linearCombination(new long[] {7, -2, 3},
+                    new CR[] {LN_10_9, LN_25_24, LN_81_80});
+        } else if (p == 3) {
+            return linearCombination(new long[] {11, -3, 5},
+                    new CR[] {LN_10_9, LN_25_24, LN_81_80});
+        } else if (p == 5) {
+            return linearCombination(new long[] {16, -4, 7},
+                    new CR[] {LN_10_9, LN_25_24, LN_81_80});
+        }
+        final BigInteger bigP = BigInteger.valueOf(p);
+        final BigInteger pSquared = bigP.multiply(bigP);
+        CR result = CR.valueOf(pSquared).divide(CR.valueOf(pSquared.subtract(BigInteger.ONE))).ln();
+        for (BigInteger neighbor : new BigInteger[] {bigP.subtract(BigInteger.ONE),
+                bigP.add(BigInteger.ONE)}) {
+            final ArrayList<Long> primes = new ArrayList<Long>();
+            final ArrayList<Integer> exponents = new ArrayList<Integer>();
+            if (!factor(neighbor, primes, exponents).equals(BigInteger.ONE)) {
+                return CR.valueOf(p).ln();
+            }
+            for (int i = 0; i < primes.size(); ++i) {
+                final CR ln = internLn(primes.get(i));
+                if (ln == null) {
+                    return CR.valueOf(p).ln();
+                }
+                result = result.add(CR.valueOf(exponents.get(i)).multiply(ln));
+            }
+        }
+        return result.shiftRight(1);
+    }
+
+    private static Long radicand(CR cr) {
+        return sRadicands.get(cr);
+    }
+
+    private static Long logArg(CR cr) {
+        return sLogArgs.get(cr);
+    }
+
+    // In order to express sines and cosines of multiples of pi/120 exactly, we also name
+    // products sqrt(n) * sqrt(5 + sqrt(5))^a * sqrt(2 + sqrt(2))^b, with n square-free and
+    // a, b in {0, 1}.  These are linearly independent over the rationals, even together with the
+    // ordinary square roots.  (Q(sqrt(5 + sqrt(5))) and Q(sqrt(2 + sqrt(2))) are cyclic quartic
+    // extensions, and thus don't lie in the field generated by all square roots.  Their
+    // compositum has Galois group C4 x C4, and intersects that field in Q(sqrt(2), sqrt(5)).)
+    // We identify such a "monomial" by the key 4 * n + flags, where flags includes NESTED_5 if
+    // a = 1, and NESTED_2 if b = 1.  Ordinary square roots have keys 4 * n.
+    private static final int NESTED_5 = 1;
+    private static final int NESTED_2 = 2;
+    // Maintained like sSqrts and sRadicands.
+    private static final ConcurrentHashMap<Long, CR> sNestedRadicals =
+            new ConcurrentHashMap<Long, CR>();
+    private static final ConcurrentHashMap<CR, Long> sNestedKeys =
+            new ConcurrentHashMap<CR, Long>();
+
+    /**
+     * Return the unique constructive real for the monomial with radicand n, n square-free, and
+     * the given flags.  Return null if the table is full.
+     */
+    private static CR internMonomial(long n, int flags) {
+        if (flags == 0) {
+            return n == 1 ? CR_ONE : internSqrt(n);
+        }
+        final CR result = sNestedRadicals.get(4 * n + flags);
+        return result != null ? result : addMonomial(n, flags);
+    }
+
+    private static synchronized CR addMonomial(long n, int flags) {
+        final long key = 4 * n + flags;
+        CR result = sNestedRadicals.get(key);
+        if (result == null) {
+            if (sNestedRadicals.size() >= MAX_INTERNED || n > MAX_INTERNED_ARG) {
+                return null;
+            }
+            if (n == 1 && flags == NESTED_5) {
+                result = CR.valueOf(5).add(internSqrt(5)).sqrt();
+            } else if (n == 1 && flags == NESTED_2) {
+                result = CR.valueOf(2).add(internSqrt(2)).sqrt();
+            } else {
+                final CR sqrt = internMonomial(n, 0);
+                final CR nested5 = (flags & NESTED_5) != 0 ? internMonomial(1, NESTED_5) : CR_ONE;
+                final CR nested2 = (flags & NESTED_2) != 0 ? internMonomial(1, NESTED_2) : CR_ONE;
+                if (sqrt == null || nested5 == null || nested2 == null) {
+                    return null;
+                }
+                result = sqrt.multiply(nested5).multiply(nested2);
+            }
+            sNestedKeys.put(result, key);
+            sNestedRadicals.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Return the monomial key for cr, or null if cr is not a known algebraic monomial.
+     */
+    private static Long monomialKey(CR cr) {
+        if (cr == CR_ONE) {
+            return 4L;
+        }
+        final Long n = sRadicands.get(cr);
+        if (n != null) {
+            return 4 * n;
+        }
+        return sNestedKeys.get(cr);
+    }
+
     // Well-known CR constants we try to use in the mCrFactor position:
     private final static CR CR_ONE = CR.ONE;
     private final static CR CR_PI = CR.PI;
-    private final static CR CR_E = CR.ONE.exp();
-    private final static CR CR_SQRT2 = CR.valueOf(2).sqrt();
-    private final static CR CR_SQRT3 = CR.valueOf(3).sqrt();
-    private final static CR CR_LN2 = CR.valueOf(2).ln();
-    private final static CR CR_LN3 = CR.valueOf(3).ln();
-    private final static CR CR_LN5 = CR.valueOf(5).ln();
-    private final static CR CR_LN6 = CR.valueOf(6).ln();
-    private final static CR CR_LN7 = CR.valueOf(7).ln();
-    private final static CR CR_LN10 = CR.valueOf(10).ln();
-
-    // Square roots that we try to recognize.
-    // We currently recognize only a small fixed collection, since the sqrt() function needs to
-    // identify numbers of the form <SQRT[i]>*n^2, and we don't otherwise know of a good
-    // algorithm for that.
-    private final static CR sSqrts[] = {
-            null,
-            CR.ONE,
-            CR_SQRT2,
-            CR_SQRT3,
-            null,
-            CR.valueOf(5).sqrt(),
-            CR.valueOf(6).sqrt(),
-            CR.valueOf(7).sqrt(),
-            null,
-            null,
-            CR.valueOf(10).sqrt()};
-
-    // Natural logs of small integers that we try to recognize.
-    private final static CR sLogs[] = {
-            null,
-            null,
-            CR_LN2,
-            CR_LN3,
-            null,
-            CR_LN5,
-            CR_LN6,
-            CR_LN7,
-            null,
-            null,
-            CR_LN10};
-
+    private final static CR CR_E = CR.precomputed("e", CR.ONE.exp());
 
     // Some convenient UnifiedReal constants.
     public static final UnifiedReal PI = new UnifiedReal(CR_PI);
@@ -168,44 +366,34 @@ public class UnifiedReal {
     public static final UnifiedReal RADIANS_PER_DEGREE
             = new UnifiedReal(new BoundedRational(1, 180), CR_PI);
     private static final UnifiedReal SIX = new UnifiedReal(6);
-    private static final UnifiedReal HALF_SQRT2 = new UnifiedReal(BoundedRational.HALF, CR_SQRT2);
-    private static final UnifiedReal SQRT3 = new UnifiedReal(CR_SQRT3);
-    private static final UnifiedReal HALF_SQRT3 = new UnifiedReal(BoundedRational.HALF, CR_SQRT3);
-    private static final UnifiedReal THIRD_SQRT3 = new UnifiedReal(BoundedRational.THIRD, CR_SQRT3);
+    private static final UnifiedReal FIVE_PLUS_SQRT5 =
+            new UnifiedReal(5).add(new UnifiedReal(5).sqrt());
+    private static final UnifiedReal TWO_PLUS_SQRT2 = TWO.add(TWO.sqrt());
     private static final UnifiedReal PI_OVER_2 = new UnifiedReal(BoundedRational.HALF, CR_PI);
-    private static final UnifiedReal PI_OVER_3 = new UnifiedReal(BoundedRational.THIRD, CR_PI);
     private static final UnifiedReal PI_OVER_4 = new UnifiedReal(BoundedRational.QUARTER, CR_PI);
-    private static final UnifiedReal PI_OVER_6 = new UnifiedReal(BoundedRational.SIXTH, CR_PI);
 
 
     /**
      * Given a constructive real cr, try to determine whether cr is the square root of
-     * a small integer.  If so, return its square as a BoundedRational.  Otherwise return null.
-     * We make this determination by simple table lookup, so spurious null returns are
-     * entirely possible, or even likely.
+     * a square-free integer.  If so, return its square as a BoundedRational.  Otherwise return
+     * null.  We make this determination by table lookup, so spurious null returns are possible.
      */
     private static BoundedRational getSquare(CR cr) {
-        for (int i = 0; i < sSqrts.length; ++i) {
-            if (sSqrts[i] == cr) {
-                return new BoundedRational(i);
-            }
+        if (cr == CR_ONE) {
+            return BoundedRational.ONE;
         }
-        return null;
+        final Long n = radicand(cr);
+        return n == null ? null : new BoundedRational(n);
     }
 
     /**
-     * Given a constructive real cr, try to determine whether cr is the logarithm of a small
-     * integer.  If so, return exp(cr) as a BoundedRational.  Otherwise return null.
-     * We make this determination by simple table lookup, so spurious null returns are
-     * entirely possible, or even likely.
+     * Given a constructive real cr, try to determine whether cr is the logarithm of a prime.
+     * If so, return exp(cr) as a BoundedRational.  Otherwise return null.
+     * We make this determination by table lookup, so spurious null returns are possible.
      */
     private BoundedRational getExp(CR cr) {
-        for (int i = 0; i < sLogs.length; ++i) {
-            if (sLogs[i] == cr) {
-                return new BoundedRational(i);
-            }
-        }
-        return null;
+        final Long p = logArg(cr);
+        return p == null ? null : new BoundedRational(p);
     }
 
     /**
@@ -226,15 +414,20 @@ public class UnifiedReal {
         if (cr == CR_E) {
             return "e";
         }
-        for (int i = 0; i < sSqrts.length; ++i) {
-            if (cr == sSqrts[i]) {
-                return "\u221A" /* SQUARE ROOT */ + i;
-            }
+        final Long n = radicand(cr);
+        if (n != null) {
+            return "\u221A" /* SQUARE ROOT */ + n;
         }
-        for (int i = 0; i < sLogs.length; ++i) {
-            if (cr == sLogs[i]) {
-                return "ln(" + i + ")";
-            }
+        final Long p = logArg(cr);
+        if (p != null) {
+            return "ln(" + p + ")";
+        }
+        final Long key = monomialKey(cr);
+        if (key != null) {
+            final long radicand = key >> 2;
+            return (radicand == 1 ? "" : "\u221A" + radicand)
+                    + ((key & NESTED_5) != 0 ? "\u221A(5+\u221A5)" : "")
+                    + ((key & NESTED_2) != 0 ? "\u221A(2+\u221A2)" : "");
         }
         return null;
     }
@@ -246,17 +439,7 @@ public class UnifiedReal {
         if (cr == CR_ONE || cr == CR_PI || cr == CR_E) {
             return true;
         }
-        for (CR r : sSqrts) {
-            if (cr == r) {
-                return true;
-            }
-        }
-        for (CR r : sLogs) {
-            if (cr == r) {
-                return true;
-            }
-        }
-        return false;
+        return logArg(cr) != null || monomialKey(cr) != null;
     }
 
     /**
@@ -265,7 +448,7 @@ public class UnifiedReal {
      * constructive reals.
      */
     private static boolean definitelyAlgebraic(CR cr) {
-        return cr == CR_ONE || getSquare(cr) != null;
+        return monomialKey(cr) != null;
     }
 
     /**
@@ -281,6 +464,10 @@ public class UnifiedReal {
      * could cover many more cases.  Whether that matters in practice is TBD.
      */
     public boolean definitelyIrrational() {
+        if (mTermCrs != null) {
+            // There are at least two terms, and thus at least one irrational one.
+            return definitelyIndependent(mTermCrs);
+        }
         return !definitelyRational() && isNamed(mCrFactor);
     }
 
@@ -288,6 +475,14 @@ public class UnifiedReal {
      * Is this number known to be algebraic?
      */
     public boolean definitelyAlgebraic() {
+        if (mTermCrs != null) {
+            for (CR cr : mTermCrs) {
+                if (!definitelyAlgebraic(cr)) {
+                    return false;
+                }
+            }
+            return true;
+        }
         return definitelyAlgebraic(mCrFactor) || mRatFactor.signum() == 0;
     }
 
@@ -295,6 +490,11 @@ public class UnifiedReal {
      * Is this number known to be transcendental?
      */
     public boolean definitelyTranscendental() {
+        if (mTermCrs != null) {
+            // A nonzero rational multiple of a transcendental term plus an independent
+            // algebraic remainder is transcendental.
+            return !definitelyAlgebraic() && definitelyIndependent(mTermCrs);
+        }
         return !definitelyAlgebraic() && isNamed(mCrFactor);
     }
 
@@ -339,11 +539,309 @@ public class UnifiedReal {
         return isNamed(r1) && isNamed(r2);
     }
 
+    /**
+     * Return a rank for a named constructive real, used to order the terms of a sum.
+     * Rational terms come first, then square roots, pi, e, and logarithms.
+     */
+    private static long termRank(CR cr) {
+        if (cr == CR_ONE) {
+            return 0;
+        }
+        final Long key = monomialKey(cr);
+        if (key != null) {
+            // Order by flags, then radicand.
+            return ((key & 3) << 34) + (key >> 2);
+        }
+        if (cr == CR_PI) {
+            return 1L << 40;
+        }
+        if (cr == CR_E) {
+            return (1L << 40) + 1;
+        }
+        final Long p = logArg(cr);
+        if (p != null) {
+            return (1L << 41) + p;
+        }
+        throw new AssertionError("termRank: unnamed CR");
+    }
+
+    /**
+     * Are the named constructive reals in crs, which are assumed to be distinct, known to be
+     * linearly independent over the rationals?  If so, a sum of rational multiples of them
+     * is zero only if all the rational coefficients are zero.
+     */
+    private static boolean definitelyIndependent(CR[] crs) {
+        // Square roots of distinct square-free integers are linearly independent over the
+        // rationals.  By Baker's theorem, 1, pi and the logarithms of distinct primes are
+        // linearly independent over the algebraic numbers.  (Consider log(-1) = i*pi.)
+        // Thus any algebraic combination of those is also independent of the others.
+        // Since e is transcendental, it is independent of algebraic numbers.  But we don't
+        // know anything useful about the relationship between e and pi or logarithms.
+        // We only name logarithms of primes, so the logarithms are independent of each other.
+        boolean hasE = false;
+        boolean hasPiOrLog = false;
+        for (CR cr : crs) {
+            if (cr == CR_E) {
+                hasE = true;
+            } else if (!definitelyAlgebraic(cr)) {
+                hasPiOrLog = true;
+            }
+        }
+        return !(hasE && hasPiOrLog);
+    }
+
+    /**
+     * A mutable sum of rational multiples of named constructive reals.
+     * Used to build sums, which are then converted back to UnifiedReals.
+     */
+    private static final class TermList {
+        private final ArrayList<BoundedRational> mRats = new ArrayList<BoundedRational>();
+        private final ArrayList<CR> mCrs = new ArrayList<CR>();
+
+        /**
+         * Add r * cr, where cr is named.  Return false if the rational arithmetic failed.
+         */
+        boolean add(BoundedRational r, CR cr) {
+            for (int i = 0; i < mCrs.size(); ++i) {
+                if (mCrs.get(i) == cr) {
+                    final BoundedRational sum = BoundedRational.add(mRats.get(i), r);
+                    if (sum == null) {
+                        return false;
+                    }
+                    mRats.set(i, sum);
+                    return true;
+                }
+            }
+            if (r == null) {
+                return false;
+            }
+            mRats.add(r);
+            mCrs.add(cr);
+            return true;
+        }
+
+        /**
+         * Add scale * u.  Return false if u is not known to be a sum of named constructive reals,
+         * or if the rational arithmetic failed.
+         */
+        boolean add(BoundedRational scale, UnifiedReal u) {
+            if (u.mTermCrs != null) {
+                for (int i = 0; i < u.mTermCrs.length; ++i) {
+                    if (!add(BoundedRational.multiply(scale, u.mTermRats[i]), u.mTermCrs[i])) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            if (u.mRatFactor.signum() == 0) {
+                return true;
+            }
+            if (!isNamed(u.mCrFactor)) {
+                return false;
+            }
+            return add(BoundedRational.multiply(scale, u.mRatFactor), u.mCrFactor);
+        }
+
+        /**
+         * Return the corresponding UnifiedReal, or null if there are too many terms.
+         */
+        UnifiedReal toUnifiedReal() {
+            int n = 0;
+            final BoundedRational[] rats = new BoundedRational[mRats.size()];
+            final CR[] crs = new CR[mCrs.size()];
+            for (int i = 0; i < mCrs.size(); ++i) {
+                final BoundedRational r = mRats.get(i);
+                if (r.signum() == 0) {
+                    continue;
+                }
+                // Insert in rank order.
+                final CR cr = mCrs.get(i);
+                final long rank = termRank(cr);
+                int j = n;
+                while (j > 0 && termRank(crs[j - 1]) > rank) {
+                    rats[j] = rats[j - 1];
+                    crs[j] = crs[j - 1];
+                    --j;
+                }
+                rats[j] = r;
+                crs[j] = cr;
+                ++n;
+            }
+            if (n == 0) {
+                return ZERO;
+            }
+            if (n == 1) {
+                return new UnifiedReal(rats[0], crs[0]);
+            }
+            if (n > MAX_TERMS) {
+                return null;
+            }
+            final BoundedRational[] resultRats = new BoundedRational[n];
+            final CR[] resultCrs = new CR[n];
+            System.arraycopy(rats, 0, resultRats, 0, n);
+            System.arraycopy(crs, 0, resultCrs, 0, n);
+            return new UnifiedReal(resultRats, resultCrs);
+        }
+    }
+
+    /**
+     * Return scale1 * u1 + scale2 * u2 as a sum of named terms, or null if either is not known
+     * to be such a sum, or if the result would be too complicated.
+     */
+    private static UnifiedReal addTerms(BoundedRational scale1, UnifiedReal u1,
+            BoundedRational scale2, UnifiedReal u2) {
+        final TermList terms = new TermList();
+        if (!terms.add(scale1, u1) || !terms.add(scale2, u2)) {
+            return null;
+        }
+        return terms.toUnifiedReal();
+    }
+
+    /**
+     * Return this - u, if it can be computed exactly as a sum of named terms and that sum
+     * is known to be either zero or nonzero.  Otherwise return null.
+     * Performs no approximate evaluation.
+     */
+    private UnifiedReal decidableDifference(UnifiedReal u) {
+        final UnifiedReal diff = addTerms(BoundedRational.ONE, this, BoundedRational.MINUS_ONE, u);
+        if (diff != null && (diff.definitelyZero() || diff.definitelyNonZero())) {
+            return diff;
+        }
+        return null;
+    }
+
+    /**
+     * Return the product of two named constructive reals as a UnifiedReal with either a named
+     * mCrFactor or terms, or null if we can't express it that way.
+     */
+    private static UnifiedReal multiplyNamed(CR r1, CR r2) {
+        if (r1 == CR_ONE) {
+            return new UnifiedReal(r2);
+        }
+        if (r2 == CR_ONE) {
+            return new UnifiedReal(r1);
+        }
+        final Long key1 = monomialKey(r1);
+        final Long key2 = monomialKey(r2);
+        if (key1 != null && key2 != null) {
+            // sqrt(n1) * sqrt(n2) = g * sqrt((n1 / g) * (n2 / g)), where g = gcd(n1, n2).
+            // The latter radicand is again square-free.
+            final BigInteger n1 = BigInteger.valueOf(key1 >> 2);
+            final BigInteger n2 = BigInteger.valueOf(key2 >> 2);
+            final int flags1 = (int) (key1 & 3);
+            final int flags2 = (int) (key2 & 3);
+            final BigInteger g = n1.gcd(n2);
+            final BigInteger n = n1.divide(g).multiply(n2.divide(g));
+            final CR monomial = n.bitLength() < 63
+                    ? internMonomial(n.longValue(), flags1 ^ flags2) : null;
+            if (monomial == null) {
+                return null;
+            }
+            UnifiedReal result = new UnifiedReal(new BoundedRational(g), monomial);
+            // Replace squares of nested radicals by their values.
+            if ((flags1 & flags2 & NESTED_5) != 0) {
+                result = result.multiply(FIVE_PLUS_SQRT5);
+            }
+            if ((flags1 & flags2 & NESTED_2) != 0) {
+                result = result.multiply(TWO_PLUS_SQRT2);
+            }
+            return result;
+        }
+        return null;
+    }
+
+    /**
+     * Return the product of this and u, computed by distributing over the terms, or null
+     * if that is not possible.  At least one of the two should have terms.
+     */
+    private UnifiedReal multiplyTerms(UnifiedReal u) {
+        final TermList terms = new TermList();
+        final int n = mTermCrs == null ? 1 : mTermCrs.length;
+        final int m = u.mTermCrs == null ? 1 : u.mTermCrs.length;
+        if (mTermCrs == null && !isNamed(mCrFactor) || u.mTermCrs == null && !isNamed(u.mCrFactor)
+                || n * m > 4 * MAX_TERMS) {
+            return null;
+        }
+        for (int i = 0; i < n; ++i) {
+            final BoundedRational rat = mTermCrs == null ? mRatFactor : mTermRats[i];
+            final CR cr = mTermCrs == null ? mCrFactor : mTermCrs[i];
+            for (int j = 0; j < m; ++j) {
+                final BoundedRational uRat = u.mTermCrs == null ? u.mRatFactor : u.mTermRats[j];
+                final CR uCr = u.mTermCrs == null ? u.mCrFactor : u.mTermCrs[j];
+                final UnifiedReal product = multiplyNamed(cr, uCr);
+                if (product == null
+                        || !terms.add(BoundedRational.multiply(rat, uRat), product)) {
+                    return null;
+                }
+            }
+        }
+        return terms.toUnifiedReal();
+    }
+
+    /**
+     * Return the reciprocal of an algebraic sum of terms, or of a single algebraic monomial,
+     * or null if we can't express it as such a sum.
+     */
+    private UnifiedReal inverseTerms() {
+        // Multiply by a conjugate, which eliminates one of the generators sqrt(5 + sqrt(5)),
+        // sqrt(2 + sqrt(2)), or sqrt(p) for a prime p, from the denominator, and repeat.
+        // This terminates, since each step eliminates a generator, and introduces no new ones.
+        // We must eliminate the nested radicals first, since the automorphism that negates
+        // sqrt(5) does not negate sqrt(5 + sqrt(5)).
+        final BoundedRational[] rats =
+                mTermCrs != null ? mTermRats : new BoundedRational[] {mRatFactor};
+        final CR[] crs = mTermCrs != null ? mTermCrs : new CR[] {mCrFactor};
+        final long[] keys = new long[crs.length];
+        int allFlags = 0;
+        long p = 0;  // Smallest prime factor of some radicand.
+        for (int i = 0; i < crs.length; ++i) {
+            keys[i] = monomialKey(crs[i]);
+            allFlags |= keys[i] & 3;
+            final long n = keys[i] >> 2;
+            if (n > 1 && p == 0) {
+                for (p = 2; n % p != 0; ++p) {}
+            }
+        }
+        final BoundedRational[] conjRats = new BoundedRational[crs.length];
+        for (int i = 0; i < crs.length; ++i) {
+            final boolean flip;
+            if ((allFlags & NESTED_5) != 0) {
+                flip = (keys[i] & NESTED_5) != 0;
+            } else if ((allFlags & NESTED_2) != 0) {
+                flip = (keys[i] & NESTED_2) != 0;
+            } else {
+                flip = p != 0 && (keys[i] >> 2) % p == 0;
+            }
+            conjRats[i] = flip ? BoundedRational.negate(rats[i]) : rats[i];
+        }
+        final UnifiedReal conj = crs.length == 1 ? new UnifiedReal(conjRats[0], crs[0])
+                : new UnifiedReal(conjRats, crs);
+        final UnifiedReal product = multiply(conj);
+        if (product.mTermCrs == null && !isNamed(product.mCrFactor)) {
+            return null;
+        }
+        final UnifiedReal productInverse = product.inverse();
+        if (productInverse.mTermCrs == null && !isNamed(productInverse.mCrFactor)) {
+            return null;
+        }
+        return conj.multiply(productInverse);
+    }
+
     /**
      * Convert to String reflecting raw representation.
      * Debug or log messages only, not pretty.
      */
     public String toString() {
+        if (mTermCrs != null) {
+            final StringBuilder result = new StringBuilder();
+            for (int i = 0; i < mTermCrs.length; ++i) {
+                if (i != 0) {
+                    result.append(" + ");
+                }
+                result.append(mTermRats[i].toString()).append("*").append(mTermCrs[i].toString());
+            }
+            return result.toString();
+        }
         return mRatFactor.toString() + "*" + mCrFactor.toString();
     }
 
@@ -352,6 +850,21 @@ public class UnifiedReal {
      * Intended for user output.  Produces exact expression when possible.
      */
     public String toNiceString() {
+        if (mTermCrs != null) {
+            final StringBuilder result = new StringBuilder();
+            int nLogs = 0;
+            for (int i = 0; i < mTermCrs.length; ++i) {
+                if (logArg(mTermCrs[i]) != null) {
+                    ++nLogs;
+                } else {
+                    appendNiceTerm(result, mTermRats[i], crName(mTermCrs[i]));
+                }
+            }
+            if (nLogs != 0) {
+                appendNiceLogs(result, nLogs);
+            }
+            return result.toString();
+        }
         if (mCrFactor == CR_ONE || mRatFactor.signum() == 0) {
             return mRatFactor.toNiceString();
         }
@@ -362,6 +875,9 @@ public class UnifiedReal {
                 if (bi.equals(BigInteger.ONE)) {
                     return name;
                 }
+                if (bi.equals(BigInteger.ONE.negate())) {
+                    return "-" + name;
+                }
                 return mRatFactor.toNiceString() + name;
             }
             return "(" + mRatFactor.toNiceString() + ")" + name;
@@ -372,11 +888,76 @@ public class UnifiedReal {
         return crValue().toString();
     }
 
+    /**
+     * Append the term rat * <named constant> to a sum being displayed.
+     */
+    private static void appendNiceTerm(StringBuilder sum, BoundedRational rat, String name) {
+        if (rat.signum() < 0) {
+            sum.append('-');
+            rat = BoundedRational.negate(rat);
+        } else if (sum.length() != 0) {
+            sum.append('+');
+        }
+        final BigInteger bi = BoundedRational.asBigInteger(rat);
+        if (name.isEmpty()) {
+            sum.append(rat.toNiceString());
+        } else if (bi == null) {
+            sum.append('(').append(rat.toNiceString()).append(')').append(name);
+        } else if (bi.equals(BigInteger.ONE)) {
+            sum.append(name);
+        } else {
+            sum.append(rat.toNiceString()).append(name);
+        }
+    }
+
+    /**
+     * Append the nLogs logarithm terms of this sum to sum.  Since we expand logarithms into
+     * logarithms of primes, we try to recombine them, so that ln(10) is displayed as such,
+     * rather than as ln(2)+ln(5).
+     */
+    private void appendNiceLogs(StringBuilder sum, int nLogs) {
+        // Compute the largest positive c such that all coefficients are integer multiples of c,
+        // and thus the sum is c * ln(arg), for a rational arg.
+        BigInteger num = BigInteger.ZERO;
+        BigInteger den = BigInteger.ONE;
+        for (int i = 0; i < mTermCrs.length; ++i) {
+            if (logArg(mTermCrs[i]) != null) {
+                final BigInteger termDen = mTermRats[i].getReducedDenominator();
+                num = num.gcd(mTermRats[i].getReducedNumerator());
+                den = den.multiply(termDen).divide(den.gcd(termDen));
+            }
+        }
+        BoundedRational c = new BoundedRational(num, den);
+        BoundedRational arg = BoundedRational.ONE;
+        if (nLogs > 1) {
+            for (int i = 0; i < mTermCrs.length && arg != null; ++i) {
+                final Long p = logArg(mTermCrs[i]);
+                if (p != null) {
+                    arg = BoundedRational.multiply(arg, new BoundedRational(p).pow(
+                            BoundedRational.asBigInteger(BoundedRational.divide(mTermRats[i], c))));
+                }
+            }
+        }
+        if (arg == null || nLogs == 1) {
+            for (int i = 0; i < mTermCrs.length; ++i) {
+                if (logArg(mTermCrs[i]) != null) {
+                    appendNiceTerm(sum, mTermRats[i], crName(mTermCrs[i]));
+                }
+            }
+            return;
+        }
+        if (arg.compareTo(BoundedRational.ONE) < 0) {
+            c = BoundedRational.negate(c);
+            arg = BoundedRational.inverse(arg);
+        }
+        appendNiceTerm(sum, c, "ln(" + arg.toNiceString() + ")");
+    }
+
     /**
      * Will toNiceString() produce an exact representation?
      */
     public boolean exactlyDisplayable() {
-        return crName(mCrFactor) != null;
+        return mTermCrs != null || crName(mCrFactor) != null;
     }
 
     // Number of extra bits used in evaluation below to prefer truncation to rounding.
@@ -452,7 +1033,7 @@ public class UnifiedReal {
     }
 
     public CR crValue() {
-        return mRatFactor.crValue().multiply(mCrFactor);
+        return CRInterner.multiply(CRInterner.valueOf(mRatFactor), mCrFactor);
     }
 
     /**
@@ -461,6 +1042,9 @@ public class UnifiedReal {
     public boolean isComparable(UnifiedReal u) {
         // We check for ONE only to speed up the common case.
         // The use of a tolerance here means we can spuriously return false, not true.
+        if ((mTermCrs != null || u.mTermCrs != null) && decidableDifference(u) != null) {
+            return true;
+        }
         return mCrFactor == u.mCrFactor
                 && (isNamed(mCrFactor) || mCrFactor.signum(DEFAULT_COMPARE_TOLERANCE) != 0)
                 || mRatFactor.signum() == 0 && u.mRatFactor.signum() == 0
@@ -475,6 +1059,14 @@ public class UnifiedReal {
      */
     public int compareTo(UnifiedReal u) {
         if (definitelyZero() && u.definitelyZero()) return 0;
+        if (mTermCrs != null || u.mTermCrs != null) {
+            final UnifiedReal diff = decidableDifference(u);
+            if (diff != null) {
+                // Cannot diverge, since diff is either zero or definitely nonzero.
+                return diff.definitelyZero() ? 0 : diff.crValue().signum();
+            }
+            return crValue().compareTo(u.crValue());  // Can diverge.
+        }
         if (mCrFactor == u.mCrFactor) {
             int signum = mCrFactor.signum();  // Can diverge if mCRFactor == 0.
             return signum * mRatFactor.compareTo(u.mRatFactor);
@@ -514,6 +1106,12 @@ public class UnifiedReal {
      * and !isComparable(u).
      */
     public boolean approxEquals(UnifiedReal u, int a) {
+        if (mTermCrs != null || u.mTermCrs != null) {
+            final UnifiedReal diff = decidableDifference(u);
+            if (diff != null) {
+                return diff.definitelyZero();
+            }
+        }
         if (isComparable(u)) {
             if (definitelyIndependent(mCrFactor, u.mCrFactor)
                     && (mRatFactor.signum() != 0 || u.mRatFactor.signum() != 0)) {
@@ -531,6 +1129,10 @@ public class UnifiedReal {
      * This does not satisfy the contract for Object.equals().
      */
     public boolean definitelyEquals(UnifiedReal u) {
+        if (mTermCrs != null || u.mTermCrs != null) {
+            final UnifiedReal diff = decidableDifference(u);
+            return diff != null && diff.definitelyZero();
+        }
         return isComparable(u) && compareTo(u) == 0;
     }
 
@@ -554,6 +1156,10 @@ public class UnifiedReal {
      * Performs no approximate evaluation.
      */
     public boolean definitelyNotEquals(UnifiedReal u) {
+        if (mTermCrs != null || u.mTermCrs != null) {
+            final UnifiedReal diff = decidableDifference(u);
+            return diff != null && !diff.definitelyZero();
+        }
         boolean isNamed = isNamed(mCrFactor);
         boolean uIsNamed = isNamed(u.mCrFactor);
         if (isNamed && uIsNamed) {
@@ -584,6 +1190,9 @@ public class UnifiedReal {
      * evaluation?
      */
     public boolean definitelyNonZero() {
+        if (mTermCrs != null) {
+            return definitelyIndependent(mTermCrs);
+        }
         return isNamed(mCrFactor) && mRatFactor.signum() != 0;
     }
 
@@ -610,7 +1219,7 @@ public class UnifiedReal {
     }
 
     public UnifiedReal add(UnifiedReal u) {
-        if (mCrFactor == u.mCrFactor) {
+        if (mCrFactor == u.mCrFactor && mTermCrs == null) {
             BoundedRational nRatFactor = BoundedRational.add(mRatFactor, u.mRatFactor);
             if (nRatFactor != null) {
                 return new UnifiedReal(nRatFactor, mCrFactor);
@@ -623,10 +1232,22 @@ public class UnifiedReal {
         if (u.definitelyZero()) {
             return this;
         }
-        return new UnifiedReal(crValue().add(u.crValue()));
+        // Try to keep the result as an exact sum of named terms.
+        final UnifiedReal sum = addTerms(BoundedRational.ONE, this, BoundedRational.ONE, u);
+        if (sum != null) {
+            return sum;
+        }
+        return new UnifiedReal(CRInterner.add(crValue(), u.crValue()));
     }
 
     public UnifiedReal negate() {
+        if (mTermCrs != null) {
+            final BoundedRational[] nRats = new BoundedRational[mTermRats.length];
+            for (int i = 0; i < nRats.length; ++i) {
+                nRats[i] = BoundedRational.negate(mTermRats[i]);
+            }
+            return new UnifiedReal(nRats, mTermCrs);
+        }
         return new UnifiedReal(BoundedRational.negate(mRatFactor), mCrFactor);
     }
 
@@ -635,6 +1256,16 @@ public class UnifiedReal {
     }
 
     public UnifiedReal multiply(UnifiedReal u) {
+        if (mTermCrs != null || u.mTermCrs != null) {
+            if (definitelyZero() || u.definitelyZero()) {
+                return ZERO;
+            }
+            final UnifiedReal product = multiplyTerms(u);
+            if (product != null) {
+                return product;
+            }
+            return new UnifiedReal(CRInterner.multiply(crValue(), u.crValue()));
+        }
         // Preserve a preexisting mCrFactor when we can.
         if (mCrFactor == CR_ONE) {
             BoundedRational nRatFactor = BoundedRational.multiply(mRatFactor, u.mRatFactor);
@@ -661,12 +1292,24 @@ public class UnifiedReal {
                 }
             }
         }
+        final UnifiedReal namedProduct = multiplyNamed(mCrFactor, u.mCrFactor);
+        if (namedProduct != null && namedProduct.mTermCrs != null) {
+            return namedProduct.multiply(
+                    new UnifiedReal(BoundedRational.multiply(mRatFactor, u.mRatFactor)));
+        }
+        if (namedProduct != null && isNamed(namedProduct.mCrFactor)) {
+            final BoundedRational nRatFactor = BoundedRational.multiply(namedProduct.mRatFactor,
+                    BoundedRational.multiply(mRatFactor, u.mRatFactor));
+            if (nRatFactor != null) {
+                return new UnifiedReal(nRatFactor, namedProduct.mCrFactor);
+            }
+        }
         // Probably a bit cheaper to multiply component-wise.
         BoundedRational nRatFactor = BoundedRational.multiply(mRatFactor, u.mRatFactor);
         if (nRatFactor != null) {
-            return new UnifiedReal(nRatFactor, mCrFactor.multiply(u.mCrFactor));
+            return new UnifiedReal(nRatFactor, CRInterner.multiply(mCrFactor, u.mCrFactor));
         }
-        return new UnifiedReal(crValue().multiply(u.crValue()));
+        return new UnifiedReal(CRInterner.multiply(crValue(), u.crValue()));
     }
 
     public static class ZeroDivisionException extends ArithmeticException {
@@ -682,7 +1325,23 @@ public class UnifiedReal {
         if (definitelyZero()) {
             throw new ZeroDivisionException();
         }
+        if (mTermCrs != null) {
+            if (definitelyAlgebraic()) {
+                final UnifiedReal result = inverseTerms();
+                if (result != null) {
+                    return result;
+                }
+            }
+            return new UnifiedReal(CRInterner.inverse(mCrFactor));
+        }
         BoundedRational square = getSquare(mCrFactor);
+        if (square == null && definitelyAlgebraic(mCrFactor)) {
+            // A nested radical.
+            final UnifiedReal result = inverseTerms();
+            if (result != null) {
+                return result;
+            }
+        }
         if (square != null) {
             // 1/sqrt(n) = sqrt(n)/n
             BoundedRational nRatFactor = BoundedRational.inverse(
@@ -691,10 +1350,27 @@ public class UnifiedReal {
                 return new UnifiedReal(nRatFactor, mCrFactor);
             }
         }
-        return new UnifiedReal(BoundedRational.inverse(mRatFactor), mCrFactor.inverse());
+        return new UnifiedReal(BoundedRational.inverse(mRatFactor),
+                CRInterner.inverse(mCrFactor));
     }
 
     public UnifiedReal divide(UnifiedReal u) {
+        if ((mTermCrs != null || u.mTermCrs != null) && !u.definitelyAlgebraic()) {
+            // Check whether the two are rational multiples of each other.  Rebuild both
+            // to expand any logarithms of composites.
+            final UnifiedReal num = addTerms(BoundedRational.ONE, this, BoundedRational.ONE, ZERO);
+            final UnifiedReal den = addTerms(BoundedRational.ONE, u, BoundedRational.ONE, ZERO);
+            if (num != null && den != null && num.mTermCrs != null && den.mTermCrs != null
+                    && num.mTermCrs.length == den.mTermCrs.length) {
+                final BoundedRational ratio =
+                        BoundedRational.divide(num.mTermRats[0], den.mTermRats[0]);
+                final UnifiedReal diff =
+                        addTerms(BoundedRational.ONE, num, BoundedRational.negate(ratio), den);
+                if (diff != null && diff.definitelyZero()) {
+                    return new UnifiedReal(ratio);
+                }
+            }
+        }
         if (mCrFactor == u.mCrFactor) {
             if (u.definitelyZero()) {
                 throw new ZeroDivisionException();
@@ -707,6 +1383,186 @@ public class UnifiedReal {
         return multiply(u.inverse());
     }
 
+    /**
+     * Is u a rational multiple of a named constructive real, or a sum of such terms?
+     * Such values combine exactly with each other more often than with others.
+     */
+    private static boolean isSymbolic(UnifiedReal u) {
+        return u.mTermCrs != null || isNamed(u.mCrFactor);
+    }
+
+    /**
+     * Return the sum of terms.
+     * Equivalent to adding them from left to right, but first collects the rational terms,
+     * and rational multiples of the same constructive real, and then adds the named terms
+     * before the others, and the rational constant last.  Thus the result is more often exact,
+     * and otherwise refers to fewer constructive reals.
+     */
+    public static UnifiedReal sum(UnifiedReal[] terms) {
+        BoundedRational rat = BoundedRational.ZERO;
+        // Distinct constructive real factors, in order of first appearance, with their
+        // accumulated coefficients.  Sums of terms are kept whole, and combined by add().
+        final ArrayList<UnifiedReal> parts = new ArrayList<UnifiedReal>();
+        final ArrayList<BoundedRational> coeffs = new ArrayList<BoundedRational>();
+        final IdentityHashMap<CR, Integer> index = new IdentityHashMap<CR, Integer>();
+        for (UnifiedReal u : terms) {
+            if (u.mTermCrs != null) {
+                parts.add(u);
+                coeffs.add(null);
+            } else if (u.mRatFactor.signum() == 0) {
+                continue;
+            } else if (u.mCrFactor == CR_ONE) {
+                rat = BoundedRational.add(rat, u.mRatFactor);
+            } else {
+                final Integer i = index.get(u.mCrFactor);
+                if (i == null) {
+                    index.put(u.mCrFactor, parts.size());
+                    parts.add(u);
+                    coeffs.add(u.mRatFactor);
+                } else {
+                    final BoundedRational coeff = BoundedRational.add(coeffs.get(i), u.mRatFactor);
+                    if (coeff == null) {
+                        return sequentialSum(terms);
+                    }
+                    coeffs.set(i, coeff);
+                }
+            }
+            if (rat == null) {
+                return sequentialSum(terms);
+            }
+        }
+        UnifiedReal result = ZERO;
+        for (int pass = 0; pass < 2; ++pass) {
+            for (int i = 0; i < parts.size(); ++i) {
+                UnifiedReal part = parts.get(i);
+                if (isSymbolic(part) != (pass == 0)) {
+                    continue;
+                }
+                final BoundedRational coeff = coeffs.get(i);
+                if (coeff != null) {
+                    if (coeff.signum() == 0) {
+                        continue;
+                    }
+                    part = new UnifiedReal(coeff, part.mCrFactor);
+                }
+                result = result.add(part);
+            }
+        }
+        return result.add(new UnifiedReal(rat));
+    }
+
+    private static UnifiedReal sequentialSum(UnifiedReal[] terms) {
+        UnifiedReal result = ZERO;
+        for (UnifiedReal u : terms) {
+            result = result.add(u);
+        }
+        return result;
+    }
+
+    /**
+     * Return the product of factors[i], or of their reciprocals where inverted[i] is set.
+     * Equivalent to multiplying and dividing from left to right, but first combines the
+     * rational factors, and collects repeated constructive real factors into powers, and then
+     * multiplies by the named factors before the others.  Thus the result is more often exact,
+     * and otherwise refers to fewer constructive reals.  Powers of other constructive reals
+     * are computed by repeated multiplication, since pow() would use logarithms.
+     * The caller is responsible for rejecting inverted zero factors.
+     */
+    public static UnifiedReal product(UnifiedReal[] factors, boolean[] inverted) {
+        BoundedRational rat = BoundedRational.ONE;
+        // Distinct constructive real factors, in order of first appearance, with the powers to
+        // which they appear.
+        final ArrayList<UnifiedReal> bases = new ArrayList<UnifiedReal>();
+        final int[] exponents = new int[factors.length];
+        final IdentityHashMap<CR, Integer> index = new IdentityHashMap<CR, Integer>();
+        for (int i = 0; i < factors.length; ++i) {
+            final UnifiedReal u = factors[i];
+            if (u.definitelyZero()) {
+                return ZERO;
+            }
+            rat = BoundedRational.multiply(rat,
+                    inverted[i] ? BoundedRational.inverse(u.mRatFactor) : u.mRatFactor);
+            if (rat == null) {
+                return sequentialProduct(factors, inverted);
+            }
+            if (u.mCrFactor == CR_ONE) {
+                continue;
+            }
+            Integer j = index.get(u.mCrFactor);
+            if (j == null) {
+                j = bases.size();
+                index.put(u.mCrFactor, j);
+                // A sum of terms has a unit mRatFactor.
+                bases.add(u.mTermCrs != null ? u : new UnifiedReal(u.mCrFactor));
+            }
+            exponents[j] += inverted[i] ? -1 : 1;
+        }
+        UnifiedReal result = new UnifiedReal(rat);
+        for (int pass = 0; pass < 2; ++pass) {
+            for (int j = 0; j < bases.size(); ++j) {
+                final UnifiedReal base = bases.get(j);
+                if (exponents[j] == 0 || isSymbolic(base) != (pass == 0)) {
+                    continue;
+                }
+                final BigInteger absExp = BigInteger.valueOf(Math.abs(exponents[j]));
+                final UnifiedReal power = pass == 0 ? base.pow(absExp)
+                        : new UnifiedReal(recursivePow(base.mCrFactor, absExp));
+                result = exponents[j] > 0 ? result.multiply(power) : result.divide(power);
+            }
+        }
+        return result;
+    }
+
+    private static UnifiedReal sequentialProduct(UnifiedReal[] factors, boolean[] inverted) {
+        UnifiedReal result = ONE;
+        for (int i = 0; i < factors.length; ++i) {
+            result = inverted[i] ? result.divide(factors[i]) : result.multiply(factors[i]);
+        }
+        return result;
+    }
+
+    // We factor by trial division with divisors below this limit.  Any remaining cofactor less
+    // than the square of the limit is then known to be prime.
+    private static final long TRIAL_DIVISION_LIMIT = 1000;
+
+    /**
+     * Partially factor n > 0 by trial division.  Add the prime factors found to primes, and
+     * their multiplicities to exponents, in increasing order.  Return the unfactored part of
+     * n, which is one if we found the complete factorization, and otherwise has no factors
+     * less than TRIAL_DIVISION_LIMIT.
+     */
+    private static BigInteger factor(BigInteger n, ArrayList<Long> primes,
+            ArrayList<Integer> exponents) {
+        for (long d = 2; d < TRIAL_DIVISION_LIMIT; d += (d == 2 ? 1 : 2)) {
+            final BigInteger bigD = BigInteger.valueOf(d);
+            if (bigD.multiply(bigD).compareTo(n) > 0) {
+                break;
+            }
+            int e = 0;
+            BigInteger[] quotAndRem = n.divideAndRemainder(bigD);
+            while (quotAndRem[1].signum() == 0) {
+                n = quotAndRem[0];
+                ++e;
+                quotAndRem = n.divideAndRemainder(bigD);
+            }
+            if (e != 0) {
+                primes.add(d);
+                exponents.add(e);
+            }
+            if (Thread.interrupted()) {
+                throw new CR.AbortedException();
+            }
+        }
+        if (!n.equals(BigInteger.ONE) && n.compareTo(
+                BigInteger.valueOf(TRIAL_DIVISION_LIMIT * TRIAL_DIVISION_LIMIT)) < 0) {
+            // n has no factors less than its square root.
+            primes.add(n.longValue());
+            exponents.add(1);
+            return BigInteger.ONE;
+        }
+        return n;
+    }
+
     /**
      * Return the square root.
      * This may fail to return a known rational value, even when the result is rational.
@@ -716,109 +1572,211 @@ public class UnifiedReal {
             return ZERO;
         }
         if (mCrFactor == CR_ONE) {
-            BoundedRational ratSqrt;
-            // Check for all arguments of the form <perfect rational square> * small_int,
-            // where small_int has a known sqrt.  This includes the small_int = 1 case.
-            for (int divisor = 1; divisor < sSqrts.length; ++divisor) {
-                if (sSqrts[divisor] != null) {
-                    ratSqrt = BoundedRational.sqrt(
-                            BoundedRational.divide(mRatFactor, new BoundedRational(divisor)));
-                    if (ratSqrt != null) {
-                        return new UnifiedReal(ratSqrt, sSqrts[divisor]);
-                    }
+            if (mRatFactor.signum() < 0) {
+                throw new ArithmeticException("sqrt(negative)");
+            }
+            // sqrt(a/b) = sqrt(a*b)/b.  Factor a*b as s^2 * k, with k square-free, so that
+            // the result is s/b * sqrt(k).
+            final BigInteger den = mRatFactor.getReducedDenominator();
+            final ArrayList<Long> primes = new ArrayList<Long>();
+            final ArrayList<Integer> exponents = new ArrayList<Integer>();
+            final BigInteger rest = factor(mRatFactor.getReducedNumerator().multiply(den),
+                    primes, exponents);
+            BigInteger sqrtPart = BigInteger.ONE;
+            BigInteger squareFreePart = BigInteger.ONE;
+            for (int i = 0; i < primes.size(); ++i) {
+                final BigInteger p = BigInteger.valueOf(primes.get(i));
+                final int e = exponents.get(i);
+                sqrtPart = sqrtPart.multiply(p.pow(e / 2));
+                if (e % 2 != 0) {
+                    squareFreePart = squareFreePart.multiply(p);
                 }
             }
+            final BigInteger restSqrt =
+                    BoundedRational.asBigInteger(BoundedRational.sqrt(new BoundedRational(rest)));
+            if (restSqrt != null) {
+                final BoundedRational ratSqrt =
+                        new BoundedRational(sqrtPart.multiply(restSqrt), den);
+                if (squareFreePart.equals(BigInteger.ONE)) {
+                    return new UnifiedReal(ratSqrt);
+                }
+                CR sqrt = null;
+                if (squareFreePart.bitLength() < 63) {
+                    sqrt = internSqrt(squareFreePart.longValue());
+                }
+                if (sqrt == null) {
+                    sqrt = CR.valueOf(squareFreePart).sqrt();
+                }
+                return new UnifiedReal(ratSqrt, sqrt);
+            }
         }
-        return new UnifiedReal(crValue().sqrt());
+        return new UnifiedReal(CRInterner.sqrt(crValue()));
     }
 
+    // We know closed forms for sines and cosines of multiples of pi/PI_PARTS.
+    // Multiples of pi/120, i.e. 1.5 degrees, include all multiples of 3 degrees and
+    // 22.5 degrees.  Their sines and cosines can be written in terms of square roots,
+    // sqrt(5 + sqrt(5)), and sqrt(2 + sqrt(2)).
+    private static final int PI_PARTS = 120;
+    private static final BigInteger BIG_TWO_PI_PARTS = BigInteger.valueOf(2 * PI_PARTS);
+
     /**
-     * Return (this mod 2pi)/(pi/6) as a BigInteger, or null if that isn't easily possible.
+     * Return (this mod 2pi)/(pi/PI_PARTS) as a BigInteger, or null if that isn't easily possible.
      */
-    private BigInteger getPiTwelfths() {
+    private BigInteger getPiParts() {
         if (definitelyZero()) return BigInteger.ZERO;
         if (mCrFactor == CR_PI) {
             BigInteger quotient = BoundedRational.asBigInteger(
-                    BoundedRational.multiply(mRatFactor, BoundedRational.TWELVE));
+                    BoundedRational.multiply(mRatFactor, new BoundedRational(PI_PARTS)));
             if (quotient == null) {
                 return null;
             }
-            return quotient.mod(BIG_24);
+            return quotient.mod(BIG_TWO_PI_PARTS);
         }
         return null;
     }
 
     /**
-     * Computer the sin() for an integer multiple n of pi/12, if easily representable.
-     *
-     * @param n value between 0 and 23 inclusive.
+     * Return sin(n degrees), for n a multiple of 15 or 18 between 0 and 90 inclusive.
      */
-    private static UnifiedReal sinPiTwelfths(int n) {
-        if (n >= 12) {
-            UnifiedReal negResult = sinPiTwelfths(n - 12);
-            return negResult == null ? null : negResult.negate();
-        }
+    private static UnifiedReal sinSpecialDegrees(int n) {
+        final UnifiedReal sqrt2 = TWO.sqrt();
+        final UnifiedReal sqrt5 = new UnifiedReal(5).sqrt();
+        final UnifiedReal sqrt6 = SIX.sqrt();
+        final UnifiedReal quarter = new UnifiedReal(BoundedRational.QUARTER);
         switch (n) {
             case 0:
                 return ZERO;
-            case 2: // 30 degrees
+            case 15:
+                return sqrt6.subtract(sqrt2).multiply(quarter);
+            case 18:
+                return sqrt5.subtract(ONE).multiply(quarter);
+            case 30:
                 return HALF;
-            case 3: // 45 degrees
-                return HALF_SQRT2;
-            case 4: // 60 degrees
-                return HALF_SQRT3;
-            case 6:
+            case 36:
+                // sqrt(10 - 2 sqrt(5)) / 4 = sqrt(2) * sqrt(5 - sqrt(5)) / 4, and
+                // sqrt(5 - sqrt(5)) = sqrt(5 + sqrt(5)) * (sqrt(5) - 1) / 2.
+                return sqrt5.subtract(ONE).multiply(sinSpecialDegrees(72)).multiply(HALF);
+            case 45:
+                return sqrt2.multiply(HALF);
+            case 54:
+                return sqrt5.add(ONE).multiply(quarter);
+            case 60:
+                return new UnifiedReal(3).sqrt().multiply(HALF);
+            case 72:
+                // sqrt(10 + 2 sqrt(5)) / 4
+                return new UnifiedReal(BoundedRational.QUARTER, internMonomial(2, NESTED_5));
+            case 75:
+                return sqrt6.add(sqrt2).multiply(quarter);
+            case 90:
                 return ONE;
-            case 8:
-                return HALF_SQRT3;
-            case 9:
-                return HALF_SQRT2;
-            case 10:
-                return HALF;
             default:
-                return null;
+                throw new AssertionError("sinSpecialDegrees: Bad argument");
         }
     }
 
-    public UnifiedReal sin() {
-        BigInteger piTwelfths = getPiTwelfths();
-        if (piTwelfths != null) {
-            UnifiedReal result = sinPiTwelfths(piTwelfths.intValue());
-            if (result != null) {
-                return result;
+    /**
+     * Return sin(n degrees), for any n that is a multiple of 15 or 18.
+     */
+    private static UnifiedReal sinDegrees(int n) {
+        n = ((n % 360) + 360) % 360;
+        if (n >= 180) {
+            return sinDegrees(n - 180).negate();
+        }
+        return sinSpecialDegrees(n > 90 ? 180 - n : n);
+    }
+
+    // sin(n * pi/PI_PARTS) for 0 <= n <= PI_PARTS/2, computed lazily.
+    // Entries are null if not yet computed, or if the result has too many terms, and thus
+    // can't be represented exactly.  Protected by the class lock.
+    private static final UnifiedReal[] sSinPiParts = new UnifiedReal[PI_PARTS / 2 + 1];
+    private static final boolean[] sSinPiPartsComputed = new boolean[PI_PARTS / 2 + 1];
+
+    /**
+     * Compute sin(n * pi/PI_PARTS) = sin(1.5n degrees), 0 <= n <= PI_PARTS/2, from the above
+     * special values and the angle addition formula.  Return null if the result doesn't fit.
+     */
+    private static UnifiedReal computeSinPiParts(int n) {
+        if (n % 2 == 0) {
+            // 1.5n = 3m = 18m - 15m.
+            final int m = n / 2;
+            return sinDegrees(18 * m).multiply(sinDegrees(90 - 15 * m))
+                    .subtract(sinDegrees(90 - 18 * m).multiply(sinDegrees(15 * m)));
+        }
+        // 1.5n = 22.5 + 3j, where 22.5 = PI_PARTS/8 * 1.5.
+        // sin(22.5 degrees) = sqrt(2 - sqrt(2)) / 2 = sqrt(2 + sqrt(2)) * (sqrt(2) - 1) / 2.
+        final int j = (n - PI_PARTS / 8) / 2;
+        final UnifiedReal cos22 = new UnifiedReal(BoundedRational.HALF, internMonomial(1, NESTED_2));
+        final UnifiedReal sin22 = TWO.sqrt().subtract(ONE).multiply(cos22);
+        final UnifiedReal sin3j = sinPiParts(2 * j);
+        final UnifiedReal cos3j = cosPiParts(2 * j);
+        if (sin3j == null || cos3j == null) {
+            return null;
+        }
+        return sin22.multiply(cos3j).add(cos22.multiply(sin3j));
+    }
+
+    /**
+     * Return sin(n * pi/PI_PARTS) for any integer n, or null if we can't represent it exactly.
+     */
+    private static UnifiedReal sinPiParts(int n) {
+        n = ((n % (2 * PI_PARTS)) + 2 * PI_PARTS) % (2 * PI_PARTS);
+        if (n >= PI_PARTS) {
+            final UnifiedReal negResult = sinPiParts(n - PI_PARTS);
+            return negResult == null ? null : negResult.negate();
+        }
+        if (n > PI_PARTS / 2) {
+            n = PI_PARTS - n;
+        }
+        synchronized (UnifiedReal.class) {
+            if (!sSinPiPartsComputed[n]) {
+                UnifiedReal result = computeSinPiParts(n);
+                if (result != null && result.mTermCrs == null && !isNamed(result.mCrFactor)) {
+                    // Too many terms.  The computation fell back to an opaque CR.
+                    result = null;
+                }
+                sSinPiParts[n] = result;
+                sSinPiPartsComputed[n] = true;
             }
+            return sSinPiParts[n];
         }
-        return new UnifiedReal(crValue().sin());
     }
 
-    private static UnifiedReal cosPiTwelfths(int n) {
-        int sinArg = n + 6;
-        if (sinArg >= 24) {
-            sinArg -= 24;
+    private static UnifiedReal cosPiParts(int n) {
+        return sinPiParts(PI_PARTS / 2 - n);
+    }
+
+    public UnifiedReal sin() {
+        BigInteger piParts = getPiParts();
+        if (piParts != null) {
+            UnifiedReal result = sinPiParts(piParts.intValue());
+            if (result != null) {
+                return result;
+            }
         }
-        return sinPiTwelfths(sinArg);
+        return new UnifiedReal(CRInterner.sin(crValue()));
     }
 
     public UnifiedReal cos() {
-        BigInteger piTwelfths = getPiTwelfths();
-        if (piTwelfths != null) {
-            UnifiedReal result = cosPiTwelfths(piTwelfths.intValue());
+        BigInteger piParts = getPiParts();
+        if (piParts != null) {
+            UnifiedReal result = cosPiParts(piParts.intValue());
             if (result != null) {
                 return result;
             }
         }
-        return new UnifiedReal(crValue().cos());
+        return new UnifiedReal(CRInterner.cos(crValue()));
     }
 
     public UnifiedReal tan() {
-        BigInteger piTwelfths = getPiTwelfths();
-        if (piTwelfths != null) {
-            int i = piTwelfths.intValue();
-            if (i == 6 || i == 18) {
+        BigInteger piParts = getPiParts();
+        if (piParts != null) {
+            int i = piParts.intValue();
+            if (i == PI_PARTS / 2 || i == 3 * PI_PARTS / 2) {
                 throw new ArithmeticException("Tangent undefined");
             }
-            UnifiedReal top = sinPiTwelfths(i);
-            UnifiedReal bottom = cosPiTwelfths(i);
+            UnifiedReal top = sinPiParts(i);
+            UnifiedReal bottom = cosPiParts(i);
             if (top != null && bottom != null) {
                 return top.divide(bottom);
             }
@@ -851,6 +1809,23 @@ public class UnifiedReal {
         throw new AssertionError("asinHalves: Bad argument");
     }
 
+    /**
+     * Given the approximate value of an inverse trig function of this, check whether it is
+     * n * pi/PI_PARTS for an integer n.  If so return the candidate n, otherwise null.
+     * Only algebraic arguments can produce such values.
+     */
+    private Integer piPartsCandidate(double angle) {
+        if (!definitelyAlgebraic() || Double.isNaN(angle)) {
+            return null;
+        }
+        final double parts = angle * PI_PARTS / Math.PI;
+        final long n = Math.round(parts);
+        if (Math.abs(parts - n) > 1.0e-6) {
+            return null;
+        }
+        return (int) n;
+    }
+
     /**
      * Return asin of this, assuming this is not an integral multiple of a half.
      */
@@ -858,13 +1833,14 @@ public class UnifiedReal {
         if (compareTo(ZERO, -10) < 0) {
             return negate().asinNonHalves().negate();
         }
-        if (definitelyEquals(HALF_SQRT2)) {
-            return new UnifiedReal(BoundedRational.QUARTER, CR_PI);
-        }
-        if (definitelyEquals(HALF_SQRT3)) {
-            return new UnifiedReal(BoundedRational.THIRD, CR_PI);
+        final Integer n = piPartsCandidate(Math.asin(doubleValue()));
+        if (n != null) {
+            final UnifiedReal sin = sinPiParts(n);
+            if (sin != null && sin.definitelyEquals(this)) {
+                return new UnifiedReal(new BoundedRational(n, PI_PARTS), CR_PI);
+            }
         }
-        return new UnifiedReal(crValue().asin());
+        return new UnifiedReal(CRInterner.asin(crValue()));
     }
 
     public UnifiedReal asin() {
@@ -873,10 +1849,7 @@ public class UnifiedReal {
         if (halves != null) {
             return asinHalves(halves.intValue());
         }
-        if (mCrFactor == CR.ONE || mCrFactor != CR_SQRT2 || mCrFactor != CR_SQRT3) {
-            return asinNonHalves();
-        }
-        return new UnifiedReal(crValue().asin());
+        return asinNonHalves();
     }
 
     public UnifiedReal acos() {
@@ -900,13 +1873,16 @@ public class UnifiedReal {
                     throw new AssertionError("Impossible r_int");
             }
         }
-        if (definitelyEquals(THIRD_SQRT3)) {
-            return PI_OVER_6;
-        }
-        if (definitelyEquals(SQRT3)) {
-            return PI_OVER_3;
+        final Integer n = piPartsCandidate(Math.atan(doubleValue()));
+        if (n != null) {
+            // Check tan(n * pi/PI_PARTS) == this, without dividing.
+            final UnifiedReal sin = sinPiParts(n);
+            final UnifiedReal cos = cosPiParts(n);
+            if (sin != null && cos != null && sin.definitelyEquals(multiply(cos))) {
+                return new UnifiedReal(new BoundedRational(n, PI_PARTS), CR_PI);
+            }
         }
-        return new UnifiedReal(UnaryCRFunction.atanFunction.execute(crValue()));
+        return new UnifiedReal(CRInterner.atan(crValue()));
     }
 
     private static final BigInteger BIG_TWO = BigInteger.valueOf(2);
@@ -928,15 +1904,40 @@ public class UnifiedReal {
             return base;
         }
         if (exp.testBit(0)) {
-            return base.multiply(recursivePow(base, exp.subtract(BigInteger.ONE)));
+            return CRInterner.multiply(base, recursivePow(base, exp.subtract(BigInteger.ONE)));
         }
         CR tmp = recursivePow(base, exp.shiftRight(1));
         if (Thread.interrupted()) {
             throw new CR.AbortedException();
         }
+        return CRInterner.multiply(tmp, tmp);
+    }
+
+    /**
+     * Compute an integral power of this, by repeated multiplication.
+     * exp is known to be positive.  Intended for sums of terms.
+     */
+    private UnifiedReal recursiveTermsPow(BigInteger exp) {
+        if (exp.equals(BigInteger.ONE)) {
+            return this;
+        }
+        if (exp.testBit(0)) {
+            return multiply(recursiveTermsPow(exp.subtract(BigInteger.ONE)));
+        }
+        UnifiedReal tmp = recursiveTermsPow(exp.shiftRight(1));
+        if (Thread.interrupted()) {
+            throw new CR.AbortedException();
+        }
         return tmp.multiply(tmp);
     }
 
+    /**
+     * Return exp(exp * ln(base)), sharing nodes as for other operations.
+     */
+    private static CR expTimesLn(CR base, BoundedRational exp) {
+        return CRInterner.exp(CRInterner.multiply(CRInterner.ln(base), CRInterner.valueOf(exp)));
+    }
+
     /**
      * Compute an integral power of a constructive real, using the exp function when
      * we safely can. Use recursivePow when we can't. exp is known to be nozero.
@@ -946,11 +1947,11 @@ public class UnifiedReal {
         if (sign > 0) {
             // Safe to take the log. This avoids deep recursion for huge exponents, which
             // may actually make sense here.
-            return new UnifiedReal(crValue().ln().multiply(CR.valueOf(exp)).exp());
+            return new UnifiedReal(expTimesLn(crValue(), new BoundedRational(exp)));
         } else if (sign < 0) {
-            CR result = crValue().negate().ln().multiply(CR.valueOf(exp)).exp();
+            CR result = expTimesLn(CRInterner.negate(crValue()), new BoundedRational(exp));
             if (exp.testBit(0) /* odd exponent */) {
-                result = result.negate();
+                result = CRInterner.negate(result);
             }
             return new UnifiedReal(result);
         } else {
@@ -960,7 +1961,7 @@ public class UnifiedReal {
             // implementation.)
             if (exp.signum() < 0) {
                 // This may be very expensive if exp.negate() is large.
-                return new UnifiedReal(recursivePow(crValue(), exp.negate()).inverse());
+                return new UnifiedReal(CRInterner.inverse(recursivePow(crValue(), exp.negate())));
             } else {
                 return new UnifiedReal(recursivePow(crValue(), exp));
             }
@@ -994,6 +1995,12 @@ public class UnifiedReal {
         if (absExp.compareTo(RECURSIVE_POW_LIMIT) > 0) {
             return expLnPow(exp);
         }
+        if ((mTermCrs != null || getSquare(mCrFactor) == null) && definitelyAlgebraic()) {
+            // Multiplication is closed over sums of our algebraic monomials, as long as the
+            // rationals don't get too big.  Thus we may be able to preserve an exact result.
+            final UnifiedReal result = recursiveTermsPow(absExp);
+            return exp.signum() < 0 ? result.inverse() : result;
+        }
         BoundedRational square = getSquare(mCrFactor);
         if (square != null) {
             final BoundedRational nRatFactor =
@@ -1047,58 +2054,78 @@ public class UnifiedReal {
         if (sign < 0) {
             throw new ArithmeticException("Negative base for pow() with non-integer exponent");
         }
-        return new UnifiedReal(crValue().ln().multiply(expon.crValue()).exp());
+        return new UnifiedReal(CRInterner.exp(
+                CRInterner.multiply(CRInterner.ln(crValue()), expon.crValue())));
     }
 
     /**
-     * Raise the argument to the 16th power.
+     * Add scale * ln(n) to terms, as a sum of logarithms of primes, to the extent we can
+     * factor n.  Return the unfactored part of n, or null if we couldn't represent the result.
      */
-    private static long pow16(int n) {
-        if (n > 10) {
-            throw new AssertionError("Unexpected pow16 argument");
+    private static BigInteger addLogs(TermList terms, BigInteger n, BoundedRational scale) {
+        final ArrayList<Long> primes = new ArrayList<Long>();
+        final ArrayList<Integer> exponents = new ArrayList<Integer>();
+        final BigInteger rest = factor(n, primes, exponents);
+        for (int i = 0; i < primes.size(); ++i) {
+            final CR ln = internLn(primes.get(i));
+            if (ln == null || !terms.add(BoundedRational.multiply(
+                    scale, new BoundedRational(exponents.get(i))), ln)) {
+                return null;
+            }
         }
-        long result = n * n;
-        result *= result;
-        result *= result;
-        result *= result;
-        return result;
+        return rest;
     }
 
+    private static final BigInteger BIG_THREE = BigInteger.valueOf(3);
+
     /**
-     * Return the integral log with respect to the given base if it exists, 0 otherwise.
-     * n is presumed positive.
+     * Return the natural logarithm of this as a sum of rational multiples of logarithms of
+     * primes, plus possibly a single residual constructive real, or null if we can't.
+     * Assumes this is positive.
+     * Logarithms of primes are cached, so repeated logarithms of similar rationals share
+     * most of the work.
      */
-    private static long getIntLog(BigInteger n, int base) {
-        double nAsDouble = n.doubleValue();
-        double approx = Math.log(nAsDouble) / Math.log(base);
-        // A relatively quick test first.
-        // Unfortunately, this doesn't help for values to big to fit in a Double.
-        if (!Double.isInfinite(nAsDouble) && Math.abs(approx - Math.rint(approx)) > 1.0e-6) {
-            return 0;
-        }
-        long result = 0;
-        BigInteger remaining = n;
-        BigInteger bigBase = BigInteger.valueOf(base);
-        BigInteger base16th = null;  // base^16, computed lazily
-        while (n.mod(bigBase).signum() == 0) {
-            if (Thread.interrupted()) {
-                throw new CR.AbortedException();
-            }
-            n = n.divide(bigBase);
-            ++result;
-            // And try a slightly faster computation for large n:
-            if (base16th == null) {
-                base16th = BigInteger.valueOf(pow16(base));
-            }
-            while (n.mod(base16th).signum() == 0) {
-                n = n.divide(base16th);
-                result += 16;
-            }
-        }
-        if (n.equals(BigInteger.ONE)) {
-            return result;
-        }
-        return 0;
+    private UnifiedReal lnTerms() {
+        // Handles r * sqrt(n), which includes rationals.
+        final BoundedRational square = getSquare(mCrFactor);
+        if (mTermCrs != null || square == null) {
+            return null;
+        }
+        final TermList terms = new TermList();
+        final BigInteger num = addLogs(terms, mRatFactor.getReducedNumerator(), BoundedRational.ONE);
+        final BigInteger den =
+                addLogs(terms, mRatFactor.getReducedDenominator(), BoundedRational.MINUS_ONE);
+        final BigInteger radicand = addLogs(terms, square.getReducedNumerator(), BoundedRational.HALF);
+        if (num == null || den == null || radicand == null) {
+            return null;
+        }
+        if (!radicand.equals(BigInteger.ONE)) {
+            // Can't happen for interned square roots.
+            return null;
+        }
+        if (num.equals(BigInteger.ONE) && den.equals(BigInteger.ONE)) {
+            return terms.toUnifiedReal();
+        }
+        // The remaining factors num/den have only large prime factors.  Write num/den as
+        // x * 2^k, with 3/4 <= x < 3/2, so that ln(x) converges quickly, and we can again use
+        // the cached ln(2).
+        int k = num.bitLength() - den.bitLength();
+        // Now 1/2 < num/den/2^k < 2.
+        final BigInteger shiftedNum = k < 0 ? num.shiftLeft(-k) : num;
+        final BigInteger shiftedDen = k > 0 ? den.shiftLeft(k) : den;
+        if (shiftedNum.shiftLeft(1).compareTo(shiftedDen.multiply(BIG_THREE)) >= 0) {
+            ++k;
+        }
+        final CR ln2 = internLn(2);
+        if (ln2 == null || !terms.add(new BoundedRational(k), ln2)) {
+            return null;
+        }
+        final UnifiedReal sum = terms.toUnifiedReal();
+        if (sum == null) {
+            return null;
+        }
+        final CR residual = CR.valueOf(num).shiftRight(k).divide(CR.valueOf(den)).ln();
+        return new UnifiedReal(sum.crValue().add(residual));
     }
 
     public UnifiedReal ln() {
@@ -1117,40 +2144,12 @@ public class UnifiedReal {
             } else if (compare1 < 0) {
                 return inverse().ln().negate();
             }
-            final BigInteger bi = BoundedRational.asBigInteger(mRatFactor);
-            if (bi != null) {
-                if (mCrFactor == CR_ONE) {
-                    // Check for a power of a small integer.  We can use sLogs[] to return
-                    // a more useful answer for those.
-                    for (int i = 0; i < sLogs.length; ++i) {
-                        if (sLogs[i] != null) {
-                            long intLog = getIntLog(bi, i);
-                            if (intLog != 0) {
-                                return new UnifiedReal(new BoundedRational(intLog), sLogs[i]);
-                            }
-                        }
-                    }
-                } else {
-                    // Check for n^k * sqrt(n), for which we can also return a more useful answer.
-                    BoundedRational square = getSquare(mCrFactor);
-                    if (square != null) {
-                        int intSquare = square.intValue();
-                        if (sLogs[intSquare] != null) {
-                            long intLog = getIntLog(bi, intSquare);
-                            if (intLog != 0) {
-                                BoundedRational nRatFactor =
-                                        BoundedRational.add(new BoundedRational(intLog),
-                                                BoundedRational.HALF);
-                                if (nRatFactor != null) {
-                                    return new UnifiedReal(nRatFactor, sLogs[intSquare]);
-                                }
-                            }
-                        }
-                    }
-                }
+            final UnifiedReal logs = lnTerms();
+            if (logs != null) {
+                return logs;
             }
         }
-        return new UnifiedReal(crValue().ln());
+        return new UnifiedReal(CRInterner.ln(crValue()));
     }
 
     public UnifiedReal exp() {
@@ -1161,6 +2160,20 @@ public class UnifiedReal {
             // Avoid redundant computations, and ensure we recognize all instances as equal.
             return E;
         }
+        if (mTermCrs != null) {
+            // exp of a sum of logarithms is a product of powers.
+            UnifiedReal result = ONE;
+            for (int i = 0; i < mTermCrs.length; ++i) {
+                if (getExp(mTermCrs[i]) == null) {
+                    result = null;
+                    break;
+                }
+                result = result.multiply(new UnifiedReal(mTermRats[i], mTermCrs[i]).exp());
+            }
+            if (result != null && (result.mTermCrs != null || isNamed(result.mCrFactor))) {
+                return result;
+            }
+        }
         final BoundedRational crExp = getExp(mCrFactor);
         if (crExp != null) {
             boolean needSqrt = false;
@@ -1180,7 +2193,7 @@ public class UnifiedReal {
                 return result;
             }
         }
-        return new UnifiedReal(crValue().exp());
+        return new UnifiedReal(CRInterner.exp(crValue()));
     }
 
 
@@ -1286,4 +2299,204 @@ public class UnifiedReal {
             return crValue().get_appr(bound - 2).bitLength() > 2;
         }
     }
+
+    // Version byte of the format written by toBytes().
+    private static final int BYTES_VERSION = 1;
+
+    // Kinds of named constructive real factors, as written by toBytes().
+    private static final int FACTOR_ONE = 0;
+    private static final int FACTOR_PI = 1;
+    private static final int FACTOR_E = 2;
+    private static final int FACTOR_MONOMIAL = 3;  // Followed by the monomial key.
+    private static final int FACTOR_LN = 4;  // Followed by the prime argument.
+
+    private static void writeRational(DataOutputStream out, BoundedRational r)
+            throws IOException {
+        final byte[] num = r.getReducedNumerator().toByteArray();
+        final byte[] den = r.getReducedDenominator().toByteArray();
+        out.writeInt(num.length);
+        out.write(num);
+        out.writeInt(den.length);
+        out.write(den);
+    }
+
+    private static BoundedRational readRational(DataInputStream in) throws IOException {
+        final BigInteger[] numAndDen = new BigInteger[2];
+        for (int i = 0; i < 2; ++i) {
+            final int len = in.readInt();
+            if (len <= 0 || len > in.available()) {
+                throw new IOException("Bad rational length");
+            }
+            final byte[] bytes = new byte[len];
+            in.readFully(bytes);
+            numAndDen[i] = new BigInteger(bytes);
+        }
+        if (numAndDen[1].signum() <= 0) {
+            throw new IOException("Bad denominator");
+        }
+        return new BoundedRational(numAndDen[0], numAndDen[1]);
+    }
+
+    /**
+     * Write the named constructive real cr, which must satisfy isNamed().
+     */
+    private static void writeFactor(DataOutputStream out, CR cr) throws IOException {
+        if (cr == CR_ONE) {
+            out.writeByte(FACTOR_ONE);
+        } else if (cr == CR_PI) {
+            out.writeByte(FACTOR_PI);
+        } else if (cr == CR_E) {
+            out.writeByte(FACTOR_E);
+        } else {
+            final Long key = monomialKey(cr);
+            if (key != null) {
+                out.writeByte(FACTOR_MONOMIAL);
+                out.writeLong(key);
+            } else {
+                out.writeByte(FACTOR_LN);
+                out.writeLong(logArg(cr));
+            }
+        }
+    }
+
+    /**
+     * Is n > 0 square-free?  Takes time proportional to sqrt(n).
+     */
+    private static boolean isSquareFree(long n) {
+        for (long d = 2; d * d <= n; ++d) {
+            if (n % d == 0) {
+                n /= d;
+                if (n % d == 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Is n > 1 prime?  Takes time proportional to sqrt(n).
+     */
+    private static boolean isPrime(long n) {
+        for (long d = 2; d * d <= n; ++d) {
+            if (n % d == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read a factor written by writeFactor().  Return null if it can no longer be interned.
+     */
+    private static CR readFactor(DataInputStream in) throws IOException {
+        final int kind = in.readByte();
+        switch (kind) {
+            case FACTOR_ONE:
+                return CR_ONE;
+            case FACTOR_PI:
+                return CR_PI;
+            case FACTOR_E:
+                return CR_E;
+            case FACTOR_MONOMIAL: {
+                // The input may be stale or corrupt.  Interning a radicand that is not
+                // square-free would give a name to a non-canonical value, and thus break
+                // simplifications.
+                final long key = in.readLong();
+                if (key < 4 || (key >> 2) > MAX_INTERNED_ARG || !isSquareFree(key >> 2)) {
+                    throw new IOException("Bad monomial key");
+                }
+                return internMonomial(key >> 2, (int) (key & 3));
+            }
+            case FACTOR_LN: {
+                final long p = in.readLong();
+                if (p < 2 || p > MAX_INTERNED_ARG || !isPrime(p)) {
+                    throw new IOException("Bad logarithm argument");
+                }
+                return internLn(p);
+            }
+            default:
+                throw new IOException("Bad factor kind");
+        }
+    }
+
+    /**
+     * Return an exact serialized representation of this number, from which fromBytes() can
+     * reconstruct it, including the named constructive real factors we recognize.
+     * Return null if the number involves an unnamed constructive real, which we have no way to
+     * serialize.
+     */
+    public byte[] toBytes() {
+        if (mTermCrs == null && !isNamed(mCrFactor) && mRatFactor.signum() != 0) {
+            return null;
+        }
+        final ByteArrayOutputStream byteArrayStream = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(byteArrayStream)) {
+            out.writeByte(BYTES_VERSION);
+            if (mTermCrs != null) {
+                out.writeInt(mTermCrs.length);
+                for (int i = 0; i < mTermCrs.length; ++i) {
+                    writeRational(out, mTermRats[i]);
+                    writeFactor(out, mTermCrs[i]);
+                }
+            } else if (mRatFactor.signum() == 0) {
+                out.writeInt(1);
+                writeRational(out, BoundedRational.ZERO);
+                writeFactor(out, CR_ONE);
+            } else {
+                out.writeInt(1);
+                writeRational(out, mRatFactor);
+                writeFactor(out, mCrFactor);
+            }
+        } catch (IOException e) {
+            // Impossible; No IO involved.
+            throw new AssertionError("Impossible IO exception", e);
+        }
+        return byteArrayStream.toByteArray();
+    }
+
+    /**
+     * Reconstruct a number from the result of toBytes().
+     * Return null if bytes are malformed or from a different version, or if a named factor
+     * cannot be interned because our tables are full.
+     */
+    public static UnifiedReal fromBytes(byte[] bytes) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readByte() != BYTES_VERSION) {
+                return null;
+            }
+            final int nTerms = in.readInt();
+            if (nTerms < 1 || nTerms > MAX_TERMS) {
+                return null;
+            }
+            final BoundedRational[] rats = new BoundedRational[nTerms];
+            final CR[] crs = new CR[nTerms];
+            for (int i = 0; i < nTerms; ++i) {
+                rats[i] = readRational(in);
+                crs[i] = readFactor(in);
+                if (crs[i] == null) {
+                    return null;
+                }
+            }
+            if (in.available() != 0) {
+                return null;
+            }
+            if (nTerms == 1) {
+                return new UnifiedReal(rats[0], crs[0]);
+            }
+            for (int i = 0; i < nTerms; ++i) {
+                if (rats[i].signum() == 0) {
+                    return null;
+                }
+                for (int j = 0; j < i; ++j) {
+                    if (crs[i] == crs[j]) {
+                        return null;
+                    }
+                }
+            }
+            return new UnifiedReal(rats, crs);
+        } catch (IOException e) {
+            return null;
+        }
+    }
 }
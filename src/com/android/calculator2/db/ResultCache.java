@@ -0,0 +1,351 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// A persistent cache of evaluation results, keyed by canonical expression digests, as computed
+// by CalculatorExpr.canonicalDigest().  Unlike the expressions table, this is keyed by content
+// rather than by expression index, and so it applies whenever the same computation is entered
+// again, e.g. in a later session.  Entries would remain valid if the history were cleared, but
+// they record what the user computed.  Thus Evaluator.clearEverything() erases them along with
+// the history, for privacy.  The cache lives in its own database, so that creating it does not
+// require a version bump, and thus a reset, of the expression database.
+
+// The most recently used entries are kept in memory, so that lookups never touch the disk.
+// Entries are loaded in the background when the cache is created; until then lookups simply
+// miss.  Writes go to the database in order, on a thread of our own, so that they never delay
+// AsyncTasks.  Timestamps of used entries are written in batches, and the table is trimmed only
+// once it has grown well past MAX_ENTRIES.
+
+package com.android.calculator2.db;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+public class ResultCache {
+
+    /* Table contents */
+    public static class ResultEntry {
+        public static final String TABLE_NAME = "results";
+        // Hex representation of the expression digest.
+        public static final String COLUMN_NAME_KEY = "key";
+        // Exact value, as produced by UnifiedReal.toBytes().
+        public static final String COLUMN_NAME_VALUE = "value";
+        // Decimal digits of the value, truncated at precOffset digits after the decimal point.
+        public static final String COLUMN_NAME_DIGITS = "digits";
+        public static final String COLUMN_NAME_PREC_OFFSET = "precOffset";
+        // Time of last use, as returned by currentTimeMillis().
+        public static final String COLUMN_NAME_TIMESTAMP = "timeStamp";
+    }
+
+    /* A cached result */
+    public static class Result {
+        public final byte[] mValue;
+        public final String mDigits;
+        public final int mPrecOffset;
+
+        public Result(byte[] value, String digits, int precOffset) {
+            mValue = value;
+            mDigits = digits;
+            mPrecOffset = precOffset;
+        }
+    }
+
+    // Maximum number of entries we keep in memory, and after trimming, in the database.
+    private static final int MAX_ENTRIES = 500;
+    // We trim the database once it holds this many more entries.
+    private static final int TRIM_SLACK = 100;
+    // We don't cache results whose value or digits are larger than this, since they are
+    // rare, and would dominate the size of the cache.
+    private static final int MAX_VALUE_BYTES = 4096;
+    private static final int MAX_DIGITS = 2000;
+
+    private static final String SQL_CREATE_ENTRIES =
+            "CREATE TABLE " + ResultEntry.TABLE_NAME + " ("
+                    + ResultEntry.COLUMN_NAME_KEY + " TEXT PRIMARY KEY,"
+                    + ResultEntry.COLUMN_NAME_VALUE + " BLOB,"
+                    + ResultEntry.COLUMN_NAME_DIGITS + " TEXT,"
+                    + ResultEntry.COLUMN_NAME_PREC_OFFSET + " INTEGER,"
+                    + ResultEntry.COLUMN_NAME_TIMESTAMP + " INTEGER)";
+    private static final String SQL_DROP_TABLE =
+            "DROP TABLE IF EXISTS " + ResultEntry.TABLE_NAME;
+    private static final String SQL_GET_RECENT = "SELECT "
+            + ResultEntry.COLUMN_NAME_KEY + ", " + ResultEntry.COLUMN_NAME_VALUE + ", "
+            + ResultEntry.COLUMN_NAME_DIGITS + ", " + ResultEntry.COLUMN_NAME_PREC_OFFSET
+            + " FROM " + ResultEntry.TABLE_NAME
+            + " ORDER BY " + ResultEntry.COLUMN_NAME_TIMESTAMP + " DESC LIMIT " + MAX_ENTRIES;
+    private static final String SQL_TRIM = "DELETE FROM " + ResultEntry.TABLE_NAME
+            + " WHERE " + ResultEntry.COLUMN_NAME_KEY + " NOT IN (SELECT "
+            + ResultEntry.COLUMN_NAME_KEY + " FROM " + ResultEntry.TABLE_NAME
+            + " ORDER BY " + ResultEntry.COLUMN_NAME_TIMESTAMP + " DESC LIMIT " + MAX_ENTRIES
+            + ")";
+
+    private class ResultCacheHelper extends SQLiteOpenHelper {
+        // If you change the database schema, you must increment the database version.
+        public static final int DATABASE_VERSION = 1;
+        public static final String DATABASE_NAME = "Results.db";
+
+        public ResultCacheHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(SQL_CREATE_ENTRIES);
+        }
+
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // It's only a cache.  Just start over.
+            db.execSQL(SQL_DROP_TABLE);
+            onCreate(db);
+        }
+
+        public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            onUpgrade(db, oldVersion, newVersion);
+        }
+    }
+
+    private final ResultCacheHelper mResultCacheHelper;
+
+    // Runs all database accesses, in order.
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    // Null until initialized, and if the database could not be opened.  Like mRowCount, accessed
+    // only by tasks on mExecutor, which run after initialization.
+    private SQLiteDatabase mResultDB;
+
+    // Number of rows in the database.
+    private long mRowCount;
+
+    // Most recently used entries, in access order.  Protected by mLock.
+    private final LinkedHashMap<String, Result> mEntries =
+            new LinkedHashMap<String, Result>(16, 0.75f, true /* access order */) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    // Keys of entries used since their timestamps were last written, and whether a task to
+    // write them is pending.  Protected by mLock.
+    private final HashSet<String> mUsedKeys = new HashSet<String>();
+    private boolean mTimestampUpdatePending;
+
+    private final Object mLock = new Object();
+
+    public ResultCache(Context context) {
+        mResultCacheHelper = new ResultCacheHelper(context);
+        mExecutor.execute(new Initializer());
+    }
+
+    /**
+     * Open the database and load the most recently used entries.
+     */
+    private class Initializer implements Runnable {
+        @Override
+        public void run() {
+            final ArrayList<String> keys = new ArrayList<String>();
+            final ArrayList<Result> results = new ArrayList<Result>();
+            try {
+                mResultDB = mResultCacheHelper.getWritableDatabase();
+                mRowCount = DatabaseUtils.queryNumEntries(mResultDB, ResultEntry.TABLE_NAME);
+                try (Cursor c = mResultDB.rawQuery(SQL_GET_RECENT, null)) {
+                    while (c.moveToNext()) {
+                        keys.add(c.getString(0));
+                        results.add(new Result(c.getBlob(1), c.getString(2), c.getInt(3)));
+                    }
+                }
+            } catch (SQLiteException e) {
+                Log.e("Calculator", "Result cache initialization failed.\n", e);
+                mResultDB = null;
+                return;
+            }
+            synchronized (mLock) {
+                // Entries added since we started are more recent than the ones we loaded.
+                final LinkedHashMap<String, Result> added =
+                        new LinkedHashMap<String, Result>(mEntries);
+                mEntries.clear();
+                for (int i = keys.size() - 1; i >= 0; --i) {
+                    mEntries.put(keys.get(i), results.get(i));
+                }
+                mEntries.putAll(added);
+            }
+        }
+    }
+
+    /**
+     * Execute a database update on mExecutor, after all previous ones.
+     */
+    private abstract class Updater implements Runnable {
+        abstract void update(SQLiteDatabase db);
+
+        @Override
+        public void run() {
+            if (mResultDB == null) {
+                return;
+            }
+            try {
+                update(mResultDB);
+            } catch (SQLiteException e) {
+                // Losing cache entries is harmless.
+                Log.e("Calculator", "Result cache update failed.\n", e);
+            }
+        }
+
+        void start() {
+            try {
+                mExecutor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // Closed.  Drop the update.
+            }
+        }
+    }
+
+    /**
+     * Write the timestamps of all entries used since the last such update, in one transaction.
+     */
+    private class TimestampUpdater extends Updater {
+        private String[] mKeys;
+
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mKeys = mUsedKeys.toArray(new String[mUsedKeys.size()]);
+                mUsedKeys.clear();
+                mTimestampUpdatePending = false;
+            }
+            super.run();
+        }
+
+        @Override
+        void update(SQLiteDatabase db) {
+            final ContentValues cvs = new ContentValues();
+            cvs.put(ResultEntry.COLUMN_NAME_TIMESTAMP, System.currentTimeMillis());
+            db.beginTransaction();
+            try {
+                for (String key : mKeys) {
+                    db.update(ResultEntry.TABLE_NAME, cvs,
+                            ResultEntry.COLUMN_NAME_KEY + " = ?", new String[]{key});
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
+    /**
+     * Return the cached result for the given key, or null.  Never blocks on the database.
+     * May be called from any thread.
+     */
+    public Result get(String key) {
+        final Result result;
+        final boolean startUpdate;
+        synchronized (mLock) {
+            result = mEntries.get(key);
+            if (result == null) {
+                return null;
+            }
+            // Record the use, so that the entry survives trimming.  Uses are written together
+            // by a single pending update.
+            mUsedKeys.add(key);
+            startUpdate = !mTimestampUpdatePending;
+            mTimestampUpdatePending = true;
+        }
+        if (startUpdate) {
+            new TimestampUpdater().start();
+        }
+        return result;
+    }
+
+    /**
+     * Add or replace the result for the given key.  Results that are too large are dropped.
+     */
+    public void put(String key, Result result) {
+        if (result.mValue.length > MAX_VALUE_BYTES || result.mDigits.length() > MAX_DIGITS) {
+            return;
+        }
+        synchronized (mLock) {
+            mEntries.put(key, result);
+        }
+        final ContentValues cvs = new ContentValues();
+        cvs.put(ResultEntry.COLUMN_NAME_KEY, key);
+        cvs.put(ResultEntry.COLUMN_NAME_VALUE, result.mValue);
+        cvs.put(ResultEntry.COLUMN_NAME_DIGITS, result.mDigits);
+        cvs.put(ResultEntry.COLUMN_NAME_PREC_OFFSET, result.mPrecOffset);
+        cvs.put(ResultEntry.COLUMN_NAME_TIMESTAMP, System.currentTimeMillis());
+        final String[] keyArg = new String[]{key};
+        new Updater() {
+            @Override
+            void update(SQLiteDatabase db) {
+                if (db.update(ResultEntry.TABLE_NAME, cvs,
+                        ResultEntry.COLUMN_NAME_KEY + " = ?", keyArg) != 0) {
+                    return;
+                }
+                db.insert(ResultEntry.TABLE_NAME, null, cvs);
+                if (++mRowCount > MAX_ENTRIES + TRIM_SLACK) {
+                    db.execSQL(SQL_TRIM);
+                    mRowCount = DatabaseUtils.queryNumEntries(db, ResultEntry.TABLE_NAME);
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Erase all entries, when the user clears the history.
+     */
+    public void eraseAll() {
+        synchronized (mLock) {
+            mEntries.clear();
+        }
+        new Updater() {
+            @Override
+            void update(SQLiteDatabase db) {
+                db.delete(ResultEntry.TABLE_NAME, null, null);
+                mRowCount = 0;
+            }
+        }.start();
+    }
+
+    /**
+     * Close the database once pending writes are complete.  Later updates are dropped.
+     */
+    public void close() {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mResultDB = null;
+                    mResultCacheHelper.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Already closed.
+        }
+        mExecutor.shutdown();
+    }
+}
@@ -266,6 +266,20 @@ public class BoundedRational {
         return new BoundedRational(mNum.divide(divisor), mDen.divide(divisor));
     }
 
+    /**
+     * Return the numerator of an equivalent fraction in lowest terms with a positive denominator.
+     */
+    public BigInteger getReducedNumerator() {
+        return reduce().positiveDen().mNum;
+    }
+
+    /**
+     * Return the (positive) denominator of an equivalent fraction in lowest terms.
+     */
+    public BigInteger getReducedDenominator() {
+        return reduce().positiveDen().mDen;
+    }
+
     static Random sReduceRng = new Random();
 
     /**
@@ -401,7 +415,7 @@ public class BoundedRational {
     }
 
     public static BoundedRational sqrt(BoundedRational r) {
-        // Return non-null if numerator and denominator are small perfect squares.
+        // Return non-null if numerator and denominator are perfect squares.
         if (r == null) {
             return null;
         }
@@ -409,11 +423,11 @@ public class BoundedRational {
         if (r.mNum.signum() < 0) {
             throw new ArithmeticException("sqrt(negative)");
         }
-        final BigInteger num_sqrt = BigInteger.valueOf(Math.round(Math.sqrt(r.mNum.doubleValue())));
+        final BigInteger num_sqrt = CR.floorSqrt(r.mNum);
         if (!num_sqrt.multiply(num_sqrt).equals(r.mNum)) {
             return null;
         }
-        final BigInteger den_sqrt = BigInteger.valueOf(Math.round(Math.sqrt(r.mDen.doubleValue())));
+        final BigInteger den_sqrt = CR.floorSqrt(r.mDen);
         if (!den_sqrt.multiply(den_sqrt).equals(r.mDen)) {
             return null;
         }
@@ -27,14 +27,24 @@ import com.android.calculator2.UnifiedReal;
 import com.android.calculator2.util.KeyMaps;
 import com.android.calculator2.util.StringUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
 
 /**
  * A mathematical expression represented as a sequence of "tokens".
@@ -43,12 +53,19 @@ import java.util.Collections;
  * The add() method adds a token to the end of the expression.  The delete method() removes one.
  * Clear() deletes the entire expression contents. Eval() evaluates the expression,
  * producing a UnifiedReal result.
- * Expressions are parsed only during evaluation; no explicit parse tree is maintained.
+ * Eval() first parses the expression into an immutable tree of ExprNodes, which it then
+ * evaluates.  The tree is kept, and reparsed incrementally as tokens are added or removed at
+ * the end of the expression.  Expressions nested too deeply for that are evaluated directly by
+ * a parser that keeps its state in an explicit stack.
  * <p>
  * The write() method is used to save the current expression.  Note that neither UnifiedReal
  * nor the underlying CR provide a serialization facility.  Thus we save all previously
  * computed values by writing out the expression that was used to compute them, and reevaluate
  * when reading it back in.
+ * The current format starts with a byte holding VERSIONED and the format version.  It stores
+ * counts, exponents and indices as variable length integers, and digit strings as packed
+ * decimal nibbles.  Expressions saved in the original format, which starts with a four byte
+ * token count, are still read.
  */
 public class CalculatorExpr {
     /**
@@ -82,14 +99,40 @@ public class CalculatorExpr {
         UnifiedReal putResultIfAbsent(long index, UnifiedReal result);
     }
 
-    private ArrayList<Token> mExpr;  // The actual representation
+    private volatile ArrayList<Token> mExpr;  // The actual representation
     // as a list of tokens.  Constant
     // tokens are always nonempty.
+    // Null until decoded from mEncoded.  Use tokens() to access.
+
+    // An expression read by CalculatorExpr(ByteBuffer) in the current format, and not yet
+    // decoded, starting with its version byte.  Never modified.  Protected by this.
+    private ByteBuffer mEncoded;
+
+    // The tree produced by the last parse, if any, the prefix length it was parsed with, and
+    // the first token index that may have been modified since.  Nodes never refer to tokens,
+    // so the tree can be shared with clones.  Protected by this.
+    private ExprNode mTree;
+    private int mTreePrefixLength;
+    private int mFirstChange = Integer.MAX_VALUE;
+
+    // Expressions whose parse trees may be nested more deeply than this are evaluated by
+    // StackEvaluator instead, so that they cannot overflow the stack.  Not final, so that tests
+    // can force the use of either evaluator.
+    static volatile int maxTreeDepth = 100;
 
     private static enum TokenKind {CONSTANT, OPERATOR, PRE_EVAL}
 
     ;
     private static TokenKind[] tokenKindValues = TokenKind.values();
+
+    // Set in the first byte of expressions in the versioned format.  The first byte of the
+    // original format is the high order byte of a nonnegative int, and thus never has it set.
+    private static final int VERSIONED = 0x80;
+    // The version written by write().  Version 0 is the original, unversioned, format.
+    private static final int FORMAT_VERSION = 1;
+    // The first byte hashed by canonicalDigest().  Changing the normalization requires a new
+    // version, so that old digests don't match.
+    private static final int DIGEST_VERSION = 1;
     private final static BigInteger BIG_MILLION = BigInteger.valueOf(1000000);
     private final static BigInteger BIG_BILLION = BigInteger.valueOf(1000000000);
 
@@ -98,8 +141,8 @@ public class CalculatorExpr {
         abstract TokenKind kind();
 
         /**
-         * Write token as either a very small Byte containing the TokenKind,
-         * followed by data needed by subclass constructor,
+         * Write token in the current format as either a very small Byte containing the
+         * TokenKind, followed by data needed by subclass constructor,
          * or as a byte >= 0x20 directly describing the OPERATOR token.
          */
         abstract void write(DataOutput out) throws IOException;
@@ -136,6 +179,10 @@ public class CalculatorExpr {
 
         @Override
         public CharSequence toCharSequence(Context context) {
+            return toCharSequence(context, id);
+        }
+
+        static CharSequence toCharSequence(Context context, int id) {
             String desc = KeyMaps.toDescriptiveString(context, id);
             if (desc != null) {
                 SpannableString result = new SpannableString(KeyMaps.toString(context, id));
@@ -159,48 +206,88 @@ public class CalculatorExpr {
      */
     private static class Constant extends Token implements Cloneable {
         private boolean mSawDecimal;
-        private String mWhole;  // String preceding decimal point.
-        private String mFraction; // String after decimal point.
+        // Digits are appended and removed at the end, possibly many thousands of them when a
+        // long number is pasted, so we keep them in growable buffers rather than Strings.
+        private final StringBuilder mWhole = new StringBuilder();  // Digits before decimal point.
+        private final StringBuilder mFraction = new StringBuilder();  // Digits after it.
         private int mExponent;  // Explicit exponent, only generated through addExponent.
         private static int SAW_DECIMAL = 0x1;
         private static int HAS_EXPONENT = 0x2;
 
         Constant() {
-            mWhole = "";
-            mFraction = "";
             // mSawDecimal = false;
             // mExponent = 0;
         }
 
         ;
 
-        Constant(DataInput in) throws IOException {
-            mWhole = in.readUTF();
+        Constant(DataInput in, int version) throws IOException {
+            if (version == 0) {
+                mWhole.append(in.readUTF());
+                byte flags = in.readByte();
+                if ((flags & SAW_DECIMAL) != 0) {
+                    mSawDecimal = true;
+                    mFraction.append(in.readUTF());
+                } else {
+                    // mSawDecimal = false;
+                }
+                if ((flags & HAS_EXPONENT) != 0) {
+                    mExponent = in.readInt();
+                }
+                return;
+            }
             byte flags = in.readByte();
+            readDigits(in, mWhole);
             if ((flags & SAW_DECIMAL) != 0) {
                 mSawDecimal = true;
-                mFraction = in.readUTF();
-            } else {
-                // mSawDecimal = false;
-                mFraction = "";
+                readDigits(in, mFraction);
             }
             if ((flags & HAS_EXPONENT) != 0) {
-                mExponent = in.readInt();
+                mExponent = (int) readSignedVarLong(in);
             }
         }
 
+        Constant(ByteBuffer buf) throws IOException {
+            byte flags = buf.get();
+            readDigits(buf, mWhole);
+            if ((flags & SAW_DECIMAL) != 0) {
+                mSawDecimal = true;
+                readDigits(buf, mFraction);
+            }
+            if ((flags & HAS_EXPONENT) != 0) {
+                mExponent = (int) readSignedVarLong(buf);
+            }
+        }
+
+        /**
+         * Read an encoded constant from buf, and return its string representation, as for
+         * toString().
+         */
+        static String toString(ByteBuffer buf) throws IOException {
+            byte flags = buf.get();
+            final StringBuilder whole = new StringBuilder();
+            readDigits(buf, whole);
+            final boolean sawDecimal = (flags & SAW_DECIMAL) != 0;
+            final StringBuilder fraction = new StringBuilder();
+            if (sawDecimal) {
+                readDigits(buf, fraction);
+            }
+            final int exponent = (flags & HAS_EXPONENT) != 0 ? (int) readSignedVarLong(buf) : 0;
+            return toString(whole, sawDecimal, fraction, exponent);
+        }
+
         @Override
         void write(DataOutput out) throws IOException {
             byte flags = (byte) ((mSawDecimal ? SAW_DECIMAL : 0)
                     | (mExponent != 0 ? HAS_EXPONENT : 0));
             out.writeByte(TokenKind.CONSTANT.ordinal());
-            out.writeUTF(mWhole);
             out.writeByte(flags);
+            writeDigits(out, mWhole);
             if (mSawDecimal) {
-                out.writeUTF(mFraction);
+                writeDigits(out, mFraction);
             }
             if (mExponent != 0) {
-                out.writeInt(mExponent);
+                writeSignedVarLong(out, mExponent);
             }
         }
 
@@ -229,9 +316,9 @@ public class CalculatorExpr {
                 }
             }
             if (mSawDecimal) {
-                mFraction += val;
+                mFraction.append((char) ('0' + val));
             } else {
-                mWhole += val;
+                mWhole.append((char) ('0' + val));
             }
             return true;
         }
@@ -249,17 +336,17 @@ public class CalculatorExpr {
             if (mExponent != 0) {
                 mExponent /= 10;
                 // Once zero, it can only be added back with addExponent.
-            } else if (!mFraction.isEmpty()) {
-                mFraction = mFraction.substring(0, mFraction.length() - 1);
+            } else if (mFraction.length() != 0) {
+                mFraction.setLength(mFraction.length() - 1);
             } else if (mSawDecimal) {
                 mSawDecimal = false;
             } else {
-                mWhole = mWhole.substring(0, mWhole.length() - 1);
+                mWhole.setLength(mWhole.length() - 1);
             }
         }
 
         public boolean isEmpty() {
-            return (mSawDecimal == false && mWhole.isEmpty());
+            return (mSawDecimal == false && mWhole.length() == 0);
         }
 
         /**
@@ -269,18 +356,23 @@ public class CalculatorExpr {
          */
         @Override
         public String toString() {
+            return toString(mWhole, mSawDecimal, mFraction, mExponent);
+        }
+
+        private static String toString(CharSequence whole, boolean sawDecimal,
+                CharSequence fraction, int exponent) {
             String result;
-            if (mExponent != 0) {
-                result = mWhole;
+            if (exponent != 0) {
+                result = whole.toString();
             } else {
-                result = StringUtils.addCommas(mWhole, 0, mWhole.length());
+                result = StringUtils.addCommas(whole.toString(), 0, whole.length());
             }
-            if (mSawDecimal) {
+            if (sawDecimal) {
                 result += '.';
-                result += mFraction;
+                result += fraction;
             }
-            if (mExponent != 0) {
-                result += "E" + mExponent;
+            if (exponent != 0) {
+                result += "E" + exponent;
             }
             return KeyMaps.translateResult(result);
         }
@@ -290,17 +382,17 @@ public class CalculatorExpr {
          * Result is never null.
          */
         public BoundedRational toRational() throws SyntaxException {
-            String whole = mWhole;
-            if (whole.isEmpty()) {
-                if (mFraction.isEmpty()) {
-                    // Decimal point without digits.
-                    throw new SyntaxException();
-                } else {
-                    whole = "0";
-                }
+            if (mWhole.length() == 0 && mFraction.length() == 0) {
+                // Decimal point without digits.
+                throw new SyntaxException();
             }
-            BigInteger num = new BigInteger(whole + mFraction);
-            BigInteger den = BigInteger.TEN.pow(mFraction.length());
+            // Converting the digits directly, rather than through new BigInteger(String), takes
+            // less than quadratic time for long constants.
+            final int fractionLength = mFraction.length();
+            BigInteger num = StringUtils.parseDigits(mWhole, 0, mWhole.length())
+                    .multiply(BigInteger.TEN.pow(fractionLength))
+                    .add(StringUtils.parseDigits(mFraction, 0, fractionLength));
+            BigInteger den = BigInteger.TEN.pow(fractionLength);
             if (mExponent > 0) {
                 num = num.multiply(BigInteger.TEN.pow(mExponent));
             }
@@ -310,6 +402,34 @@ public class CalculatorExpr {
             return new BoundedRational(num, den);
         }
 
+        /**
+         * Write the value of the constant for canonicalDigest(), as its significant digits and
+         * a power of ten, so that e.g. 1.50, 01.5 and 15E-1 are written identically.
+         */
+        void writeCanonical(DataOutput out) throws IOException {
+            out.writeByte(TokenKind.CONSTANT.ordinal());
+            if (mWhole.length() == 0 && mFraction.length() == 0) {
+                // Decimal point without digits, which fails to evaluate.
+                out.writeBoolean(false);
+                return;
+            }
+            out.writeBoolean(true);
+            final StringBuilder digits = new StringBuilder(mWhole.length() + mFraction.length());
+            digits.append(mWhole).append(mFraction);
+            long exponent = (long) mExponent - mFraction.length();
+            int end = digits.length();
+            while (end > 0 && digits.charAt(end - 1) == '0') {
+                --end;
+                ++exponent;
+            }
+            int start = 0;
+            while (start < end && digits.charAt(start) == '0') {
+                ++start;
+            }
+            writeDigits(out, digits.subSequence(start, end));
+            writeSignedVarLong(out, start == end ? 0 : exponent);
+        }
+
         @Override
         public CharSequence toCharSequence(Context context) {
             return toString();
@@ -324,8 +444,8 @@ public class CalculatorExpr {
         @Override
         public Object clone() {
             Constant result = new Constant();
-            result.mWhole = mWhole;
-            result.mFraction = mFraction;
+            result.mWhole.append(mWhole);
+            result.mFraction.append(mFraction);
             result.mSawDecimal = mSawDecimal;
             result.mExponent = mExponent;
             return result;
@@ -361,17 +481,42 @@ public class CalculatorExpr {
         // find referenced subexpressions, and iteratively write those as well.
         public void write(DataOutput out) throws IOException {
             out.writeByte(TokenKind.PRE_EVAL.ordinal());
-            if (mIndex > Integer.MAX_VALUE || mIndex < Integer.MIN_VALUE) {
-                // This would be millions of expressions per day for the life of the device.
-                throw new AssertionError("Expression index too big");
+            writeSignedVarLong(out, mIndex);
+            final byte[] shortRep = mShortRep.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(out, shortRep.length);
+            out.write(shortRep);
+        }
+
+        PreEval(DataInput in, int version) throws IOException {
+            if (version == 0) {
+                mIndex = in.readInt();
+                mShortRep = in.readUTF();
+            } else {
+                mIndex = readSignedVarLong(in);
+                final byte[] shortRep = new byte[readLength(in)];
+                in.readFully(shortRep);
+                mShortRep = new String(shortRep, StandardCharsets.UTF_8);
             }
-            out.writeInt((int) mIndex);
-            out.writeUTF(mShortRep);
         }
 
-        PreEval(DataInput in) throws IOException {
-            mIndex = in.readInt();
-            mShortRep = in.readUTF();
+        PreEval(ByteBuffer buf) throws IOException {
+            mIndex = readSignedVarLong(buf);
+            mShortRep = readShortRep(buf);
+        }
+
+        private static String readShortRep(ByteBuffer buf) throws IOException {
+            final byte[] shortRep = new byte[readLength(buf)];
+            buf.get(shortRep);
+            return new String(shortRep, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Read an encoded PreEval from buf, and return its textual representation, as for
+         * toCharSequence().
+         */
+        static CharSequence toCharSequence(ByteBuffer buf) throws IOException {
+            readVarLong(buf);  // The index.
+            return KeyMaps.translateResult(readShortRep(buf));
         }
 
         @Override
@@ -390,17 +535,149 @@ public class CalculatorExpr {
     }
 
     /**
-     * Read token from in.
+     * Write the nonnegative integer n in 7-bit groups, least significant first, with the high
+     * bit of each byte set if more bytes follow.
      */
-    public static Token newToken(DataInput in) throws IOException {
+    private static void writeVarLong(DataOutput out, long n) throws IOException {
+        while ((n & ~0x7fL) != 0) {
+            out.writeByte((int) (n & 0x7f) | 0x80);
+            n >>>= 7;
+        }
+        out.writeByte((int) n);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Bad save file format");
+    }
+
+    /**
+     * Write n as a variable length integer, after mapping small negative values to small
+     * nonnegative ones (0, -1, 1, -2, ... to 0, 1, 2, 3, ...).
+     */
+    private static void writeSignedVarLong(DataOutput out, long n) throws IOException {
+        writeVarLong(out, (n << 1) ^ (n >> 63));
+    }
+
+    private static long readSignedVarLong(DataInput in) throws IOException {
+        final long n = readVarLong(in);
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    /**
+     * Read a count or length, which must fit in an int.
+     */
+    private static int readLength(DataInput in) throws IOException {
+        final long n = readVarLong(in);
+        if (n < 0 || n > Integer.MAX_VALUE) {
+            throw new IOException("Bad save file format");
+        }
+        return (int) n;
+    }
+
+    /**
+     * Write a string of decimal digits as its length, followed by the digits packed two per
+     * byte, the first in the high order nibble.
+     */
+    private static void writeDigits(DataOutput out, CharSequence digits) throws IOException {
+        final int len = digits.length();
+        writeVarLong(out, len);
+        final byte[] packed = new byte[(len + 1) / 2];
+        for (int i = 0; i < len; ++i) {
+            final int d = digits.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                throw new AssertionError("Non-digit in constant");
+            }
+            packed[i / 2] |= (i % 2 == 0 ? d << 4 : d);
+        }
+        out.write(packed);
+    }
+
+    /**
+     * Read digits written by writeDigits(), and append them to digits.
+     */
+    private static void readDigits(DataInput in, StringBuilder digits) throws IOException {
+        final int len = readLength(in);
+        final byte[] packed = new byte[(len + 1) / 2];
+        in.readFully(packed);
+        digits.ensureCapacity(digits.length() + len);
+        for (int i = 0; i < len; ++i) {
+            final int d = i % 2 == 0 ? (packed[i / 2] >> 4) & 0xf : packed[i / 2] & 0xf;
+            if (d > 9) {
+                throw new IOException("Bad save file format");
+            }
+            digits.append((char) ('0' + d));
+        }
+    }
+
+    // The same, reading from a ByteBuffer holding the current format.
+
+    private static long readVarLong(ByteBuffer buf) throws IOException {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = buf.get();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return result;
+            }
+        }
+        throw new IOException("Bad save file format");
+    }
+
+    private static long readSignedVarLong(ByteBuffer buf) throws IOException {
+        final long n = readVarLong(buf);
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static int readLength(ByteBuffer buf) throws IOException {
+        final long n = readVarLong(buf);
+        if (n < 0 || n > Integer.MAX_VALUE) {
+            throw new IOException("Bad save file format");
+        }
+        return (int) n;
+    }
+
+    private static void readDigits(ByteBuffer buf, StringBuilder digits) throws IOException {
+        final int len = readLength(buf);
+        digits.ensureCapacity(digits.length() + len);
+        int b = 0;
+        for (int i = 0; i < len; ++i) {
+            final int d;
+            if (i % 2 == 0) {
+                b = buf.get();
+                d = (b >> 4) & 0xf;
+            } else {
+                d = b & 0xf;
+            }
+            if (d > 9) {
+                throw new IOException("Bad save file format");
+            }
+            digits.append((char) ('0' + d));
+        }
+    }
+
+    /**
+     * Read token in the given format version from in.
+     */
+    private static Token newToken(DataInput in, int version) throws IOException {
         byte kindByte = in.readByte();
         if (kindByte < 0x20) {
+            if (kindByte < 0 || kindByte >= tokenKindValues.length) {
+                throw new IOException("Bad save file format");
+            }
             TokenKind kind = tokenKindValues[kindByte];
             switch (kind) {
                 case CONSTANT:
-                    return new Constant(in);
+                    return new Constant(in, version);
                 case PRE_EVAL:
-                    PreEval pe = new PreEval(in);
+                    PreEval pe = new PreEval(in, version);
                     if (pe.mIndex == -1) {
                         // Database corrupted by earlier bug.
                         // Return a conspicuously wrong placeholder that won't lead to a crash.
@@ -418,6 +695,42 @@ public class CalculatorExpr {
         }
     }
 
+    /**
+     * Read token in the current format from buf.
+     */
+    private static Token newToken(ByteBuffer buf) throws IOException {
+        byte kindByte = buf.get();
+        if (kindByte >= 0x20) {
+            return new Operator(kindByte);
+        }
+        if (kindByte == TokenKind.CONSTANT.ordinal()) {
+            return new Constant(buf);
+        }
+        if (kindByte == TokenKind.PRE_EVAL.ordinal()) {
+            return new PreEval(buf);
+        }
+        throw new IOException("Bad save file format");
+    }
+
+    /**
+     * Read token in the current format from buf, and return its textual representation,
+     * without building the token.
+     */
+    private static CharSequence encodedTokenToCharSequence(ByteBuffer buf, Context context)
+            throws IOException {
+        byte kindByte = buf.get();
+        if (kindByte >= 0x20) {
+            return Operator.toCharSequence(context, KeyMaps.fromByte(kindByte));
+        }
+        if (kindByte == TokenKind.CONSTANT.ordinal()) {
+            return Constant.toString(buf);
+        }
+        if (kindByte == TokenKind.PRE_EVAL.ordinal()) {
+            return PreEval.toCharSequence(buf);
+        }
+        throw new IOException("Bad save file format");
+    }
+
     public CalculatorExpr() {
         mExpr = new ArrayList<Token>();
     }
@@ -427,24 +740,106 @@ public class CalculatorExpr {
     }
 
     /**
-     * Construct CalculatorExpr, by reading it from in.
+     * Construct CalculatorExpr, by reading it from in, in either the current or the original
+     * format.
      */
     CalculatorExpr(DataInput in) throws IOException {
-        mExpr = new ArrayList<Token>();
-        int size = in.readInt();
+        mExpr = readTokens(in);
+    }
+
+    /**
+     * Construct CalculatorExpr from the serialized representation in buf, e.g. a database row.
+     * An expression in the current format is decoded directly from buf, and only when its tokens
+     * are first needed.  toSpannableStringBuilder() and write() work from the encoded form.
+     * Thus buf must not be modified afterwards.
+     */
+    CalculatorExpr(ByteBuffer buf) throws IOException {
+        if (buf.hasRemaining() && (buf.get(buf.position()) & VERSIONED) != 0) {
+            final int version = buf.get(buf.position()) & 0xff & ~VERSIONED;
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unknown save file format version " + version);
+            }
+            mEncoded = buf.slice();
+        } else {
+            final byte[] bytes = new byte[buf.remaining()];
+            buf.duplicate().get(bytes);
+            mExpr = readTokens(new DataInputStream(new ByteArrayInputStream(bytes)));
+        }
+    }
+
+    private static ArrayList<Token> readTokens(DataInput in) throws IOException {
+        final ArrayList<Token> result = new ArrayList<Token>();
+        final int first = in.readUnsignedByte();
+        final int version;
+        final int size;
+        if ((first & VERSIONED) == 0) {
+            // The original format, starting with a four byte token count.
+            version = 0;
+            size = first << 24 | in.readUnsignedByte() << 16 | in.readUnsignedShort();
+        } else {
+            version = first & ~VERSIONED;
+            if (version > FORMAT_VERSION) {
+                throw new IOException("Unknown save file format version " + version);
+            }
+            size = readLength(in);
+        }
         for (int i = 0; i < size; ++i) {
-            mExpr.add(newToken(in));
+            result.add(newToken(in, version));
+        }
+        return result;
+    }
+
+    /**
+     * Return the undecoded form of this expression, or null if it has been decoded.
+     * Each call returns a new buffer, positioned at the start.
+     */
+    private synchronized ByteBuffer encoded() {
+        return mEncoded == null ? null : mEncoded.duplicate();
+    }
+
+    /**
+     * Return the tokens making up this expression, decoding them if necessary.
+     */
+    private ArrayList<Token> tokens() {
+        final ArrayList<Token> result = mExpr;
+        return result != null ? result : decode();
+    }
+
+    private synchronized ArrayList<Token> decode() {
+        if (mExpr == null) {
+            final ArrayList<Token> result = new ArrayList<Token>();
+            final ByteBuffer buf = mEncoded.duplicate();
+            try {
+                buf.get();  // The version byte, checked by the constructor.
+                final int size = readLength(buf);
+                for (int i = 0; i < size; ++i) {
+                    result.add(newToken(buf));
+                }
+            } catch (IOException | BufferUnderflowException e) {
+                throw new AssertionError("Bad save file format", e);
+            }
+            mExpr = result;
+            mEncoded = null;
         }
+        return mExpr;
     }
 
     /**
-     * Write this expression to out.
+     * Write this expression to out, in the current format.
      */
     public void write(DataOutput out) throws IOException {
-        int size = mExpr.size();
-        out.writeInt(size);
+        final ByteBuffer encoded = encoded();
+        if (encoded != null) {
+            final byte[] bytes = new byte[encoded.remaining()];
+            encoded.get(bytes);
+            out.write(bytes);
+            return;
+        }
+        int size = tokens().size();
+        out.writeByte(VERSIONED | FORMAT_VERSION);
+        writeVarLong(out, size);
         for (int i = 0; i < size; ++i) {
-            mExpr.get(i).write(out);
+            tokens().get(i).write(out);
         }
     }
 
@@ -468,11 +863,11 @@ public class CalculatorExpr {
      * As opposed to an operator or preevaluated expression.
      */
     public boolean hasTrailingConstant() {
-        int s = mExpr.size();
+        int s = tokens().size();
         if (s == 0) {
             return false;
         }
-        Token t = mExpr.get(s - 1);
+        Token t = tokens().get(s - 1);
         return t instanceof Constant;
     }
 
@@ -480,9 +875,9 @@ public class CalculatorExpr {
      * Does this expression end with a binary operator?
      */
     public boolean hasTrailingBinary() {
-        int s = mExpr.size();
+        int s = tokens().size();
         if (s == 0) return false;
-        Token t = mExpr.get(s - 1);
+        Token t = tokens().get(s - 1);
         if (!(t instanceof Operator)) return false;
         Operator o = (Operator) t;
         return (KeyMaps.isBinary(o.id));
@@ -496,10 +891,10 @@ public class CalculatorExpr {
      * operator.
      */
     public boolean add(int id) {
-        int s = mExpr.size();
+        int s = tokens().size();
         final int d = KeyMaps.digVal(id);
         final boolean binary = KeyMaps.isBinary(id);
-        Token lastTok = s == 0 ? null : mExpr.get(s - 1);
+        Token lastTok = s == 0 ? null : tokens().get(s - 1);
         int lastOp = lastTok instanceof Operator ? ((Operator) lastTok).id : 0;
         // Quietly replace a trailing binary operator with another one, unless the second
         // operator is minus, in which case we just allow it as a unary minus.
@@ -516,24 +911,26 @@ public class CalculatorExpr {
         final boolean isConstPiece = (d != KeyMaps.NOT_DIGIT || id == R.id.dec_point);
         if (isConstPiece) {
             // Since we treat juxtaposition as multiplication, a constant can appear anywhere.
+            changed(s == 0 ? 0 : s - 1);
             if (s == 0) {
-                mExpr.add(new Constant());
+                tokens().add(new Constant());
                 s++;
             } else {
-                Token last = mExpr.get(s - 1);
+                Token last = tokens().get(s - 1);
                 if (!(last instanceof Constant)) {
                     if (last instanceof PreEval) {
                         // Add explicit multiplication to avoid confusing display.
-                        mExpr.add(new Operator(R.id.op_mul));
+                        tokens().add(new Operator(R.id.op_mul));
                         s++;
                     }
-                    mExpr.add(new Constant());
+                    tokens().add(new Constant());
                     s++;
                 }
             }
-            return ((Constant) (mExpr.get(s - 1))).add(id);
+            return ((Constant) (tokens().get(s - 1))).add(id);
         } else {
-            mExpr.add(new Operator(id));
+            changed(tokens().size());
+            tokens().add(new Operator(id));
             return true;
         }
     }
@@ -543,7 +940,8 @@ public class CalculatorExpr {
      * Assumes there is a constant at the end of the expression.
      */
     public void addExponent(int exp) {
-        Token lastTok = mExpr.get(mExpr.size() - 1);
+        changed(tokens().size() - 1);
+        Token lastTok = tokens().get(tokens().size() - 1);
         ((Constant) lastTok).addExponent(exp);
     }
 
@@ -552,11 +950,11 @@ public class CalculatorExpr {
      */
     public void removeTrailingAdditiveOperators() {
         while (true) {
-            int s = mExpr.size();
+            int s = tokens().size();
             if (s == 0) {
                 break;
             }
-            Token lastTok = mExpr.get(s - 1);
+            Token lastTok = tokens().get(s - 1);
             if (!(lastTok instanceof Operator)) {
                 break;
             }
@@ -577,24 +975,25 @@ public class CalculatorExpr {
         int s = 0;
         int s2 = 0;
         try {
-            s = mExpr.size();
-            s2 = expr2.mExpr.size();
+            s = tokens().size();
+            s2 = expr2.tokens().size();
         } catch (Exception e) {
             e.printStackTrace();
         }
         // Check that we're not concatenating Constant or PreEval tokens, since the result would
         // look like a single constant, with very mysterious results for the user.
+        changed(s);
         if (s != 0 && s2 != 0) {
-            Token last = mExpr.get(s - 1);
-            Token first = expr2.mExpr.get(0);
+            Token last = tokens().get(s - 1);
+            Token first = expr2.tokens().get(0);
             if (!(first instanceof Operator) && !(last instanceof Operator)) {
                 // Fudge it by adding an explicit multiplication.  We would have interpreted it as
                 // such anyway, and this makes it recognizable to the user.
-                mExpr.add(new Operator(R.id.op_mul));
+                tokens().add(new Operator(R.id.op_mul));
             }
         }
         for (int i = 0; i < s2; ++i) {
-            mExpr.add(expr2.mExpr.get(i));
+            tokens().add(expr2.tokens().get(i));
         }
     }
 
@@ -603,11 +1002,12 @@ public class CalculatorExpr {
      * Or possibly remove a trailing exponent digit.
      */
     public void delete() {
-        final int s = mExpr.size();
+        final int s = tokens().size();
         if (s == 0) {
             return;
         }
-        Token last = mExpr.get(s - 1);
+        changed(s - 1);
+        Token last = tokens().get(s - 1);
         if (last instanceof Constant) {
             Constant c = (Constant) last;
             c.delete();
@@ -615,18 +1015,19 @@ public class CalculatorExpr {
                 return;
             }
         }
-        mExpr.remove(s - 1);
+        tokens().remove(s - 1);
     }
 
     /**
      * Remove all tokens from the expression.
      */
     public void clear() {
-        mExpr.clear();
+        changed(0);
+        tokens().clear();
     }
 
     public boolean isEmpty() {
-        return mExpr.isEmpty();
+        return tokens().isEmpty();
     }
 
     /**
@@ -635,22 +1036,34 @@ public class CalculatorExpr {
      */
     public Object clone() {
         CalculatorExpr result = new CalculatorExpr();
-        for (Token t : mExpr) {
+        final ByteBuffer encoded = encoded();
+        if (encoded != null) {
+            // Nothing to copy yet; the encoding is immutable.
+            result.mExpr = null;
+            result.mEncoded = encoded;
+            return result;
+        }
+        for (Token t : tokens()) {
             if (t instanceof Constant) {
                 result.mExpr.add((Token) (((Constant) t).clone()));
             } else {
                 result.mExpr.add(t);
             }
         }
+        synchronized (this) {
+            result.mTree = mTree;
+            result.mTreePrefixLength = mTreePrefixLength;
+            result.mFirstChange = mFirstChange;
+        }
         return result;
     }
 
     // Am I just a constant?
     public boolean isConstant() {
-        if (mExpr.size() != 1) {
+        if (tokens().size() != 1) {
             return false;
         }
-        return mExpr.get(0) instanceof Constant;
+        return tokens().get(0) instanceof Constant;
     }
 
     /**
@@ -668,24 +1081,9 @@ public class CalculatorExpr {
     }
 
     /**
-     * Internal evaluation functions return an EvalRet pair.
-     * We compute rational (BoundedRational) results when possible, both as a performance
-     * optimization, and to detect errors exactly when we can.
-     */
-    private static class EvalRet {
-        public int pos; // Next position (expression index) to be parsed.
-        public final UnifiedReal val; // Constructive Real result of evaluating subexpression.
-
-        EvalRet(int p, UnifiedReal v) {
-            pos = p;
-            val = v;
-        }
-    }
-
-    /**
-     * Internal evaluation functions take an EvalContext argument.
+     * Evaluation of parse trees takes an EvalContext argument.
      */
-    private static class EvalContext {
+    static class EvalContext {
         public final int mPrefixLength; // Length of prefix to evaluate. Not explicitly saved.
         public final boolean mDegreeMode;
         public final ExprResolver mExprResolver;  // Reconstructed, not saved.
@@ -708,40 +1106,14 @@ public class CalculatorExpr {
         }
     }
 
-    private UnifiedReal toRadians(UnifiedReal x, EvalContext ec) {
-        if (ec.mDegreeMode) {
-            return x.multiply(UnifiedReal.RADIANS_PER_DEGREE);
-        } else {
-            return x;
-        }
-    }
-
-    private UnifiedReal fromRadians(UnifiedReal x, EvalContext ec) {
-        if (ec.mDegreeMode) {
-            return x.divide(UnifiedReal.RADIANS_PER_DEGREE);
-        } else {
-            return x;
-        }
-    }
-
-    // The following methods can all throw IndexOutOfBoundsException in the event of a syntax
-    // error.  We expect that to be caught in eval below.
-
     private boolean isOperatorUnchecked(int i, int op) {
-        Token t = mExpr.get(i);
+        Token t = tokens().get(i);
         if (!(t instanceof Operator)) {
             return false;
         }
         return ((Operator) (t)).id == op;
     }
 
-    private boolean isOperator(int i, int op, EvalContext ec) {
-        if (i >= ec.mPrefixLength) {
-            return false;
-        }
-        return isOperatorUnchecked(i, op);
-    }
-
     public static class SyntaxException extends Exception {
         public SyntaxException() {
             super();
@@ -752,159 +1124,9 @@ public class CalculatorExpr {
         }
     }
 
-    // The following functions all evaluate some kind of expression starting at position i in
-    // mExpr in a specified evaluation context.  They return both the expression value (as
-    // constructive real and, if applicable, as BoundedRational) and the position of the next token
-    // that was not used as part of the evaluation.
-    // This is essentially a simple recursive descent parser combined with expression evaluation.
-
-    private EvalRet evalUnary(int i, EvalContext ec) throws SyntaxException {
-        final Token t = mExpr.get(i);
-        if (t instanceof Constant) {
-            Constant c = (Constant) t;
-            return new EvalRet(i + 1, new UnifiedReal(c.toRational()));
-        }
-        if (t instanceof PreEval) {
-            final long index = ((PreEval) t).mIndex;
-            UnifiedReal res = ec.mExprResolver.getResult(index);
-            if (res == null) {
-                // We try to minimize this recursive evaluation case, but currently don't
-                // completely avoid it.
-                res = nestedEval(index, ec.mExprResolver);
-            }
-            return new EvalRet(i + 1, res);
-        }
-        EvalRet argVal;
-        switch (((Operator) (t)).id) {
-            case R.id.const_pi:
-                return new EvalRet(i + 1, UnifiedReal.PI);
-            case R.id.const_e:
-                return new EvalRet(i + 1, UnifiedReal.E);
-            case R.id.op_sqrt:
-                // Seems to have highest precedence.
-                // Does not add implicit paren.
-                // Does seem to accept a leading minus.
-                if (isOperator(i + 1, R.id.op_sub, ec)) {
-                    argVal = evalUnary(i + 2, ec);
-                    return new EvalRet(argVal.pos, argVal.val.negate().sqrt());
-                } else {
-                    argVal = evalUnary(i + 1, ec);
-                    return new EvalRet(argVal.pos, argVal.val.sqrt());
-                }
-            case R.id.lparen:
-                argVal = evalExpr(i + 1, ec);
-                if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                    argVal.pos++;
-                }
-                return new EvalRet(argVal.pos, argVal.val);
-            case R.id.fun_sin:
-                argVal = evalExpr(i + 1, ec);
-                if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                    argVal.pos++;
-                }
-                return new EvalRet(argVal.pos, toRadians(argVal.val, ec).sin());
-            case R.id.fun_cos:
-                argVal = evalExpr(i + 1, ec);
-                if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                    argVal.pos++;
-                }
-                return new EvalRet(argVal.pos, toRadians(argVal.val, ec).cos());
-            case R.id.fun_tan:
-                argVal = evalExpr(i + 1, ec);
-                if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                    argVal.pos++;
-                }
-                UnifiedReal arg = toRadians(argVal.val, ec);
-                return new EvalRet(argVal.pos, arg.sin().divide(arg.cos()));
-            case R.id.fun_ln:
-                argVal = evalExpr(i + 1, ec);
-                if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                    argVal.pos++;
-                }
-                return new EvalRet(argVal.pos, argVal.val.ln());
-            case R.id.fun_exp:
-                argVal = evalExpr(i + 1, ec);
-                if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                    argVal.pos++;
-                }
-                return new EvalRet(argVal.pos, argVal.val.exp());
-            case R.id.fun_log:
-                argVal = evalExpr(i + 1, ec);
-                if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                    argVal.pos++;
-                }
-                return new EvalRet(argVal.pos, argVal.val.ln().divide(UnifiedReal.TEN.ln()));
-            case R.id.fun_arcsin:
-                argVal = evalExpr(i + 1, ec);
-                if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                    argVal.pos++;
-                }
-                return new EvalRet(argVal.pos, fromRadians(argVal.val.asin(), ec));
-            case R.id.fun_arccos:
-                argVal = evalExpr(i + 1, ec);
-                if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                    argVal.pos++;
-                }
-                return new EvalRet(argVal.pos, fromRadians(argVal.val.acos(), ec));
-            case R.id.fun_arctan:
-                argVal = evalExpr(i + 1, ec);
-                if (isOperator(argVal.pos, R.id.rparen, ec)) {
-                    argVal.pos++;
-                }
-                return new EvalRet(argVal.pos, fromRadians(argVal.val.atan(), ec));
-            default:
-                throw new SyntaxException("Unrecognized token in expression");
-        }
-    }
-
-    private static final UnifiedReal ONE_HUNDREDTH = new UnifiedReal(100).inverse();
-
-    private EvalRet evalSuffix(int i, EvalContext ec) throws SyntaxException {
-        final EvalRet tmp = evalUnary(i, ec);
-        int cpos = tmp.pos;
-        UnifiedReal val = tmp.val;
-
-        boolean isFact;
-        boolean isSquared = false;
-        while ((isFact = isOperator(cpos, R.id.op_fact, ec)) ||
-                (isSquared = isOperator(cpos, R.id.op_sqr, ec)) ||
-                isOperator(cpos, R.id.op_pct, ec)) {
-            if (isFact) {
-                val = val.fact();
-            } else if (isSquared) {
-                val = val.multiply(val);
-            } else /* percent */ {
-                val = val.multiply(ONE_HUNDREDTH);
-            }
-            ++cpos;
-        }
-        return new EvalRet(cpos, val);
-    }
-
-    private EvalRet evalFactor(int i, EvalContext ec) throws SyntaxException {
-        final EvalRet result1 = evalSuffix(i, ec);
-        int cpos = result1.pos;  // current position
-        UnifiedReal val = result1.val;   // value so far
-        if (isOperator(cpos, R.id.op_pow, ec)) {
-            final EvalRet exp = evalSignedFactor(cpos + 1, ec);
-            cpos = exp.pos;
-            val = val.pow(exp.val);
-        }
-        return new EvalRet(cpos, val);
-    }
-
-    private EvalRet evalSignedFactor(int i, EvalContext ec) throws SyntaxException {
-        final boolean negative = isOperator(i, R.id.op_sub, ec);
-        int cpos = negative ? i + 1 : i;
-        EvalRet tmp = evalFactor(cpos, ec);
-        cpos = tmp.pos;
-        final UnifiedReal result = negative ? tmp.val.negate() : tmp.val;
-        return new EvalRet(cpos, result);
-    }
-
     private boolean canStartFactor(int i) {
-        if (i >= mExpr.size()) return false;
-        Token t = mExpr.get(i);
+        if (i >= tokens().size()) return false;
+        Token t = tokens().get(i);
         if (!(t instanceof Operator)) return true;
         int id = ((Operator) (t)).id;
         if (KeyMaps.isBinary(id)) return false;
@@ -917,28 +1139,6 @@ public class CalculatorExpr {
         }
     }
 
-    private EvalRet evalTerm(int i, EvalContext ec) throws SyntaxException {
-        EvalRet tmp = evalSignedFactor(i, ec);
-        boolean is_mul = false;
-        boolean is_div = false;
-        int cpos = tmp.pos;   // Current position in expression.
-        UnifiedReal val = tmp.val;    // Current value.
-        while ((is_mul = isOperator(cpos, R.id.op_mul, ec))
-                || (is_div = isOperator(cpos, R.id.op_div, ec))
-                || canStartFactor(cpos)) {
-            if (is_mul || is_div) ++cpos;
-            tmp = evalSignedFactor(cpos, ec);
-            if (is_div) {
-                val = val.divide(tmp.val);
-            } else {
-                val = val.multiply(tmp.val);
-            }
-            cpos = tmp.pos;
-            is_mul = is_div = false;
-        }
-        return new EvalRet(cpos, val);
-    }
-
     /**
      * Is the subexpression starting at pos a simple percent constant?
      * This is used to recognize exppressions like 200+10%, which we handle specially.
@@ -951,69 +1151,649 @@ public class CalculatorExpr {
      * but is consistent with Google web search.
      */
     private boolean isPercent(int pos) {
-        if (mExpr.size() < pos + 2 || !isOperatorUnchecked(pos + 1, R.id.op_pct)) {
+        if (tokens().size() < pos + 2 || !isOperatorUnchecked(pos + 1, R.id.op_pct)) {
             return false;
         }
-        Token number = mExpr.get(pos);
+        Token number = tokens().get(pos);
         if (number instanceof Operator) {
             return false;
         }
-        if (mExpr.size() == pos + 2) {
+        if (tokens().size() == pos + 2) {
             return true;
         }
-        if (!(mExpr.get(pos + 2) instanceof Operator)) {
+        if (!(tokens().get(pos + 2) instanceof Operator)) {
             return false;
         }
-        Operator op = (Operator) mExpr.get(pos + 2);
+        Operator op = (Operator) tokens().get(pos + 2);
         return op.id == R.id.op_add || op.id == R.id.op_sub || op.id == R.id.rparen;
     }
 
     /**
-     * Compute the multiplicative factor corresponding to an N% addition or subtraction.
-     *
-     * @param pos           position of Constant or PreEval expression token corresponding to N.
-     * @param isSubtraction this is a subtraction, as opposed to addition.
-     * @param ec            usable evaluation contex; only length matters.
-     * @return UnifiedReal value and position, which is pos + 2, i.e. after percent sign
+     * A simple recursive descent parser, producing an ExprNode tree for the first mPrefixLength
+     * tokens of mExpr.
+     * Each method parses some kind of expression starting at position i, and is passed the node
+     * that the same method produced at position i for an earlier version of the expression, if
+     * there was one.  Subtrees of the old node that end before mChanged, the first position that
+     * may have changed since, are reused, so that an edit near the end of the expression only
+     * reparses the rightmost spine of the tree.  Left associative chains are reused by walking
+     * down their left spine to the longest unchanged prefix, and are then continued.
+     * Parsing stops at the first error, which is recorded in the tree.  The tokens examined,
+     * including those beyond the prefix, are exactly those examined by the original recursive
+     * descent evaluator.
      */
-    private EvalRet getPercentFactor(int pos, boolean isSubtraction, EvalContext ec)
-            throws SyntaxException {
-        EvalRet tmp = evalUnary(pos, ec);
-        UnifiedReal val = isSubtraction ? tmp.val.negate() : tmp.val;
-        val = UnifiedReal.ONE.add(val.multiply(ONE_HUNDREDTH));
-        return new EvalRet(pos + 2 /* after percent sign */, val);
+    private final class Parser {
+        private final int mPrefixLength;
+        private final int mChanged;
+
+        Parser(int prefixLength, int changed) {
+            mPrefixLength = prefixLength;
+            mChanged = changed;
+        }
+
+        private boolean isOperator(int i, int op) {
+            if (i >= mPrefixLength) {
+                return false;
+            }
+            return isOperatorUnchecked(i, op);
+        }
+
+        private boolean reusable(ExprNode old, int i) {
+            return old != null && old.mStart == i && old.mEnd < mChanged;
+        }
+
+        // Is old a chain node generated by expr(i) or term(i)?
+        private boolean isSumChain(ExprNode old, int i) {
+            if (old == null || old.mStart != i) {
+                return false;
+            }
+            if (old instanceof ExprNode.PercentChange) {
+                return true;
+            }
+            if (!(old instanceof ExprNode.Binary)) {
+                return false;
+            }
+            final int id = ((ExprNode.Binary) old).mId;
+            return id == R.id.op_add || id == R.id.op_sub;
+        }
+
+        private boolean isProductChain(ExprNode old, int i) {
+            if (!(old instanceof ExprNode.Binary) || old.mStart != i) {
+                return false;
+            }
+            final int id = ((ExprNode.Binary) old).mId;
+            return id == R.id.op_mul || id == R.id.op_div;
+        }
+
+        // Parse the argument of a function, and the optional closing parenthesis.
+        private ExprNode function(int i, int id, ExprNode old) {
+            final ExprNode oldArg = old instanceof ExprNode.Function
+                    && ((ExprNode.Function) old).mId == id ? ((ExprNode.Function) old).mArg : null;
+            final ExprNode arg = expr(i + 1, oldArg);
+            int end = arg.mEnd;
+            if (!arg.mFailed && isOperator(end, R.id.rparen)) {
+                end++;
+            }
+            return new ExprNode.Function(i, id, arg, end);
+        }
+
+        ExprNode unary(int i, ExprNode old) {
+            if (reusable(old, i)) {
+                return old;
+            }
+            if (i >= tokens().size()) {
+                return new ExprNode.Error(i, null);
+            }
+            final Token t = tokens().get(i);
+            if (t instanceof Constant) {
+                BoundedRational value;
+                try {
+                    value = ((Constant) t).toRational();
+                } catch (SyntaxException e) {
+                    value = null;
+                }
+                return new ExprNode.Literal(i, value);
+            }
+            if (t instanceof PreEval) {
+                return new ExprNode.Reference(i, ((PreEval) t).mIndex);
+            }
+            final int id = ((Operator) (t)).id;
+            switch (id) {
+                case R.id.const_pi:
+                    return new ExprNode.Named(i, UnifiedReal.PI);
+                case R.id.const_e:
+                    return new ExprNode.Named(i, UnifiedReal.E);
+                case R.id.op_sqrt:
+                    // Seems to have highest precedence.
+                    // Does not add implicit paren.
+                    // Does seem to accept a leading minus.
+                    final ExprNode oldArg = old instanceof ExprNode.Function
+                            && ((ExprNode.Function) old).mId == id
+                            ? ((ExprNode.Function) old).mArg : null;
+                    final ExprNode arg;
+                    if (isOperator(i + 1, R.id.op_sub)) {
+                        final ExprNode oldOperand = oldArg instanceof ExprNode.Negate
+                                ? ((ExprNode.Negate) oldArg).mOperand : null;
+                        arg = new ExprNode.Negate(i + 1, unary(i + 2, oldOperand));
+                    } else {
+                        arg = unary(i + 1, oldArg);
+                    }
+                    return new ExprNode.Function(i, id, arg, arg.mEnd);
+                case R.id.lparen:
+                    final ExprNode inner = expr(i + 1,
+                            old instanceof ExprNode.Group ? ((ExprNode.Group) old).mInner : null);
+                    int end = inner.mEnd;
+                    if (!inner.mFailed && isOperator(end, R.id.rparen)) {
+                        end++;
+                    }
+                    return new ExprNode.Group(i, inner, end);
+                case R.id.fun_sin:
+                case R.id.fun_cos:
+                case R.id.fun_tan:
+                case R.id.fun_ln:
+                case R.id.fun_exp:
+                case R.id.fun_log:
+                case R.id.fun_arcsin:
+                case R.id.fun_arccos:
+                case R.id.fun_arctan:
+                    return function(i, id, old);
+                default:
+                    return new ExprNode.Error(i, "Unrecognized token in expression");
+            }
+        }
+
+        ExprNode suffix(int i, ExprNode old) {
+            if (reusable(old, i)) {
+                return old;
+            }
+            while (old instanceof ExprNode.Suffix && old.mStart == i && !reusable(old, i)) {
+                old = ((ExprNode.Suffix) old).mLeft;
+            }
+            ExprNode val = old instanceof ExprNode.Suffix && reusable(old, i) ? old
+                    : unary(i, old);
+            while (!val.mFailed) {
+                final int cpos = val.mEnd;
+                if (isOperator(cpos, R.id.op_fact)) {
+                    val = new ExprNode.Suffix(val, R.id.op_fact);
+                } else if (isOperator(cpos, R.id.op_sqr)) {
+                    val = new ExprNode.Suffix(val, R.id.op_sqr);
+                } else if (isOperator(cpos, R.id.op_pct)) {
+                    val = new ExprNode.Suffix(val, R.id.op_pct);
+                } else {
+                    break;
+                }
+            }
+            return val;
+        }
+
+        ExprNode factor(int i, ExprNode old) {
+            if (reusable(old, i)) {
+                return old;
+            }
+            ExprNode oldBase = old;
+            ExprNode oldExponent = null;
+            if (old instanceof ExprNode.Power && old.mStart == i) {
+                oldBase = ((ExprNode.Power) old).mBase;
+                oldExponent = ((ExprNode.Power) old).mExponent;
+            }
+            final ExprNode base = suffix(i, oldBase);
+            if (base.mFailed || !isOperator(base.mEnd, R.id.op_pow)) {
+                return base;
+            }
+            return new ExprNode.Power(base, signedFactor(base.mEnd + 1, oldExponent));
+        }
+
+        ExprNode signedFactor(int i, ExprNode old) {
+            if (reusable(old, i)) {
+                return old;
+            }
+            if (isOperator(i, R.id.op_sub)) {
+                final ExprNode oldOperand = old instanceof ExprNode.Negate && old.mStart == i
+                        ? ((ExprNode.Negate) old).mOperand : null;
+                return new ExprNode.Negate(i, factor(i + 1, oldOperand));
+            }
+            return factor(i, old);
+        }
+
+        ExprNode term(int i, ExprNode old) {
+            if (reusable(old, i)) {
+                return old;
+            }
+            ExprNode.Binary above = null;  // The old node of which old is the left operand.
+            while (isProductChain(old, i) && !reusable(old, i)) {
+                above = (ExprNode.Binary) old;
+                old = above.mLeft;
+            }
+            ExprNode val = isProductChain(old, i) ? old : signedFactor(i, old);
+            ExprNode oldRight = above == null ? null : above.mRight;
+            while (!val.mFailed) {
+                final int cpos = val.mEnd;
+                final boolean isMul = isOperator(cpos, R.id.op_mul);
+                final boolean isDiv = !isMul && isOperator(cpos, R.id.op_div);
+                if (!isMul && !isDiv && !canStartFactor(cpos)) {
+                    break;
+                }
+                final ExprNode right = signedFactor(isMul || isDiv ? cpos + 1 : cpos, oldRight);
+                val = new ExprNode.Binary(val, isDiv ? R.id.op_div : R.id.op_mul, right);
+                oldRight = null;
+            }
+            return val;
+        }
+
+        ExprNode expr(int i, ExprNode old) {
+            if (reusable(old, i)) {
+                return old;
+            }
+            ExprNode.Chain above = null;  // The old node of which old is the left operand.
+            while (isSumChain(old, i) && !reusable(old, i)) {
+                above = (ExprNode.Chain) old;
+                old = above.mLeft;
+            }
+            ExprNode val = isSumChain(old, i) ? old : term(i, old);
+            while (!val.mFailed) {
+                final int cpos = val.mEnd;
+                final boolean isPlus = isOperator(cpos, R.id.op_add);
+                if (!isPlus && !isOperator(cpos, R.id.op_sub)) {
+                    break;
+                }
+                if (isPercent(cpos + 1)) {
+                    final ExprNode oldNumber = above instanceof ExprNode.PercentChange
+                            ? ((ExprNode.PercentChange) above).mNumber : null;
+                    val = new ExprNode.PercentChange(val, unary(cpos + 1, oldNumber), !isPlus);
+                } else {
+                    final ExprNode oldRight = above instanceof ExprNode.Binary
+                            ? ((ExprNode.Binary) above).mRight : null;
+                    val = new ExprNode.Binary(val, isPlus ? R.id.op_add : R.id.op_sub,
+                            term(cpos + 1, oldRight));
+                }
+                above = null;
+            }
+            return val;
+        }
     }
 
-    private EvalRet evalExpr(int i, EvalContext ec) throws SyntaxException {
-        EvalRet tmp = evalTerm(i, ec);
-        boolean is_plus;
-        int cpos = tmp.pos;
-        UnifiedReal val = tmp.val;
-        while ((is_plus = isOperator(cpos, R.id.op_add, ec))
-                || isOperator(cpos, R.id.op_sub, ec)) {
-            if (isPercent(cpos + 1)) {
-                tmp = getPercentFactor(cpos + 1, !is_plus, ec);
-                val = val.multiply(tmp.val);
-            } else {
-                tmp = evalTerm(cpos + 1, ec);
-                if (is_plus) {
-                    val = val.add(tmp.val);
+    /**
+     * An evaluator for the same grammar as Parser, which keeps its state in an explicit stack
+     * rather than the Java call stack, so that it can handle arbitrarily deep nesting.
+     * Each grammar rule in progress is represented by a Frame, which is resumed with the value
+     * of the subexpression it waited for.  Operands are evaluated as soon as they are parsed.
+     * Since the tree built by Parser is evaluated in the order in which its nodes are
+     * completed, and parsing stops at the first error, this evaluates the same operands in the
+     * same order, and throws the same exceptions.  Sums and products are combined as a whole,
+     * as ExprNode.Binary does.  Nothing is remembered between evaluations.
+     */
+    private final class StackEvaluator {
+        // Grammar rules, named after the corresponding Parser methods.
+        private static final int EXPR = 0;
+        private static final int TERM = 1;
+        private static final int SIGNED_FACTOR = 2;
+        private static final int FACTOR = 3;
+        private static final int SUFFIX = 4;
+        private static final int UNARY = 5;
+
+        private final class Frame {
+            final int mRule;
+            final int mStart;
+            int mState = 0;  // Where to resume.
+            int mId;  // Pending operator or function.
+            boolean mNegate;  // Negate the pending operand.
+            UnifiedReal mVal;  // Pending left operand.
+            // The operands of the current sum or product, and which ones are divisors.
+            ArrayList<UnifiedReal> mOperands;
+            ArrayList<Boolean> mInverted;
+
+            Frame(int rule, int start) {
+                mRule = rule;
+                mStart = start;
+            }
+        }
+
+        private final EvalContext mEc;
+        private final ArrayList<Frame> mStack = new ArrayList<Frame>();
+
+        // The value of the last completed rule, and the position following it.
+        private UnifiedReal mValue;
+        private int mEnd;
+
+        StackEvaluator(EvalContext ec) {
+            mEc = ec;
+        }
+
+        private boolean isOperator(int i, int op) {
+            if (i >= mEc.mPrefixLength) {
+                return false;
+            }
+            return isOperatorUnchecked(i, op);
+        }
+
+        // Enter rule at position start, once the current frame has returned.
+        private void call(int rule, int start, int resumeState) {
+            mStack.get(mStack.size() - 1).mState = resumeState;
+            mStack.add(new Frame(rule, start));
+        }
+
+        private void complete(UnifiedReal value, int end) {
+            mStack.remove(mStack.size() - 1);
+            mValue = value;
+            mEnd = end;
+        }
+
+        /**
+         * Evaluate the expression starting at position 0.  Set mEnd to the position following
+         * it, and return its value.
+         */
+        UnifiedReal eval() throws SyntaxException {
+            mStack.add(new Frame(EXPR, 0));
+            while (!mStack.isEmpty()) {
+                final Frame f = mStack.get(mStack.size() - 1);
+                switch (f.mRule) {
+                    case EXPR:
+                        expr(f);
+                        break;
+                    case TERM:
+                        term(f);
+                        break;
+                    case SIGNED_FACTOR:
+                        signedFactor(f);
+                        break;
+                    case FACTOR:
+                        factor(f);
+                        break;
+                    case SUFFIX:
+                        suffix(f);
+                        break;
+                    default:
+                        unary(f);
+                }
+            }
+            return mValue;
+        }
+
+        private void unary(Frame f) throws SyntaxException {
+            final int i = f.mStart;
+            switch (f.mState) {
+                case 0:
+                    if (i >= tokens().size()) {
+                        throw new IndexOutOfBoundsException();
+                    }
+                    final Token t = tokens().get(i);
+                    if (t instanceof Constant) {
+                        final BoundedRational value;
+                        try {
+                            value = ((Constant) t).toRational();
+                        } catch (SyntaxException e) {
+                            throw new SyntaxException();
+                        }
+                        complete(new UnifiedReal(value), i + 1);
+                        return;
+                    }
+                    if (t instanceof PreEval) {
+                        final long index = ((PreEval) t).mIndex;
+                        UnifiedReal res = mEc.mExprResolver.getResult(index);
+                        if (res == null) {
+                            res = nestedEval(index, mEc.mExprResolver);
+                        }
+                        complete(res, i + 1);
+                        return;
+                    }
+                    f.mId = ((Operator) (t)).id;
+                    switch (f.mId) {
+                        case R.id.const_pi:
+                            complete(UnifiedReal.PI, i + 1);
+                            return;
+                        case R.id.const_e:
+                            complete(UnifiedReal.E, i + 1);
+                            return;
+                        case R.id.op_sqrt:
+                            f.mNegate = isOperator(i + 1, R.id.op_sub);
+                            call(UNARY, f.mNegate ? i + 2 : i + 1, 1);
+                            return;
+                        case R.id.lparen:
+                        case R.id.fun_sin:
+                        case R.id.fun_cos:
+                        case R.id.fun_tan:
+                        case R.id.fun_ln:
+                        case R.id.fun_exp:
+                        case R.id.fun_log:
+                        case R.id.fun_arcsin:
+                        case R.id.fun_arccos:
+                        case R.id.fun_arctan:
+                            call(EXPR, i + 1, 2);
+                            return;
+                        default:
+                            throw new SyntaxException("Unrecognized token in expression");
+                    }
+                case 1:
+                    // Square root argument.
+                    complete(ExprNode.Function.apply(f.mId,
+                            f.mNegate ? mValue.negate() : mValue, mEc), mEnd);
+                    return;
+                default:
+                    // Parenthesized expression or function argument.
+                    int end = mEnd;
+                    if (isOperator(end, R.id.rparen)) {
+                        end++;
+                    }
+                    complete(f.mId == R.id.lparen ? mValue
+                            : ExprNode.Function.apply(f.mId, mValue, mEc), end);
+            }
+        }
+
+        private void suffix(Frame f) {
+            if (f.mState == 0) {
+                call(UNARY, f.mStart, 1);
+                return;
+            }
+            UnifiedReal val = mValue;
+            int end = mEnd;
+            while (true) {
+                if (isOperator(end, R.id.op_fact)) {
+                    val = ExprNode.Suffix.apply(R.id.op_fact, val);
+                } else if (isOperator(end, R.id.op_sqr)) {
+                    val = ExprNode.Suffix.apply(R.id.op_sqr, val);
+                } else if (isOperator(end, R.id.op_pct)) {
+                    val = ExprNode.Suffix.apply(R.id.op_pct, val);
                 } else {
-                    val = val.subtract(tmp.val);
+                    break;
                 }
+                end++;
+            }
+            complete(val, end);
+        }
+
+        private void factor(Frame f) {
+            switch (f.mState) {
+                case 0:
+                    call(SUFFIX, f.mStart, 1);
+                    return;
+                case 1:
+                    if (!isOperator(mEnd, R.id.op_pow)) {
+                        complete(mValue, mEnd);
+                        return;
+                    }
+                    f.mVal = mValue;
+                    call(SIGNED_FACTOR, mEnd + 1, 2);
+                    return;
+                default:
+                    complete(f.mVal.pow(mValue), mEnd);
+            }
+        }
+
+        private void signedFactor(Frame f) {
+            if (f.mState == 0) {
+                f.mNegate = isOperator(f.mStart, R.id.op_sub);
+                call(FACTOR, f.mNegate ? f.mStart + 1 : f.mStart, 1);
+                return;
+            }
+            complete(f.mNegate ? mValue.negate() : mValue, mEnd);
+        }
+
+        private void term(Frame f) {
+            switch (f.mState) {
+                case 0:
+                    call(SIGNED_FACTOR, f.mStart, 1);
+                    return;
+                case 1:
+                    f.mOperands = new ArrayList<UnifiedReal>();
+                    f.mInverted = new ArrayList<Boolean>();
+                    f.mOperands.add(mValue);
+                    f.mInverted.add(false);
+                    break;
+                default:
+                    f.mOperands.add(ExprNode.Binary.operand(f.mId, mValue));
+                    f.mInverted.add(f.mId == R.id.op_div);
+            }
+            final int cpos = mEnd;
+            final boolean isMul = isOperator(cpos, R.id.op_mul);
+            final boolean isDiv = !isMul && isOperator(cpos, R.id.op_div);
+            if (!isMul && !isDiv && !canStartFactor(cpos)) {
+                complete(product(f), cpos);
+                return;
+            }
+            f.mId = isDiv ? R.id.op_div : R.id.op_mul;
+            call(SIGNED_FACTOR, isMul || isDiv ? cpos + 1 : cpos, 2);
+        }
+
+        private void expr(Frame f) {
+            switch (f.mState) {
+                case 0:
+                    call(TERM, f.mStart, 1);
+                    return;
+                case 1:
+                    f.mOperands = new ArrayList<UnifiedReal>();
+                    f.mOperands.add(mValue);
+                    break;
+                case 2:
+                    // Percent change of the sum so far, which starts a new sum.
+                    final UnifiedReal val =
+                            ExprNode.PercentChange.apply(f.mVal, mValue, f.mNegate);
+                    f.mOperands.clear();
+                    f.mOperands.add(val);
+                    mEnd++;  // The percent sign.
+                    break;
+                default:
+                    f.mOperands.add(ExprNode.Binary.operand(f.mId, mValue));
             }
-            cpos = tmp.pos;
+            final int cpos = mEnd;
+            final boolean isPlus = isOperator(cpos, R.id.op_add);
+            if (!isPlus && !isOperator(cpos, R.id.op_sub)) {
+                complete(sum(f), cpos);
+                return;
+            }
+            if (isPercent(cpos + 1)) {
+                f.mVal = sum(f);
+                f.mNegate = !isPlus;
+                call(UNARY, cpos + 1, 2);
+            } else {
+                f.mId = isPlus ? R.id.op_add : R.id.op_sub;
+                call(TERM, cpos + 1, 3);
+            }
+        }
+
+        private UnifiedReal sum(Frame f) {
+            final int n = f.mOperands.size();
+            if (n == 1) {
+                return f.mOperands.get(0);
+            }
+            return UnifiedReal.sum(f.mOperands.toArray(new UnifiedReal[n]));
+        }
+
+        private UnifiedReal product(Frame f) {
+            final int n = f.mOperands.size();
+            if (n == 1) {
+                return f.mOperands.get(0);
+            }
+            final boolean[] inverted = new boolean[n];
+            for (int i = 0; i < n; ++i) {
+                inverted[i] = f.mInverted.get(i);
+            }
+            return UnifiedReal.product(f.mOperands.toArray(new UnifiedReal[n]), inverted);
+        }
+    }
+
+    /**
+     * Return an upper bound on the nesting depth of the parse tree, in levels of recursion of
+     * Parser and ExprNode evaluation.
+     * Left associative chains are handled iteratively, so only parentheses, function
+     * arguments, square roots and exponents count.
+     */
+    private int nestingDepth() {
+        int depth = 0;
+        int maxDepth = 0;
+        int chains = 0;
+        for (Token t : tokens()) {
+            if (!(t instanceof Operator)) {
+                continue;
+            }
+            final int id = ((Operator) t).id;
+            if (id == R.id.lparen || KeyMaps.isFunc(id)) {
+                maxDepth = Math.max(maxDepth, ++depth);
+            } else if (id == R.id.rparen) {
+                depth = Math.max(depth - 1, 0);
+            } else if (id == R.id.op_sqrt || id == R.id.op_pow) {
+                chains++;
+            }
+        }
+        return maxDepth + chains;
+    }
+
+    /**
+     * Evaluate the first ec.mPrefixLength tokens.  Expressions nested more deeply than
+     * maxTreeDepth are evaluated by StackEvaluator, all others by evaluating the saved parse
+     * tree, which avoids recomputing subexpressions that have not changed.
+     *
+     * @param requireAll fail unless the whole prefix was parsed
+     */
+    private UnifiedReal evalPrefix(EvalContext ec, boolean requireAll) throws SyntaxException {
+        final UnifiedReal res;
+        final int end;
+        if (nestingDepth() > maxTreeDepth) {
+            final StackEvaluator evaluator = new StackEvaluator(ec);
+            res = evaluator.eval();
+            end = evaluator.mEnd;
+        } else {
+            final ExprNode tree = parse(ec.mPrefixLength);
+            res = tree.value(ec);
+            end = tree.mEnd;
+        }
+        if (requireAll && end != ec.mPrefixLength) {
+            throw new SyntaxException("Failed to parse full expression");
+        }
+        return res;
+    }
+
+    /**
+     * Return the parse tree for the first prefixLen tokens, updating the saved tree.
+     * Synchronized, since referenced expressions may be evaluated from several threads.
+     */
+    private synchronized ExprNode parse(int prefixLen) {
+        int changed = mFirstChange;
+        if (prefixLen != mTreePrefixLength) {
+            // The tokens beyond the shorter prefix are now treated differently.
+            changed = Math.min(changed, Math.min(prefixLen, mTreePrefixLength));
+        }
+        mTree = new Parser(prefixLen, changed).expr(0, mTree);
+        mTreePrefixLength = prefixLen;
+        mFirstChange = Integer.MAX_VALUE;
+        return mTree;
+    }
+
+    /**
+     * Note that tokens at index and beyond may have been modified.
+     * Synchronized, like parse(), which reads and resets mFirstChange.
+     */
+    private synchronized void changed(int index) {
+        if (index < mFirstChange) {
+            mFirstChange = index;
         }
-        return new EvalRet(cpos, val);
     }
 
     /**
      * Return the starting position of the sequence of trailing binary operators.
      */
     private int trailingBinaryOpsStart() {
-        int result = mExpr.size();
+        int result = tokens().size();
         while (result > 0) {
-            Token last = mExpr.get(result - 1);
+            Token last = tokens().get(result - 1);
             if (!(last instanceof Operator)) break;
             Operator o = (Operator) last;
             if (!KeyMaps.isBinary(o.id)) break;
@@ -1033,7 +1813,7 @@ public class CalculatorExpr {
             first++;
         }
         for (int i = first; i < last; ++i) {
-            Token t1 = mExpr.get(i);
+            Token t1 = tokens().get(i);
             if (t1 instanceof Operator
                     || t1 instanceof PreEval && ((PreEval) t1).hasEllipsis()) {
                 return true;
@@ -1046,7 +1826,7 @@ public class CalculatorExpr {
      * Does the expression contain trig operations?
      */
     public boolean hasTrigFuncs() {
-        for (Token t : mExpr) {
+        for (Token t : tokens()) {
             if (t instanceof Operator) {
                 Operator o = (Operator) t;
                 if (KeyMaps.isTrigFunc(o.id)) {
@@ -1059,54 +1839,139 @@ public class CalculatorExpr {
 
     /**
      * Add the indices of unevaluated PreEval expressions embedded in the current expression to
-     * argument.  This includes only directly referenced expressions e, not those indirectly
-     * referenced by e. If the index was already present, it is not added. If the argument
-     * contained no duplicates, the result will not either. New indices are added to the end of
-     * the list.
+     * refs.  This includes only directly referenced expressions e, not those indirectly
+     * referenced by e.  Indices are added in the order in which they appear.
      */
-    private void addReferencedExprs(ArrayList<Long> list, ExprResolver er) {
-        for (Token t : mExpr) {
+    void addReferencedExprs(Collection<Long> refs, ExprResolver er) {
+        for (Token t : tokens()) {
             if (t instanceof PreEval) {
                 Long index = ((PreEval) t).mIndex;
-                if (er.getResult(index) == null && !list.contains(index)) {
-                    list.add(index);
+                if (er.getResult(index) == null) {
+                    refs.add(index);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the indices of the PreEval expressions embedded in the part of the expression
+     * that is evaluated, i.e. excluding trailing binary operators.
+     */
+    private ArrayList<Long> evaluatedReferences() {
+        final ArrayList<Long> result = new ArrayList<Long>();
+        final int prefixLen = trailingBinaryOpsStart();
+        for (int i = 0; i < prefixLen; ++i) {
+            final Token t = tokens().get(i);
+            if (t instanceof PreEval) {
+                result.add(((PreEval) t).mIndex);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return a digest of the part of the expression that affects its value, in the given mode.
+     * The digests of all referenced expressions must already be in digests.
+     */
+    private byte[] digest(boolean degreeMode, Map<Long, byte[]> digests) {
+        final ByteArrayOutputStream byteArrayStream = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(byteArrayStream)) {
+            // isPercent() also looks at the first trailing binary operator: 50+10% is 55, but
+            // 50+10%* is 50.1.
+            final int len = Math.min(trailingBinaryOpsStart() + 1, tokens().size());
+            boolean hasTrigFuncs = false;
+            out.writeByte(DIGEST_VERSION);
+            writeVarLong(out, len);
+            for (int i = 0; i < len; ++i) {
+                final Token t = tokens().get(i);
+                if (t instanceof Constant) {
+                    ((Constant) t).writeCanonical(out);
+                } else if (t instanceof PreEval) {
+                    out.writeByte(TokenKind.PRE_EVAL.ordinal());
+                    out.write(digests.get(((PreEval) t).mIndex));
+                } else {
+                    t.write(out);
+                    hasTrigFuncs |= KeyMaps.isTrigFunc(((Operator) t).id);
+                }
+            }
+            // The degree mode matters only to trig functions in this expression.  Referenced
+            // expressions are covered by their own digests.
+            out.writeBoolean(degreeMode && hasTrigFuncs);
+        } catch (IOException e) {
+            // Impossible; No IO involved.
+            throw new AssertionError("Impossible IO exception", e);
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(byteArrayStream.toByteArray());
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 unavailable", e);
+        }
+    }
+
+    /**
+     * Return a SHA-256 digest identifying the value of the expression, excluding all but the
+     * first of any trailing binary operators, in the given degree mode.  Expressions with equal
+     * digests evaluate to the same value, or fail in the same way.  The digest covers the tokens,
+     * with constants normalized, the degree mode if there are trig functions, and, in place of
+     * each embedded PreEval, the digest of the expression it refers to.  Thus it depends only on
+     * what the user entered, and not on expression indices, which makes it suitable as a
+     * persistent key for results.
+     * Digests of referenced expressions are looked up in, and added to, digests, keyed by
+     * index.  Since referenced expressions never change, the caller may keep digests for as
+     * long as their indices remain valid.
+     * Returns null if references are cyclic, which cannot happen for expressions built by the
+     * UI.
+     */
+    public byte[] canonicalDigest(boolean degreeMode, ExprResolver er,
+            Map<Long, byte[]> digests) {
+        // Hash referenced expressions first, each after those it refers to, without recursing,
+        // since chains of references can be arbitrarily long.  An expression is expanded when
+        // first seen at the top of the stack, and hashed when seen there again.
+        final ArrayDeque<Long> toHash = new ArrayDeque<Long>(evaluatedReferences());
+        final HashSet<Long> expanded = new HashSet<Long>();
+        while (!toHash.isEmpty()) {
+            final Long index = toHash.peek();
+            if (digests.containsKey(index)) {
+                toHash.pop();
+            } else if (expanded.add(index)) {
+                for (Long ref : er.getExpr(index).evaluatedReferences()) {
+                    if (!digests.containsKey(ref)) {
+                        if (expanded.contains(ref)) {
+                            // Expanded, but not yet hashed, and thus on the current path.
+                            return null;
+                        }
+                        toHash.push(ref);
+                    }
                 }
+            } else {
+                toHash.pop();
+                digests.put(index, er.getExpr(index).digest(er.getDegreeMode(index), digests));
             }
         }
+        return digest(degreeMode, digests);
     }
 
     /**
      * Return a list of unevaluated expressions transitively referenced by the current one.
      * All expressions in the resulting list will have had er.getExpr() called on them.
-     * The resulting list is ordered such that evaluating expressions in list order
-     * should trigger few recursive evaluations.
+     * The resulting list is topologically sorted: each expression follows all unevaluated
+     * expressions it refers to, so that evaluating expressions in list order never triggers a
+     * recursive evaluation.
      */
     public ArrayList<Long> getTransitivelyReferencedExprs(ExprResolver er) {
-        // We could avoid triggering any recursive evaluations by actually building the
-        // dependency graph and topologically sorting it. Note that sorting by index works
-        // for positive and negative indices separately, but not their union. Currently we
-        // just settle for reverse breadth-first-search order, which handles the common case
-        // of simple dependency chains well.
-        ArrayList<Long> list = new ArrayList<Long>();
-        int scanned = 0;  // We've added expressions referenced by [0, scanned) to the list
-        addReferencedExprs(list, er);
-        while (scanned != list.size()) {
-            er.getExpr(list.get(scanned++)).addReferencedExprs(list, er);
-        }
-        Collections.reverse(list);
-        return list;
+        return new ReferenceScheduler(this, er).order();
     }
 
     /**
      * Evaluate the expression at the given index to a UnifiedReal.
      * Both saves and returns the result.
      */
-    UnifiedReal nestedEval(long index, ExprResolver er) throws SyntaxException {
+    static UnifiedReal nestedEval(long index, ExprResolver er) throws SyntaxException {
         CalculatorExpr nestedExpr = er.getExpr(index);
-        EvalContext newEc = new EvalContext(er.getDegreeMode(index),
-                nestedExpr.trailingBinaryOpsStart(), er);
-        EvalRet new_res = nestedExpr.evalExpr(0, newEc);
-        return er.putResultIfAbsent(index, new_res.val);
+        final int prefixLen = nestedExpr.trailingBinaryOpsStart();
+        EvalContext newEc = new EvalContext(er.getDegreeMode(index), prefixLen, er);
+        UnifiedReal new_res = nestedExpr.evalPrefix(newEc, false);
+        return er.putResultIfAbsent(index, new_res);
     }
 
     /**
@@ -1121,27 +1986,19 @@ public class CalculatorExpr {
     // And unchecked exceptions thrown by UnifiedReal, CR,
     // and BoundedRational.
     {
-        // First evaluate all indirectly referenced expressions in increasing index order.
-        // This ensures that subsequent evaluation never encounters an embedded PreEval
-        // expression that has not been previously evaluated.
+        // First evaluate all indirectly referenced expressions, each after the ones it refers
+        // to, and independent ones concurrently.  This ensures that subsequent evaluation never
+        // encounters an embedded PreEval expression that has not been previously evaluated.
         // We could do the embedded evaluations recursively, but that risks running out of
         // stack space.
-        ArrayList<Long> referenced = getTransitivelyReferencedExprs(er);
-        for (long index : referenced) {
-            nestedEval(index, er);
-        }
+        new ReferenceScheduler(this, er).evaluate();
         try {
             // We currently never include trailing binary operators, but include other trailing
             // operators.  Thus we usually, but not always, display results for prefixes of valid
             // expressions, and don't generate an error where we previously displayed an instant
             // result.  This reflects the Android L design.
             int prefixLen = trailingBinaryOpsStart();
-            EvalContext ec = new EvalContext(degreeMode, prefixLen, er);
-            EvalRet res = evalExpr(0, ec);
-            if (res.pos != prefixLen) {
-                throw new SyntaxException("Failed to parse full expression");
-            }
-            return res.val;
+            return evalPrefix(new EvalContext(degreeMode, prefixLen, er), true);
         } catch (IndexOutOfBoundsException e) {
             throw new SyntaxException("Unexpected expression end");
         }
@@ -1150,7 +2007,22 @@ public class CalculatorExpr {
     // Produce a string representation of the expression itself
     public SpannableStringBuilder toSpannableStringBuilder(Context context) {
         SpannableStringBuilder ssb = new SpannableStringBuilder();
-        for (Token t : mExpr) {
+        final ByteBuffer encoded = encoded();
+        if (encoded != null) {
+            // Render directly from the encoded tokens, e.g. for history entries that are
+            // displayed but never evaluated.
+            try {
+                encoded.get();  // The version byte.
+                final int size = readLength(encoded);
+                for (int i = 0; i < size; ++i) {
+                    ssb.append(encodedTokenToCharSequence(encoded, context));
+                }
+            } catch (IOException | BufferUnderflowException e) {
+                throw new AssertionError("Bad save file format", e);
+            }
+            return ssb;
+        }
+        for (Token t : tokens()) {
             ssb.append(t.toCharSequence(context));
         }
         return ssb;
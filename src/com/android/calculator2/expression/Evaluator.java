@@ -29,17 +29,17 @@ import com.android.calculator2.CalculatorActivity;
 import com.android.calculator2.R;
 import com.android.calculator2.UnifiedReal;
 import com.android.calculator2.db.ExpressionDB;
+import com.android.calculator2.db.ResultCache;
 import com.android.calculator2.util.KeyMaps;
 import com.android.calculator2.util.StringUtils;
 import com.android.calculator2.view.CalculatorResult;
 import com.hp.creals.CR;
 
-import java.io.ByteArrayInputStream;
 import java.io.DataInput;
-import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.DecimalFormatSymbols;
 import java.text.SimpleDateFormat;
@@ -105,6 +105,12 @@ import androidx.annotation.VisibleForTesting;
  * <p>
  * We ensure that only one evaluation of either kind (AsyncEvaluator or AsyncReevaluator) is
  * running at a time.
+ * <p>
+ * Successful initial results are also saved in a persistent ResultCache, keyed by the
+ * expression's canonical digest.  An expression whose digest matches a cached result, e.g. one
+ * entered again in a later session, is not evaluated at all.  The AsyncEvaluator computes and
+ * looks up the digest in the background, since that may read referenced expressions from the
+ * database.
  */
 public class Evaluator implements CalculatorExpr.ExprResolver {
 
@@ -353,6 +359,13 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
     // The database holding persistent expressions.
     private ExpressionDB mExprDB;
 
+    // Persistent results, keyed by canonical expression digest.
+    private ResultCache mResultCache;
+
+    // Canonical digests of expressions referenced by PreEvals, by index.  Such expressions never
+    // change, so we compute each digest only once.
+    private final ConcurrentHashMap<Long, byte[]> mDigests = new ConcurrentHashMap<Long, byte[]>();
+
     private ExprInfo mMainExpr;  //  == mExprs.get(MAIN_INDEX)
 
     private SharedPreferences mSharedPrefs;
@@ -371,6 +384,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         mTimeoutHandler = new Handler();
 
         mExprDB = new ExpressionDB(context);
+        mResultCache = new ResultCache(context);
         mSharedPrefs = PreferenceManager.getDefaultSharedPreferences(context);
         mMainExpr.mDegreeMode = mSharedPrefs.getBoolean(KEY_PREF_DEGREE_MODE, true);
         long savedIndex = mSharedPrefs.getLong(KEY_PREF_SAVED_INDEX, 0L);
@@ -432,13 +446,15 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         public final String newResultString;       // Null iff it can't be computed.
         public final int newResultStringOffset;
         public final int initDisplayOffset;
+        public final byte[] serializedVal;   // val.toBytes() for the result cache, or null.
 
-        InitialResult(UnifiedReal v, String s, int p, int idp) {
+        InitialResult(UnifiedReal v, String s, int p, int idp, byte[] sv) {
             errorResourceId = CalculatorActivity.INVALID_RES_ID;
             val = v;
             newResultString = s;
             newResultStringOffset = p;
             initDisplayOffset = idp;
+            serializedVal = sv;
         }
 
         InitialResult(int errorId) {
@@ -447,6 +463,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             newResultString = "BAD";
             newResultStringOffset = 0;
             initDisplayOffset = 0;
+            serializedVal = null;
         }
 
         boolean isError() {
@@ -533,6 +550,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         private CharMetricsInfo mCharMetricsInfo;  // Where to get result size information.
         private long mIndex;  //  Expression index.
         private ExprInfo mExprInfo;  // Current expression.
+        private String mCacheKey;  // Result cache key, or null.  Set by doInBackground().
 
         AsyncEvaluator(long index, EvaluationListener listener, CharMetricsInfo cmi, boolean dm,
                        boolean required) {
@@ -597,12 +615,56 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             return res.approxWholeNumberBitsGreaterThan(maxBits);
         }
 
+        /**
+         * Return the initial result for res, given its decimal digits to precOffset, and the
+         * index of their msd, extending the digits if the display needs more.
+         */
+        private InitialResult initialResult(UnifiedReal res, String initResult, int precOffset,
+                int msd, byte[] serializedVal) {
+            final int lsdOffset = getLsdOffset(res, initResult, initResult.indexOf('.'));
+            final int initDisplayOffset = getPreferredPrec(initResult, msd, lsdOffset,
+                    mCharMetricsInfo);
+            final int newPrecOffset = initDisplayOffset + EXTRA_DIGITS;
+            if (newPrecOffset > precOffset) {
+                precOffset = newPrecOffset;
+                initResult = res.toStringTruncated(precOffset);
+            }
+            return new InitialResult(res, initResult, precOffset, initDisplayOffset,
+                    serializedVal);
+        }
+
+        /**
+         * Return the initial result saved in the result cache under mCacheKey, or null.
+         */
+        private InitialResult cachedResult() {
+            if (mCacheKey == null) {
+                return null;
+            }
+            final ResultCache.Result cached = mResultCache.get(mCacheKey);
+            if (cached == null) {
+                return null;
+            }
+            final UnifiedReal val = UnifiedReal.fromBytes(cached.mValue);
+            if (val == null) {
+                return null;
+            }
+            // An existing value cannot change, but it's the same number.
+            final UnifiedReal res = putResultIfAbsent(mIndex, val);
+            return initialResult(res, cached.mDigits, cached.mPrecOffset,
+                    getMsdIndexOf(cached.mDigits), null /* already cached */);
+        }
+
         @Override
         protected InitialResult doInBackground(Void... nothing) {
             try {
                 // mExpr does not change while we are evaluating; thus it's OK to read here.
+                mCacheKey = getCacheKey(mExprInfo.mExpr, mDm);
                 UnifiedReal res = mExprInfo.mVal.get();
                 if (res == null) {
+                    final InitialResult cached = cachedResult();
+                    if (cached != null) {
+                        return cached;
+                    }
                     try {
                         res = mExprInfo.mExpr.eval(mDm, Evaluator.this);
                         if (isCancelled()) {
@@ -647,15 +709,8 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
                         msd = getMsdIndexOf(initResult);
                     }
                 }
-                final int lsdOffset = getLsdOffset(res, initResult, initResult.indexOf('.'));
-                final int initDisplayOffset = getPreferredPrec(initResult, msd, lsdOffset,
-                        mCharMetricsInfo);
-                final int newPrecOffset = initDisplayOffset + EXTRA_DIGITS;
-                if (newPrecOffset > precOffset) {
-                    precOffset = newPrecOffset;
-                    initResult = res.toStringTruncated(precOffset);
-                }
-                return new InitialResult(res, initResult, precOffset, initDisplayOffset);
+                return initialResult(res, initResult, precOffset, msd,
+                        mCacheKey == null ? null : res.toBytes());
             } catch (CalculatorExpr.SyntaxException e) {
                 return new InitialResult(R.string.error_syntax);
             } catch (UnifiedReal.ZeroDivisionException e) {
@@ -696,6 +751,10 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             // mExprInfo.mVal was already set asynchronously by child thread.
             mExprInfo.mResultString = result.newResultString;
             mExprInfo.mResultStringOffset = result.newResultStringOffset;
+            if (result.serializedVal != null) {
+                mResultCache.put(mCacheKey, new ResultCache.Result(result.serializedVal,
+                        result.newResultString, result.newResultStringOffset));
+            }
             final int dotIndex = mExprInfo.mResultString.indexOf('.');
             String truncatedWholePart = mExprInfo.mResultString.substring(0, dotIndex);
             // Recheck display precision; it may change, since display dimensions may have been
@@ -1178,6 +1237,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
 
     /**
      * Clear the cache for the main expression.
+     * The values of its unchanged subexpressions remain remembered by the expression itself.
      */
     private void clearMainCache() {
         mMainExpr.mVal.set(null);
@@ -1201,7 +1261,10 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         setMemoryIndex(0);
         saveMemory("");
         mExprDB.eraseAll();
+        // Cached results are still valid, but reveal what was computed.
+        mResultCache.eraseAll();
         mExprs.clear();
+        mDigests.clear();
         setMainExpr(new ExprInfo(new CalculatorExpr(), dm));
     }
 
@@ -1227,6 +1290,24 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
         }
     }
 
+    /**
+     * Return the result cache key for the expression, i.e. its canonical digest in hex,
+     * or null if it has none.
+     * Called in the background, since it may read referenced expressions from the database.
+     */
+    private String getCacheKey(CalculatorExpr expr, boolean degreeMode) {
+        final byte[] digest = expr.canonicalDigest(degreeMode, this, mDigests);
+        if (digest == null) {
+            return null;
+        }
+        final StringBuilder result = new StringBuilder(2 * digest.length);
+        for (byte b : digest) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16));
+            result.append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+
     /**
      * Notify listener of a previously completed evaluation.
      */
@@ -1427,20 +1508,39 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * is unchanged; true otherwise
      */
     public boolean append(int id) {
-        if (id == R.id.fun_10pow) {
-            add10pow();  // Handled as macro expansion.
+        mChangedValue = mChangedValue || !KeyMaps.isBinary(id);
+        if (appendKey(mMainExpr.mExpr, id)) {
+            if (!mHasTrigFuncs) {
+                mHasTrigFuncs = KeyMaps.isTrigFunc(id);
+            }
             return true;
         } else {
-            mChangedValue = mChangedValue || !KeyMaps.isBinary(id);
-            if (mMainExpr.mExpr.add(id)) {
-                if (!mHasTrigFuncs) {
-                    mHasTrigFuncs = KeyMaps.isTrigFunc(id);
-                }
-                return true;
-            } else {
-                return false;
-            }
+            return false;
+        }
+    }
+
+    /**
+     * Append press of button with given id to expr, as append() does for the main expression.
+     * Touches no evaluator state, and may thus be used to build an expression in the background.
+     */
+    public static boolean appendKey(CalculatorExpr expr, int id) {
+        if (id == R.id.fun_10pow) {
+            add10pow(expr);  // Handled as macro expansion.
+            return true;
         }
+        return expr.add(id);
+    }
+
+    /**
+     * Replace the main expression by expr, typically a copy of it that was extended in the
+     * background.  Cancels any evaluation of the old expression.
+     */
+    public void replaceMain(CalculatorExpr expr) {
+        cancel(mMainExpr, true);
+        mMainExpr.mExpr = expr;
+        mChangedValue = true;
+        mHasTrigFuncs = hasTrigFuncs();
+        clearMainCache();
     }
 
     /**
@@ -1911,16 +2011,15 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
     }
 
     /**
-     * Add the power of 10 operator to the main expression.
+     * Add the power of 10 operator to expr.
      * This is treated essentially as a macro expansion.
      */
-    private void add10pow() {
+    private static void add10pow(CalculatorExpr expr) {
         CalculatorExpr ten = new CalculatorExpr();
         ten.add(R.id.digit_1);
         ten.add(R.id.digit_0);
-        mChangedValue = true;  // For consistency.  Reevaluation is probably not useful.
-        mMainExpr.mExpr.append(ten);
-        mMainExpr.mExpr.add(R.id.op_pow);
+        expr.append(ten);
+        expr.add(R.id.op_pow);
     }
 
     /**
@@ -1938,10 +2037,11 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
             throw new AssertionError("Main expression should be cached");
         }
         ExpressionDB.RowData row = mExprDB.getRow(index);
-        DataInputStream serializedExpr =
-                new DataInputStream(new ByteArrayInputStream(row.mExpression));
         try {
-            ei = new ExprInfo(new CalculatorExpr(serializedExpr), row.degreeMode());
+            // Tokens are decoded from the row only if the expression is edited or evaluated,
+            // not if it is just displayed.
+            ei = new ExprInfo(new CalculatorExpr(ByteBuffer.wrap(row.mExpression)),
+                    row.degreeMode());
             ei.mTimeStamp = row.mTimeStamp;
             ei.mLongTimeout = row.longTimeout();
         } catch (IOException e) {
@@ -2005,13 +2105,21 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * We allow any Unicode digits, and either of the commonly used minus characters.
      */
     public static int exponentEnd(String s, int offset) {
+        return exponentEnd(KeyMaps.getInputMap(), s, offset);
+    }
+
+    /**
+     * Return the index of the character after the exponent starting at s[offset], or offset,
+     * mapping characters with inputMap.  May be called from any thread.
+     */
+    public static int exponentEnd(KeyMaps.InputMap inputMap, String s, int offset) {
         int i = offset;
         int len = s.length();
         if (i >= len - 1 || s.charAt(i) != 'E') {
             return offset;
         }
         ++i;
-        if (KeyMaps.keyForChar(s.charAt(i)) == R.id.op_sub) {
+        if (inputMap.keyForChar(s.charAt(i)) == R.id.op_sub) {
             ++i;
         }
         if (i == len || !Character.isDigit(s.charAt(i))) {
@@ -2034,20 +2142,36 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      * for exponentEnd().
      */
     public void addExponent(String s, int begin, int end) {
+        mMainExpr.mExpr.addExponent(exponentValue(s, begin, end));
+        mChangedValue = true;
+    }
+
+    /**
+     * Return the value of the exponent represented by s[begin..end), where end was returned by
+     * exponentEnd(s, begin).
+     */
+    public static int exponentValue(String s, int begin, int end) {
+        return exponentValue(KeyMaps.getInputMap(), s, begin, end);
+    }
+
+    /**
+     * Return the value of the exponent represented by s[begin..end), mapping characters with
+     * inputMap.  May be called from any thread.
+     */
+    public static int exponentValue(KeyMaps.InputMap inputMap, String s, int begin, int end) {
         int sign = 1;
         int exp = 0;
         int i = begin + 1;
         // We do the decimal conversion ourselves to exactly match exponentEnd() conventions
         // and handle various kinds of digits on input.  Also avoids allocation.
-        if (KeyMaps.keyForChar(s.charAt(i)) == R.id.op_sub) {
+        if (inputMap.keyForChar(s.charAt(i)) == R.id.op_sub) {
             sign = -1;
             ++i;
         }
         for (; i < end; ++i) {
             exp = 10 * exp + Character.digit(s.charAt(i), 10);
         }
-        mMainExpr.mExpr.addExponent(sign * exp);
-        mChangedValue = true;
+        return sign * exp;
     }
 
     /**
@@ -2096,6 +2220,7 @@ public class Evaluator implements CalculatorExpr.ExprResolver {
      */
     public void destroyEvaluator() {
         mExprDB.close();
+        mResultCache.close();
         evaluator = null;
     }
 
@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2.expression;
+
+import com.android.calculator2.R;
+import com.android.calculator2.UnifiedReal;
+import com.android.calculator2.expression.CalculatorExpr.EvalContext;
+import com.android.calculator2.expression.CalculatorExpr.SyntaxException;
+
+import java.util.ArrayList;
+
+/**
+ * An immutable node in the parse tree of a CalculatorExpr.
+ * <p>
+ * Each node covers the tokens in [mStart, mEnd).  Parsing a node examines no token beyond mEnd,
+ * which is the token that ended it, or the end of the expression.  Thus a node remains valid as
+ * long as the tokens up to and including mEnd are unchanged, which is what allows
+ * CalculatorExpr to reparse only the rightmost spine of the tree after an edit.
+ * <p>
+ * Evaluation evaluates operands in the same order as the original recursive descent evaluator
+ * did while parsing, and thus raises the same exceptions.  A parse error is represented by an
+ * Error node where parsing stopped, so that it is reported only after everything to its left
+ * has been evaluated, as before.  Sums and products are combined as a whole, so that rational
+ * parts and repeated factors can be collected first.
+ * <p>
+ * Each node remembers its last value.  Since CalculatorExpr reuses the unchanged part of the
+ * tree after an edit, reevaluating the expression while the user types only recomputes the
+ * nodes that were reparsed, and unchanged subexpressions keep the approximations already
+ * cached by their UnifiedReals.
+ */
+abstract class ExprNode {
+    final int mStart;
+    final int mEnd;
+    // Parsing stopped with an error somewhere in this subtree.
+    final boolean mFailed;
+
+    ExprNode(int start, int end, boolean failed) {
+        mStart = start;
+        mEnd = end;
+        mFailed = failed;
+    }
+
+    // The last value computed for this node, or null.
+    private volatile Memo mMemo;
+
+    /**
+     * A value, together with the parts of the evaluation context it depends on.
+     * References to other expressions are resolved through the resolver, whose results never
+     * change once set.
+     */
+    private static final class Memo {
+        final boolean mDegreeMode;
+        final CalculatorExpr.ExprResolver mExprResolver;
+        final UnifiedReal mValue;
+
+        Memo(EvalContext ec, UnifiedReal value) {
+            mDegreeMode = ec.mDegreeMode;
+            mExprResolver = ec.mExprResolver;
+            mValue = value;
+        }
+
+        boolean matches(EvalContext ec) {
+            return mDegreeMode == ec.mDegreeMode && mExprResolver == ec.mExprResolver;
+        }
+    }
+
+    /**
+     * Return the remembered value for ec, or null if there is none.
+     */
+    final UnifiedReal remembered(EvalContext ec) {
+        final Memo memo = mMemo;
+        return memo != null && memo.matches(ec) ? memo.mValue : null;
+    }
+
+    final UnifiedReal remember(EvalContext ec, UnifiedReal value) {
+        mMemo = new Memo(ec, value);
+        return value;
+    }
+
+    /**
+     * Return the value of this node, computing it only if it is not remembered.
+     */
+    final UnifiedReal value(EvalContext ec) throws SyntaxException {
+        final UnifiedReal res = remembered(ec);
+        return res != null ? res : remember(ec, eval(ec));
+    }
+
+    /**
+     * Compute the value of this node.  Operands are evaluated with value().
+     */
+    abstract UnifiedReal eval(EvalContext ec) throws SyntaxException;
+
+    static final UnifiedReal ONE_HUNDREDTH = new UnifiedReal(100).inverse();
+
+    private static UnifiedReal toRadians(UnifiedReal x, EvalContext ec) {
+        if (ec.mDegreeMode) {
+            return x.multiply(UnifiedReal.RADIANS_PER_DEGREE);
+        } else {
+            return x;
+        }
+    }
+
+    private static UnifiedReal fromRadians(UnifiedReal x, EvalContext ec) {
+        if (ec.mDegreeMode) {
+            return x.divide(UnifiedReal.RADIANS_PER_DEGREE);
+        } else {
+            return x;
+        }
+    }
+
+    /**
+     * The point at which parsing failed.  A null message means that the expression ended
+     * unexpectedly, which the parser reported as an IndexOutOfBoundsException.
+     */
+    static final class Error extends ExprNode {
+        final String mMessage;
+
+        Error(int pos, String message) {
+            super(pos, pos, true);
+            mMessage = message;
+        }
+
+        @Override
+        UnifiedReal eval(EvalContext ec) throws SyntaxException {
+            if (mMessage == null) {
+                throw new IndexOutOfBoundsException();
+            }
+            throw new SyntaxException(mMessage);
+        }
+    }
+
+    /**
+     * A numeric constant.  A null value represents a malformed constant, such as a lone decimal
+     * point.
+     */
+    static final class Literal extends ExprNode {
+        final BoundedRational mValue;
+
+        Literal(int pos, BoundedRational value) {
+            super(pos, pos + 1, false);
+            mValue = value;
+        }
+
+        @Override
+        UnifiedReal eval(EvalContext ec) throws SyntaxException {
+            if (mValue == null) {
+                throw new SyntaxException();
+            }
+            return new UnifiedReal(mValue);
+        }
+    }
+
+    /**
+     * pi or e.
+     */
+    static final class Named extends ExprNode {
+        final UnifiedReal mValue;
+
+        Named(int pos, UnifiedReal value) {
+            super(pos, pos + 1, false);
+            mValue = value;
+        }
+
+        @Override
+        UnifiedReal eval(EvalContext ec) {
+            return mValue;
+        }
+    }
+
+    /**
+     * A reference to a previously evaluated expression.
+     */
+    static final class Reference extends ExprNode {
+        final long mIndex;
+
+        Reference(int pos, long index) {
+            super(pos, pos + 1, false);
+            mIndex = index;
+        }
+
+        @Override
+        UnifiedReal eval(EvalContext ec) throws SyntaxException {
+            UnifiedReal res = ec.mExprResolver.getResult(mIndex);
+            if (res == null) {
+                // We try to minimize this recursive evaluation case, but currently don't
+                // completely avoid it.
+                res = CalculatorExpr.nestedEval(mIndex, ec.mExprResolver);
+            }
+            return res;
+        }
+    }
+
+    /**
+     * A parenthesized expression.  The closing parenthesis is optional.
+     */
+    static final class Group extends ExprNode {
+        final ExprNode mInner;
+
+        Group(int start, ExprNode inner, int end) {
+            super(start, end, inner.mFailed);
+            mInner = inner;
+        }
+
+        @Override
+        UnifiedReal eval(EvalContext ec) throws SyntaxException {
+            return mInner.value(ec);
+        }
+    }
+
+    /**
+     * A function applied to its argument, which includes the optional closing parenthesis.
+     * Square roots take a unary argument, possibly negated, without parentheses.
+     */
+    static final class Function extends ExprNode {
+        final int mId;
+        final ExprNode mArg;
+
+        Function(int start, int id, ExprNode arg, int end) {
+            super(start, end, arg.mFailed);
+            mId = id;
+            mArg = arg;
+        }
+
+        @Override
+        UnifiedReal eval(EvalContext ec) throws SyntaxException {
+            return apply(mId, mArg.value(ec), ec);
+        }
+
+        /**
+         * Apply the function with the given id to val.
+         */
+        static UnifiedReal apply(int id, UnifiedReal val, EvalContext ec) {
+            switch (id) {
+                case R.id.op_sqrt:
+                    return val.sqrt();
+                case R.id.fun_sin:
+                    return toRadians(val, ec).sin();
+                case R.id.fun_cos:
+                    return toRadians(val, ec).cos();
+                case R.id.fun_tan:
+                    UnifiedReal arg = toRadians(val, ec);
+                    return arg.sin().divide(arg.cos());
+                case R.id.fun_ln:
+                    return val.ln();
+                case R.id.fun_exp:
+                    return val.exp();
+                case R.id.fun_log:
+                    return val.ln().divide(UnifiedReal.TEN.ln());
+                case R.id.fun_arcsin:
+                    return fromRadians(val.asin(), ec);
+                case R.id.fun_arccos:
+                    return fromRadians(val.acos(), ec);
+                case R.id.fun_arctan:
+                    return fromRadians(val.atan(), ec);
+                default:
+                    throw new AssertionError("Unknown function");
+            }
+        }
+    }
+
+    /**
+     * A unary minus.
+     */
+    static final class Negate extends ExprNode {
+        final ExprNode mOperand;
+
+        Negate(int start, ExprNode operand) {
+            super(start, operand.mEnd, operand.mFailed);
+            mOperand = operand;
+        }
+
+        @Override
+        UnifiedReal eval(EvalContext ec) throws SyntaxException {
+            return mOperand.value(ec).negate();
+        }
+    }
+
+    /**
+     * Exponentiation.  The exponent is a signed factor, so that this is right associative.
+     */
+    static final class Power extends ExprNode {
+        final ExprNode mBase;
+        final ExprNode mExponent;
+
+        Power(ExprNode base, ExprNode exponent) {
+            super(base.mStart, exponent.mEnd, exponent.mFailed);
+            mBase = base;
+            mExponent = exponent;
+        }
+
+        @Override
+        UnifiedReal eval(EvalContext ec) throws SyntaxException {
+            final UnifiedReal val = mBase.value(ec);
+            return val.pow(mExponent.value(ec));
+        }
+    }
+
+    /**
+     * A left associative operation, whose left operand is often another Chain.
+     */
+    abstract static class Chain extends ExprNode {
+        final ExprNode mLeft;
+
+        Chain(ExprNode left, int end, boolean failed) {
+            super(left.mStart, end, failed);
+            mLeft = left;
+        }
+    }
+
+    /**
+     * A Chain ending in a postfix operator, which is applied to the value of mLeft.
+     * Postfix chains are evaluated iteratively, so that long sequences of them do not need deep
+     * recursion.  Evaluation starts from the topmost remembered value on the left spine, and
+     * remembers the values of the nodes above it.
+     */
+    abstract static class Postfix extends Chain {
+        Postfix(ExprNode left, int end, boolean failed) {
+            super(left, end, failed);
+        }
+
+        /**
+         * Evaluate any other operand, and combine it with the value of mLeft.
+         */
+        abstract UnifiedReal apply(UnifiedReal left, EvalContext ec) throws SyntaxException;
+
+        @Override
+        final UnifiedReal eval(EvalContext ec) throws SyntaxException {
+            ArrayList<Postfix> spine = new ArrayList<Postfix>();
+            spine.add(this);
+            ExprNode node = mLeft;
+            UnifiedReal val;
+            while ((val = node.remembered(ec)) == null && node instanceof Postfix) {
+                spine.add((Postfix) node);
+                node = ((Postfix) node).mLeft;
+            }
+            if (val == null) {
+                val = node.value(ec);
+            }
+            // spine.get(0) is this, whose value is remembered by value().
+            for (int i = spine.size() - 1; i > 0; --i) {
+                final Postfix chain = spine.get(i);
+                val = chain.remember(ec, chain.apply(val, ec));
+            }
+            return apply(val, ec);
+        }
+    }
+
+    /**
+     * A factorial, square or percent suffix.
+     */
+    static final class Suffix extends Postfix {
+        final int mId;
+
+        Suffix(ExprNode operand, int id) {
+            super(operand, operand.mEnd + 1, false);
+            mId = id;
+        }
+
+        @Override
+        UnifiedReal apply(UnifiedReal val, EvalContext ec) {
+            return apply(mId, val);
+        }
+
+        /**
+         * Apply the suffix operator with the given id to val.
+         */
+        static UnifiedReal apply(int id, UnifiedReal val) {
+            switch (id) {
+                case R.id.op_fact:
+                    return val.fact();
+                case R.id.op_sqr:
+                    return val.multiply(val);
+                default:  // percent
+                    return val.multiply(ONE_HUNDREDTH);
+            }
+        }
+    }
+
+    /**
+     * An addition, subtraction, multiplication or division.  Implicit multiplication is
+     * represented as op_mul.
+     */
+    static final class Binary extends Chain {
+        final int mId;
+        final ExprNode mRight;
+
+        Binary(ExprNode left, int id, ExprNode right) {
+            super(left, right.mEnd, right.mFailed);
+            mId = id;
+            mRight = right;
+        }
+
+        boolean isAdditive() {
+            return mId == R.id.op_add || mId == R.id.op_sub;
+        }
+
+        /**
+         * Evaluate the maximal sum or product ending here, i.e. the Binary nodes of the same
+         * kind on the left spine, as a whole.  The operands are evaluated from left to right, and
+         * division by zero is detected, exactly as if the operations were performed in order.
+         * The operands are then combined by UnifiedReal.sum() or product(), which simplify
+         * before building constructive reals.
+         */
+        @Override
+        UnifiedReal eval(EvalContext ec) throws SyntaxException {
+            final boolean additive = isAdditive();
+            final ArrayList<Binary> run = new ArrayList<Binary>();
+            ExprNode node = this;
+            while (node instanceof Binary && ((Binary) node).isAdditive() == additive) {
+                run.add((Binary) node);
+                node = ((Binary) node).mLeft;
+            }
+            final int n = run.size();
+            final UnifiedReal[] operands = new UnifiedReal[n + 1];
+            final boolean[] inverted = new boolean[n + 1];
+            operands[0] = node.value(ec);
+            for (int i = 1; i <= n; ++i) {
+                final Binary op = run.get(n - i);
+                operands[i] = operand(op.mId, op.mRight.value(ec));
+                inverted[i] = op.mId == R.id.op_div;
+            }
+            return additive ? UnifiedReal.sum(operands) : UnifiedReal.product(operands, inverted);
+        }
+
+        /**
+         * Return the term or factor contributed by the right operand of the operator with the
+         * given id, checking for division by zero.  Divisors are returned as is, and must be
+         * inverted by the caller.
+         */
+        static UnifiedReal operand(int id, UnifiedReal right) {
+            switch (id) {
+                case R.id.op_sub:
+                    return right.negate();
+                case R.id.op_div:
+                    if (right.definitelyZero()) {
+                        throw new UnifiedReal.ZeroDivisionException();
+                    }
+                    return right;
+                default:
+                    return right;
+            }
+        }
+    }
+
+    /**
+     * An addition or subtraction of N%, as in 200+10%, which multiplies by 1 +/- N/100.
+     * The Constant or PreEval N is followed by the percent sign, which ends the node.
+     */
+    static final class PercentChange extends Postfix {
+        final ExprNode mNumber;
+        final boolean mIsSubtraction;
+
+        PercentChange(ExprNode left, ExprNode number, boolean isSubtraction) {
+            super(left, number.mEnd + 1, false);
+            mNumber = number;
+            mIsSubtraction = isSubtraction;
+        }
+
+        @Override
+        UnifiedReal apply(UnifiedReal val, EvalContext ec) throws SyntaxException {
+            return apply(val, mNumber.value(ec), mIsSubtraction);
+        }
+
+        /**
+         * Add or subtract number percent of val.
+         */
+        static UnifiedReal apply(UnifiedReal val, UnifiedReal number, boolean isSubtraction) {
+            UnifiedReal factor = isSubtraction ? number.negate() : number;
+            factor = UnifiedReal.ONE.add(factor.multiply(ONE_HUNDREDTH));
+            return val.multiply(factor);
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2.expression;
+
+import android.view.View;
+
+import com.android.calculator2.R;
+import com.android.calculator2.util.KeyMaps;
+
+/**
+ * Convert pasted text to expression tokens, possibly off the UI thread.
+ * <p>
+ * The text is appended to a copy of the expression it is pasted into, mapping characters to
+ * button presses exactly as CalculatorActivity.addChars() does for pasted text.  Neither the
+ * original expression nor the formula view is touched, so the caller can install the result
+ * with a single Evaluator.replaceMain() call and formula update, however long the text.
+ * <p>
+ * Characters are mapped with a KeyMaps.InputMap snapshot, taken by the caller on the UI thread,
+ * so that run() never reads the KeyMaps tables, which the UI thread rebuilds if the locale
+ * changes.
+ */
+public final class PasteTokenizer {
+
+    /**
+     * Receives progress reports from run().
+     */
+    public interface ProgressListener {
+        /**
+         * Report that the first processed of total characters have been converted.
+         *
+         * @return false to stop converting
+         */
+        boolean onProgress(int processed, int total);
+    }
+
+    // Number of characters converted between progress reports.
+    private static final int PROGRESS_INTERVAL = 4096;
+
+    private final KeyMaps.InputMap mInputMap;
+    private final CalculatorExpr mExpr;
+    private final String mText;
+    private String mUnprocessed = null;
+    private int mLastKey = View.NO_ID;
+
+    /**
+     * @param inputMap the character mappings to use, from KeyMaps.getInputMap()
+     * @param base the expression the text is appended to; it is copied, and not modified
+     * @param text the pasted text
+     */
+    public PasteTokenizer(KeyMaps.InputMap inputMap, CalculatorExpr base, CharSequence text) {
+        mInputMap = inputMap;
+        mExpr = (CalculatorExpr) base.clone();
+        mText = text.toString();
+    }
+
+    private void add(int id) {
+        Evaluator.appendKey(mExpr, id);
+        mLastKey = id;
+    }
+
+    /**
+     * Convert the text, appending it to the copied expression.
+     *
+     * @param listener progress callback, or null
+     * @return false if the listener stopped conversion, in which case the result is incomplete
+     */
+    public boolean run(ProgressListener listener) {
+        final int len = mText.length();
+        int current = 0;
+        int nextReport = PROGRESS_INTERVAL;
+        boolean lastWasDigit = false;
+        while (current < len) {
+            if (current >= nextReport) {
+                if (listener != null && !listener.onProgress(current, len)) {
+                    return false;
+                }
+                nextReport = current + PROGRESS_INTERVAL;
+            }
+            char c = mText.charAt(current);
+            if (Character.isSpaceChar(c) || c == ',') {
+                ++current;
+                continue;
+            }
+            int k = mInputMap.keyForChar(c);
+            int expEnd;
+            if (lastWasDigit
+                    && current != (expEnd = Evaluator.exponentEnd(mInputMap, mText, current))) {
+                // Scientific notation with 'E', as in addChars().
+                mExpr.addExponent(Evaluator.exponentValue(mInputMap, mText, current, expEnd));
+                current = expEnd;
+                lastWasDigit = false;
+                continue;
+            }
+            lastWasDigit = KeyMaps.digVal(k) != KeyMaps.NOT_DIGIT
+                    || lastWasDigit && k == R.id.dec_point;
+            if (k != View.NO_ID) {
+                add(k);
+                current += Character.isSurrogate(c) ? 2 : 1;
+                continue;
+            }
+            int f = mInputMap.funForString(mText, current);
+            if (f != View.NO_ID) {
+                add(f);
+                if (f == R.id.op_sqrt) {
+                    // Square root entered as function; don't lose the parenthesis.
+                    add(R.id.lparen);
+                }
+                current = mText.indexOf('(', current) + 1;
+                continue;
+            }
+            // There are characters left, but we can't convert them to button presses.
+            mUnprocessed = mText.substring(current);
+            break;
+        }
+        if (listener != null) {
+            listener.onProgress(len, len);
+        }
+        return true;
+    }
+
+    /**
+     * Return the extended copy of the expression.
+     */
+    public CalculatorExpr getExpr() {
+        return mExpr;
+    }
+
+    /**
+     * Return the trailing characters that could not be converted, or null if there are none.
+     */
+    public String getUnprocessed() {
+        return mUnprocessed;
+    }
+
+    /**
+     * Return the id of the last button press added, or View.NO_ID.
+     */
+    public int getLastKey() {
+        return mLastKey;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2.expression;
+
+import com.android.calculator2.expression.CalculatorExpr.ExprResolver;
+import com.android.calculator2.expression.CalculatorExpr.SyntaxException;
+import com.hp.creals.CR;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Evaluate the expressions transitively referenced by a CalculatorExpr before the expression
+ * itself.
+ * <p>
+ * The unevaluated referenced expressions form a DAG, since an expression can only refer to
+ * expressions that existed when it was entered.  We build the DAG, with references deduplicated
+ * by index, and evaluate each expression only after the ones it refers to, so that its
+ * evaluation never recurses into another one.  Expressions whose references have all been
+ * evaluated are evaluated concurrently on a small shared thread pool.  Results are published
+ * through ExprResolver.putResultIfAbsent(), so that concurrent evaluations of the same
+ * expression, e.g. for different main expressions, agree on a single value.
+ */
+final class ReferenceScheduler {
+
+    // Maximum number of referenced expressions evaluated at once, over all schedulers.
+    private static final int MAX_THREADS = 4;
+    // Idle pool threads exit after this many seconds.
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    // Created on first use.  Protected by the ReferenceScheduler class lock.
+    private static ThreadPoolExecutor sExecutor;
+
+    private final ExprResolver mResolver;
+
+    // Unevaluated referenced expressions in topological order: each follows all the ones it
+    // refers to.
+    private final ArrayList<Long> mOrder = new ArrayList<Long>();
+
+    // For each expression in mOrder, the distinct expressions in mOrder it refers to.
+    private final LinkedHashMap<Long, LinkedHashSet<Long>> mReferences =
+            new LinkedHashMap<Long, LinkedHashSet<Long>>();
+
+    // For each expression in mOrder, the expressions in mOrder that refer to it.
+    private final HashMap<Long, ArrayList<Long>> mReferrers = new HashMap<Long, ArrayList<Long>>();
+
+    ReferenceScheduler(CalculatorExpr expr, ExprResolver er) {
+        mResolver = er;
+        // Find the unevaluated expressions reachable from expr, breadth first.
+        final LinkedHashSet<Long> roots = new LinkedHashSet<Long>();
+        expr.addReferencedExprs(roots, er);
+        final ArrayDeque<Long> toScan = new ArrayDeque<Long>(roots);
+        while (!toScan.isEmpty()) {
+            final Long index = toScan.remove();
+            if (mReferences.containsKey(index)) {
+                continue;
+            }
+            final LinkedHashSet<Long> refs = new LinkedHashSet<Long>();
+            er.getExpr(index).addReferencedExprs(refs, er);
+            mReferences.put(index, refs);
+            mReferrers.put(index, new ArrayList<Long>());
+            toScan.addAll(refs);
+        }
+        for (Map.Entry<Long, LinkedHashSet<Long>> entry : mReferences.entrySet()) {
+            for (Long ref : entry.getValue()) {
+                mReferrers.get(ref).add(entry.getKey());
+            }
+        }
+        // Sort topologically, starting from the expressions that refer to nothing unevaluated.
+        final HashMap<Long, Integer> remaining = unevaluatedReferenceCounts();
+        final ArrayDeque<Long> ready = new ArrayDeque<Long>();
+        for (Map.Entry<Long, Integer> entry : remaining.entrySet()) {
+            if (entry.getValue() == 0) {
+                ready.add(entry.getKey());
+            }
+        }
+        while (!ready.isEmpty()) {
+            final Long index = ready.remove();
+            mOrder.add(index);
+            for (Long referrer : mReferrers.get(index)) {
+                if (decrement(remaining, referrer) == 0) {
+                    ready.add(referrer);
+                }
+            }
+        }
+        if (mOrder.size() != mReferences.size()) {
+            // A cycle, which the UI cannot create.  Leave it to recursive evaluation, which
+            // reports it by overflowing the stack, as it always has.
+            for (Long index : mReferences.keySet()) {
+                if (remaining.get(index) != 0) {
+                    mOrder.add(index);
+                }
+            }
+        }
+    }
+
+    private HashMap<Long, Integer> unevaluatedReferenceCounts() {
+        final HashMap<Long, Integer> result = new LinkedHashMap<Long, Integer>();
+        for (Map.Entry<Long, LinkedHashSet<Long>> entry : mReferences.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().size());
+        }
+        return result;
+    }
+
+    private static int decrement(HashMap<Long, Integer> counts, Long index) {
+        final int result = counts.get(index) - 1;
+        counts.put(index, result);
+        return result;
+    }
+
+    /**
+     * Return the unevaluated referenced expressions, each following the ones it refers to.
+     */
+    ArrayList<Long> order() {
+        return mOrder;
+    }
+
+    /**
+     * Evaluate all unevaluated referenced expressions, and save their results.
+     * If evaluations fail, the failure of the one that comes first in order() is thrown, as it
+     * would be by evaluating them one at a time in that order, whichever failure is noticed
+     * first.  Once an evaluation has failed, the ones following it in order() are cancelled,
+     * and the ones preceding it are completed.
+     * Interrupting the calling thread cancels all evaluations, and results in a
+     * CR.AbortedException, as it does for a CR computation.
+     */
+    void evaluate() throws SyntaxException {
+        if (mOrder.size() < 2) {
+            for (long index : mOrder) {
+                CalculatorExpr.nestedEval(index, mResolver);
+            }
+            return;
+        }
+        final HashMap<Long, Integer> positions = new HashMap<Long, Integer>();
+        for (int i = 0; i < mOrder.size(); ++i) {
+            positions.put(mOrder.get(i), i);
+        }
+        final ExecutorCompletionService<Long> completed =
+                new ExecutorCompletionService<Long>(executor());
+        // The expression evaluated by each submitted task.
+        final HashMap<Future<Long>, Long> submitted = new HashMap<Future<Long>, Long>();
+        final HashMap<Long, Integer> remaining = unevaluatedReferenceCounts();
+        for (Long index : mOrder) {
+            if (remaining.get(index) == 0) {
+                submitted.put(completed.submit(task(index)), index);
+            }
+        }
+        int running = submitted.size();
+        // The position in mOrder of the first failed evaluation, and its exception.
+        int failedPosition = mOrder.size();
+        Throwable failure = null;
+        try {
+            while (running != 0) {
+                final Future<Long> next = completed.take();
+                --running;
+                final Long index;
+                try {
+                    index = next.get();
+                } catch (CancellationException e) {
+                    continue;
+                } catch (ExecutionException e) {
+                    final int position = positions.get(submitted.get(next));
+                    if (position < failedPosition) {
+                        failedPosition = position;
+                        failure = e.getCause();
+                        cancelFollowing(submitted, positions, failedPosition);
+                    }
+                    continue;
+                }
+                for (Long referrer : mReferrers.get(index)) {
+                    if (decrement(remaining, referrer) == 0
+                            && positions.get(referrer) < failedPosition) {
+                        submitted.put(completed.submit(task(referrer)), referrer);
+                        ++running;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            cancelFollowing(submitted, positions, -1);
+            throw new CR.AbortedException();
+        }
+        if (failure != null) {
+            throw rethrow(failure);
+        }
+        // Any leftovers are part of a cycle.
+        for (Long index : mOrder) {
+            if (remaining.get(index) != 0) {
+                CalculatorExpr.nestedEval(index, mResolver);
+            }
+        }
+    }
+
+    private Callable<Long> task(final Long index) {
+        return new Callable<Long>() {
+            @Override
+            public Long call() throws SyntaxException {
+                CalculatorExpr.nestedEval(index, mResolver);
+                return index;
+            }
+        };
+    }
+
+    /**
+     * Cancel the submitted evaluations of expressions following the given position in mOrder.
+     */
+    private static void cancelFollowing(HashMap<Future<Long>, Long> submitted,
+            HashMap<Long, Integer> positions, int position) {
+        // Interrupts running evaluations, which then abort their CR computations.
+        for (Map.Entry<Future<Long>, Long> entry : submitted.entrySet()) {
+            if (positions.get(entry.getValue()) > position) {
+                entry.getKey().cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Rethrow the cause of a failed evaluation.  Returns only to make the caller's throw
+     * statement reachable for the compiler.
+     */
+    private static RuntimeException rethrow(Throwable cause) throws SyntaxException {
+        if (cause instanceof SyntaxException) {
+            throw (SyntaxException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new AssertionError("Unexpected evaluation failure: " + cause);
+    }
+
+    private static synchronized ThreadPoolExecutor executor() {
+        if (sExecutor == null) {
+            final int threads = Math.max(1,
+                    Math.min(MAX_THREADS, Runtime.getRuntime().availableProcessors()));
+            sExecutor = new ThreadPoolExecutor(threads, threads,
+                    KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            final Thread result = new Thread(r, "ReferenceScheduler");
+                            result.setDaemon(true);
+                            return result;
+                        }
+                    });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+}
@@ -23,10 +23,14 @@ import android.util.Log;
 import android.view.View;
 import android.widget.Button;
 
+import androidx.annotation.VisibleForTesting;
+
 import com.android.calculator2.R;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * Collection of mapping functions between key ids, characters, internationalized
@@ -488,6 +492,11 @@ public class KeyMaps {
      */
     private static Locale sLocaleForMaps = null;
 
+    /**
+     * Snapshot of the input tables returned by getInputMap(), or null if they changed since.
+     */
+    private static InputMap sInputMap = null;
+
     /**
      * Activity to use for looking up buttons.
      */
@@ -507,6 +516,14 @@ public class KeyMaps {
      */
     public static int keyForChar(char c) {
         validateMaps();
+        return keyForChar(c, mDecimalPt, mPiChar);
+    }
+
+    /**
+     * Return the button id corresponding to the supplied character or return NO_ID, given the
+     * locale-dependent decimal point and pi characters.
+     */
+    private static int keyForChar(char c, char decimalPt, char piChar) {
         if (Character.isDigit(c)) {
             int i = Character.digit(c, 10);
             return KeyMaps.keyForDigVal(i);
@@ -548,8 +565,8 @@ public class KeyMaps {
             case '²':
                 return R.id.op_sqr;
             default:
-                if (c == mDecimalPt) return R.id.dec_point;
-                if (c == mPiChar) return R.id.const_pi;
+                if (c == decimalPt) return R.id.dec_point;
+                if (c == piChar) return R.id.const_pi;
                 // pi is not translated, but it might be typable on a Greek keyboard,
                 // or pasted in, so we check ...
                 return View.NO_ID;
@@ -563,6 +580,7 @@ public class KeyMaps {
     static void addButtonToFunMap(int button_id) {
         Button button = mActivity.findViewById(button_id);
         sKeyValForFun.put(button.getText().toString(), button_id);
+        sInputMap = null;
     }
 
     /**
@@ -616,6 +634,7 @@ public class KeyMaps {
             }
 
             sLocaleForMaps = locale;
+            sInputMap = null;
 
         }
     }
@@ -629,16 +648,74 @@ public class KeyMaps {
      */
     public static int funForString(String s, int pos) {
         validateMaps();
+        return funForString(s, pos, sKeyValForFun);
+    }
+
+    private static int funForString(String s, int pos, Map<String, Integer> keyValForFun) {
         int parenPos = s.indexOf('(', pos);
         if (parenPos != -1) {
             String funString = s.substring(pos, parenPos);
-            Integer keyValue = sKeyValForFun.get(funString);
+            Integer keyValue = keyValForFun.get(funString);
             if (keyValue == null) return View.NO_ID;
             return keyValue;
         }
         return View.NO_ID;
     }
 
+    /**
+     * An immutable copy of the current locale's tables for mapping input characters and function
+     * names to button ids.  Unlike keyForChar() and funForString(), its methods may be called from
+     * any thread, since validateMaps() never changes a snapshot.
+     */
+    public static final class InputMap {
+        private final char mDecimalPt;
+        private final char mPiChar;
+        private final Map<String, Integer> mKeyValForFun;
+
+        private InputMap(char decimalPt, char piChar, Map<String, Integer> keyValForFun) {
+            mDecimalPt = decimalPt;
+            mPiChar = piChar;
+            mKeyValForFun = keyValForFun;
+        }
+
+        /**
+         * Return the button id corresponding to the supplied character or return NO_ID.
+         */
+        public int keyForChar(char c) {
+            return KeyMaps.keyForChar(c, mDecimalPt, mPiChar);
+        }
+
+        /**
+         * Return function button id for the substring of s starting at pos and ending with
+         * the next "(".  Return NO_ID if there is none.
+         */
+        public int funForString(String s, int pos) {
+            return KeyMaps.funForString(s, pos, mKeyValForFun);
+        }
+    }
+
+    /**
+     * Return a snapshot of the input tables for the current locale.
+     * Called only by UI thread.
+     */
+    public static InputMap getInputMap() {
+        validateMaps();
+        if (sInputMap == null) {
+            sInputMap = new InputMap(mDecimalPt, mPiChar,
+                    Collections.unmodifiableMap(new HashMap<String, Integer>(sKeyValForFun)));
+        }
+        return sInputMap;
+    }
+
+    /**
+     * Return input tables with the given decimal point and pi characters, which do not need an
+     * activity.  Function names are recognized only by keyForChar().
+     */
+    @VisibleForTesting
+    public static InputMap getInputMap(char decimalPt, char piChar) {
+        return new InputMap(decimalPt, piChar, Collections.<String, Integer>emptyMap());
+    }
+
     /**
      * Return the localization of the string s representing a numeric answer.
      * Callable only from UI thread.
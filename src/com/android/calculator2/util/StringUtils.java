@@ -17,6 +17,8 @@
 package com.android.calculator2.util;
 
 import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
 
 /**
  * Some helpful methods operating on strings.
@@ -94,6 +96,62 @@ public class StringUtils {
         return whole.subSequence(wIndex, wLen);
     }
 
+    // Number of decimal digits that always fit in a long.
+    private static final int LONG_DIGITS = 18;
+    // Digit strings longer than this are split in half by parseDigits().
+    private static final int SPLIT_DIGITS = 32 * LONG_DIGITS;
+    // sTenPowers.get(k) = 10^(LONG_DIGITS * 2^k).  Protected by StringUtils.class.
+    private static final ArrayList<BigInteger> sTenPowers = new ArrayList<BigInteger>();
+
+    private static synchronized BigInteger tenPower(int k) {
+        if (sTenPowers.isEmpty()) {
+            sTenPowers.add(BigInteger.TEN.pow(LONG_DIGITS));
+        }
+        while (sTenPowers.size() <= k) {
+            final BigInteger last = sTenPowers.get(sTenPowers.size() - 1);
+            sTenPowers.add(last.multiply(last));
+        }
+        return sTenPowers.get(k);
+    }
+
+    /**
+     * Return the value of the decimal digits in s between begin and end, or zero if there are
+     * none.  Unlike new BigInteger(String), this takes less than quadratic time for long
+     * strings, by converting both halves recursively and then combining them with a single
+     * multiplication.
+     */
+    public static BigInteger parseDigits(CharSequence s, int begin, int end) {
+        final int len = end - begin;
+        if (len <= SPLIT_DIGITS) {
+            BigInteger result = BigInteger.ZERO;
+            int pos = begin;
+            int chunk = len % LONG_DIGITS;
+            if (chunk == 0) {
+                chunk = LONG_DIGITS;
+            }
+            while (pos < end) {
+                long n = 0;
+                for (int i = pos; i < pos + chunk; ++i) {
+                    n = n * 10 + Character.digit(s.charAt(i), 10);
+                }
+                result = pos == begin ? BigInteger.valueOf(n)
+                        : result.multiply(tenPower(0)).add(BigInteger.valueOf(n));
+                pos += chunk;
+                chunk = LONG_DIGITS;
+            }
+            return result;
+        }
+        // Split off the largest low order part of LONG_DIGITS * 2^k digits, so that the
+        // powers of ten can be cached.
+        int k = 0;
+        while (LONG_DIGITS << (k + 1) < len) {
+            ++k;
+        }
+        final int split = end - (LONG_DIGITS << k);
+        return parseDigits(s, begin, split).multiply(tenPower(k))
+                .add(parseDigits(s, split, end));
+    }
+
     public static boolean isNumber(String text) {
         if (!(text != null && !text.equalsIgnoreCase(""))) {
             return false;
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import com.android.calculator2.expression.BoundedRational;
+import com.hp.creals.CR;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+/**
+ * Checks that CRInterner shares nodes built from the same operands, and forgets them once they
+ * are collected.
+ */
+public class CRInternerTest extends TestCase {
+    // Number of entries added to check that collected ones are purged.
+    private static final int ENTRIES = 1000;
+    // Number of garbage collections to wait for before giving up.
+    private static final int MAX_GCS = 20;
+
+    private static void check(boolean x, String s) {
+        if (!x) throw new AssertionFailedError(s);
+    }
+
+    // sqrt(r) * pi + ln(r), built with new operand objects.
+    private static CR subtree(long r) {
+        final CR rational = CRInterner.valueOf(new BoundedRational(r));
+        return CRInterner.add(CRInterner.multiply(CRInterner.sqrt(rational), CR.PI),
+                CRInterner.ln(rational));
+    }
+
+    public void testSharedSubtrees() {
+        final CR x = subtree(2);
+        check(subtree(2) == x, "sqrt(2) * pi + ln(2) not shared");
+        check(CRInterner.sin(x) == CRInterner.sin(subtree(2)), "sin not shared");
+        check(subtree(3) != x, "different rationals shared");
+        // Only identical operands are shared, not equal ones.
+        check(CRInterner.sqrt(CR.valueOf(5)) != CRInterner.sqrt(CR.valueOf(5)),
+                "distinct operands shared");
+    }
+
+    public void testCommutativeOperands() {
+        final CR x = CRInterner.valueOf(new BoundedRational(7));
+        final CR y = CR.valueOf(11).sqrt();
+        check(CRInterner.add(x, y) == CRInterner.add(y, x), "x + y != y + x");
+        check(CRInterner.multiply(x, y) == CRInterner.multiply(y, x), "x * y != y * x");
+        check(CRInterner.add(x, y) != CRInterner.multiply(x, y), "x + y == x * y");
+        check(CRInterner.add(x, x) != CRInterner.add(x, y), "x + x == x + y");
+    }
+
+    public void testDisabled() {
+        final CR x = CRInterner.valueOf(new BoundedRational(13));
+        CRInterner.enabled = false;
+        try {
+            check(CRInterner.exp(x) != CRInterner.exp(x), "shared while disabled");
+        } finally {
+            CRInterner.enabled = true;
+        }
+        check(CRInterner.exp(x) == CRInterner.exp(x), "not shared");
+    }
+
+    public void testCollectedEntriesPurged() throws InterruptedException {
+        final CR kept = subtree(17);
+        final int initialSize = CRInterner.size();
+        for (int i = 0; i < ENTRIES; ++i) {
+            CRInterner.cos(CR.valueOf(i));
+        }
+        int size = CRInterner.size();
+        for (int i = 0; i < MAX_GCS && size > initialSize; ++i) {
+            System.gc();
+            Thread.sleep(10);
+            size = CRInterner.size();
+        }
+        check(size <= initialSize, "size " + size + " > " + initialSize);
+        check(subtree(17) == kept, "reachable entry purged");
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Checks that UnifiedReal interns square roots of square-free integers and logarithms of primes
+ * on demand, so that expressions combining them are recognized exactly, including when they are
+ * first created on several threads at once.
+ */
+public class UnifiedRealInternTest extends TestCase {
+    private static final int THREADS = 4;
+    // Arguments not used elsewhere, so that they are interned while the threads race.
+    private static final int FIRST_ARG = 3001;
+    private static final int ARGS = 20;
+
+    private static void check(boolean x, String s) {
+        if (!x) throw new AssertionFailedError(s);
+    }
+
+    private static UnifiedReal sqrt(long n) {
+        return new UnifiedReal(n).sqrt();
+    }
+
+    private static UnifiedReal ln(long n) {
+        return new UnifiedReal(n).ln();
+    }
+
+    public void testRadicals() {
+        check(sqrt(6).multiply(sqrt(10)).definitelyEquals(sqrt(15).multiply(UnifiedReal.TWO)),
+                "sqrt(6) * sqrt(10)");
+        check(sqrt(12).definitelyEquals(sqrt(3).multiply(UnifiedReal.TWO)), "sqrt(12)");
+        check(sqrt(1234577).divide(sqrt(1234577)).definitelyOne(), "sqrt(1234577)");
+        check(sqrt(2310).multiply(sqrt(2310)).definitelyEquals(new UnifiedReal(2310)),
+                "sqrt(2310)^2");
+        check(sqrt(35).definitelyIrrational(), "sqrt(35) irrational");
+        check(sqrt(35).definitelyNotEquals(sqrt(37)), "sqrt(35) == sqrt(37)");
+    }
+
+    public void testPrimeLogs() {
+        check(ln(97 * 101).subtract(ln(97)).subtract(ln(101)).definitelyZero(), "ln(97 * 101)");
+        check(ln(1024 * 3).definitelyEquals(ln(2).multiply(new UnifiedReal(10)).add(ln(3))),
+                "ln(2^10 * 3)");
+        check(new UnifiedReal(1).divide(new UnifiedReal(6)).ln()
+                .definitelyEquals(ln(2).add(ln(3)).negate()), "ln(1/6)");
+        check(ln(7919).subtract(ln(7919)).definitelyZero(), "ln(7919)");
+        check(ln(7919).definitelyNotEquals(ln(7907)), "ln(7919) == ln(7907)");
+    }
+
+    public void testConcurrentInterning() throws InterruptedException {
+        final UnifiedReal[][] sqrts = new UnifiedReal[THREADS][ARGS];
+        final UnifiedReal[][] logs = new UnifiedReal[THREADS][ARGS];
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; ++i) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < ARGS; ++j) {
+                        sqrts[thread][j] = sqrt(FIRST_ARG + j);
+                        logs[thread][j] = ln(FIRST_ARG + j);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (int i = 1; i < THREADS; ++i) {
+            for (int j = 0; j < ARGS; ++j) {
+                final int n = FIRST_ARG + j;
+                check(sqrts[i][j].divide(sqrts[0][j]).definitelyOne(), "sqrt(" + n + ")");
+                check(logs[i][j].subtract(logs[0][j]).definitelyZero(), "ln(" + n + ")");
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import android.util.Log;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+/**
+ * Checks that UnifiedReal.product() agrees with multiply() and divide() for constructive real
+ * factors that have no symbolic representation, and logs how long each takes.
+ */
+public class UnifiedRealProductTest extends TestCase {
+    private static final String TAG = "UnifiedRealProductTest";
+    private static final int DIGITS = 4000;
+
+    private static void check(boolean x, String s) {
+        if (!x) throw new AssertionFailedError(s);
+    }
+
+    private static void compare(int n) {
+        // Separate copies of sin(3), so that neither computation benefits from the other's
+        // cached approximations.  Both are evaluated first, so that only the products are timed.
+        final UnifiedReal sine = new UnifiedReal(3).sin();
+        final UnifiedReal factor = new UnifiedReal(3).sin();
+        sine.toStringTruncated(DIGITS);
+        factor.toStringTruncated(DIGITS);
+        final UnifiedReal[] factors = new UnifiedReal[n];
+        final boolean[] inverted = new boolean[n];
+        for (int i = 0; i < n; ++i) {
+            factors[i] = factor;
+        }
+        final long start = System.nanoTime();
+        UnifiedReal expected = sine;
+        for (int i = 1; i < n; ++i) {
+            expected = expected.multiply(sine);
+        }
+        final String expectedDigits = expected.toStringTruncated(DIGITS);
+        final long multiplied = System.nanoTime();
+        final String digits = UnifiedReal.product(factors, inverted).toStringTruncated(DIGITS);
+        final long done = System.nanoTime();
+        final long multiplyTime = (multiplied - start) / 1000000;
+        final long productTime = (done - multiplied) / 1000000;
+        Log.i(TAG, "sin(3)^" + n + ": multiply " + multiplyTime + " ms, product "
+                + productTime + " ms");
+        // Computing the power with logarithms took more than 100 times as long.  Timings are
+        // only logged, since they are unreliable on a loaded device.
+        check(digits.equals(expectedDigits), "value of sin(3)^" + n);
+    }
+
+    public void testNonSymbolicPowers() {
+        compare(2);
+        compare(3);
+        compare(8);
+    }
+
+    public void testNonSymbolicQuotients() {
+        final UnifiedReal sine = new UnifiedReal(3).sin();
+        final UnifiedReal[] factors = { sine, new UnifiedReal(2), sine, sine };
+        final boolean[] inverted = { false, false, true, true };
+        final UnifiedReal quotient = UnifiedReal.product(factors, inverted);
+        final UnifiedReal expected = new UnifiedReal(2).divide(new UnifiedReal(3).sin());
+        check(quotient.toStringTruncated(DIGITS).equals(expected.toStringTruncated(DIGITS)),
+                "value of 2/sin(3)");
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2;
+
+import com.hp.creals.CR;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import java.math.BigInteger;
+
+/**
+ * Checks the exact sines, cosines and tangents UnifiedReal produces for multiples of pi/120
+ * against constructive real approximations.  Tangents of the multiples n * pi/120 with n
+ * relatively prime to 120 have too many terms, and fall back to a quotient of constructive reals.
+ */
+public class UnifiedRealTrigTest extends TestCase {
+    private static final int PI_PARTS = 120;
+    // Precision, in bits, of the compared approximations.
+    private static final int PREC = -300;
+
+    private static void check(boolean x, String s) {
+        if (!x) throw new AssertionFailedError(s);
+    }
+
+    private static UnifiedReal piParts(int n) {
+        return UnifiedReal.PI.multiply(new UnifiedReal(n)).divide(new UnifiedReal(PI_PARTS));
+    }
+
+    private static void compare(UnifiedReal exact, CR expected, boolean isExact, String s) {
+        check(!isExact || exact.definitelyAlgebraic(), s + " not exact");
+        final BigInteger difference = exact.crValue().get_appr(PREC)
+                .subtract(expected.get_appr(PREC));
+        check(difference.abs().compareTo(BigInteger.ONE) <= 0, s + " wrong");
+    }
+
+    private static void compareAll(int n) {
+        final UnifiedReal x = piParts(n);
+        final CR crX = CR.PI.multiply(CR.valueOf(n)).divide(CR.valueOf(PI_PARTS));
+        final String arg = "(" + n + "pi/" + PI_PARTS + ")";
+        compare(x.sin(), crX.sin(), true, "sin" + arg);
+        compare(x.cos(), crX.cos(), true, "cos" + arg);
+        if (Math.floorMod(n, PI_PARTS) != PI_PARTS / 2) {
+            final boolean isExact = BigInteger.valueOf(n).gcd(BigInteger.valueOf(PI_PARTS))
+                    .compareTo(BigInteger.ONE) > 0;
+            compare(x.tan(), crX.sin().divide(crX.cos()), isExact, "tan" + arg);
+        }
+    }
+
+    public void testTable() {
+        for (int n = 0; n < 2 * PI_PARTS; ++n) {
+            compareAll(n);
+        }
+    }
+
+    public void testPeriodicity() {
+        for (int n = 1; n < 2 * PI_PARTS; n += 7) {
+            compareAll(-n);
+            compareAll(n + 2 * PI_PARTS);
+        }
+    }
+
+    public void testTanPoles() {
+        for (int n : new int[] {PI_PARTS / 2, 3 * PI_PARTS / 2, -PI_PARTS / 2,
+                5 * PI_PARTS / 2}) {
+            try {
+                piParts(n).tan();
+                check(false, "tan(" + n + "pi/" + PI_PARTS + ") defined");
+            } catch (ArithmeticException expected) {
+            }
+        }
+    }
+}
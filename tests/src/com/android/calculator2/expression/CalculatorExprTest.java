@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2.expression;
+
+import com.android.calculator2.R;
+import com.android.calculator2.UnifiedReal;
+import com.android.calculator2.util.KeyMaps;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that edited expressions are reparsed incrementally to the same result as a full parse,
+ * that expressions saved in either format are read back correctly, and that expressions
+ * decoded lazily from a buffer behave like the originals.
+ */
+public class CalculatorExprTest extends TestCase {
+    // Keys whose random combinations evaluate quickly.
+    private static final int[] KEYS = {
+        R.id.digit_0, R.id.digit_1, R.id.digit_2, R.id.digit_5, R.id.digit_9, R.id.dec_point,
+        R.id.const_pi, R.id.const_e, R.id.op_add, R.id.op_add, R.id.op_sub, R.id.op_sub,
+        R.id.op_mul, R.id.op_div, R.id.op_pow, R.id.op_sqr, R.id.op_pct, R.id.op_fact,
+        R.id.op_sqrt, R.id.lparen, R.id.lparen, R.id.rparen, R.id.rparen, R.id.fun_sin,
+        R.id.fun_cos, R.id.fun_ln, R.id.fun_arctan
+    };
+
+    // Token kinds and constant flags of the serialized forms.
+    private static final int CONSTANT = 0;
+    private static final int PRE_EVAL = 2;
+    private static final int SAW_DECIMAL = 0x1;
+    private static final int HAS_EXPONENT = 0x2;
+
+    private static void check(boolean x, String s) {
+        if (!x) throw new AssertionFailedError(s);
+    }
+
+    /**
+     * Writes expressions in the original, unversioned, format.
+     */
+    private static final class LegacyWriter {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private final DataOutputStream mOut = new DataOutputStream(mBytes);
+
+        LegacyWriter(int size) throws IOException {
+            mOut.writeInt(size);
+        }
+
+        LegacyWriter constant(String whole, String fraction, int exponent) throws IOException {
+            mOut.writeByte(CONSTANT);
+            mOut.writeUTF(whole);
+            mOut.writeByte((fraction != null ? SAW_DECIMAL : 0)
+                    | (exponent != 0 ? HAS_EXPONENT : 0));
+            if (fraction != null) {
+                mOut.writeUTF(fraction);
+            }
+            if (exponent != 0) {
+                mOut.writeInt(exponent);
+            }
+            return this;
+        }
+
+        LegacyWriter operator(int id) throws IOException {
+            mOut.writeByte(KeyMaps.toByte(id));
+            return this;
+        }
+
+        LegacyWriter preEval(int index, String shortRep) throws IOException {
+            mOut.writeByte(PRE_EVAL);
+            mOut.writeInt(index);
+            mOut.writeUTF(shortRep);
+            return this;
+        }
+
+        byte[] toBytes() throws IOException {
+            mOut.flush();
+            return mBytes.toByteArray();
+        }
+    }
+
+    /**
+     * Return the indices of the expressions directly referenced by expr.
+     */
+    private static ArrayList<Long> references(CalculatorExpr expr) {
+        final ArrayList<Long> result = new ArrayList<Long>();
+        expr.addReferencedExprs(result, new CalculatorExpr.ExprResolver() {
+            @Override
+            public CalculatorExpr getExpr(long index) {
+                return null;
+            }
+
+            @Override
+            public boolean getDegreeMode(long index) {
+                return false;
+            }
+
+            @Override
+            public UnifiedReal getResult(long index) {
+                return null;
+            }
+
+            @Override
+            public UnifiedReal putResultIfAbsent(long index, UnifiedReal result) {
+                return result;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Return a copy of expr read back from its serialized form, with no saved parse tree.
+     */
+    private static CalculatorExpr reread(CalculatorExpr expr) throws IOException {
+        return new CalculatorExpr(
+                new DataInputStream(new ByteArrayInputStream(expr.toBytes())));
+    }
+
+    /**
+     * Evaluate expr, and return a description of the value or the exception.
+     */
+    private static String evaluate(CalculatorExpr expr, boolean degreeMode) {
+        try {
+            final UnifiedReal value = expr.eval(degreeMode, null);
+            return "value " + value.toStringTruncated(20);
+        } catch (Exception e) {
+            return e.getClass().getName() + ": " + e.getMessage();
+        }
+    }
+
+    /**
+     * Apply a random edit to expr: add a key, delete the last one, add an exponent to a
+     * trailing constant, or remove trailing additive operators.  Adding or removing trailing
+     * binary operators changes the prefix that is evaluated.
+     */
+    private static void edit(CalculatorExpr expr, Random r) {
+        final int kind = r.nextInt(10);
+        if (kind < 6 || expr.isEmpty()) {
+            expr.add(KEYS[r.nextInt(KEYS.length)]);
+        } else if (kind < 8) {
+            expr.delete();
+        } else if (kind == 8 && expr.hasTrailingConstant()) {
+            expr.addExponent(r.nextInt(7) - 3);
+        } else {
+            expr.removeTrailingAdditiveOperators();
+        }
+    }
+
+    public void testIncrementalReparse() throws IOException {
+        final Random r = new Random(41);
+        for (int i = 0; i < 200; ++i) {
+            final CalculatorExpr expr = new CalculatorExpr();
+            final boolean degreeMode = r.nextBoolean();
+            for (int j = 0; j < 40; ++j) {
+                edit(expr, r);
+                // Evaluating expr itself reuses the tree saved by the previous evaluation.
+                final String incremental = evaluate(expr, degreeMode);
+                final String full = evaluate(reread(expr), degreeMode);
+                check(incremental.equals(full), "expression " + i + ", edit " + j
+                        + ": incremental " + incremental + ", full " + full);
+            }
+        }
+    }
+
+    public void testReparseAfterClone() throws IOException {
+        final Random r = new Random(4141);
+        for (int i = 0; i < 100; ++i) {
+            final CalculatorExpr expr = new CalculatorExpr();
+            for (int j = 0; j < 20; ++j) {
+                edit(expr, r);
+            }
+            evaluate(expr, false);
+            // The clone shares the saved tree, which must not be affected by edits to either.
+            final CalculatorExpr copy = (CalculatorExpr) expr.clone();
+            for (int j = 0; j < 5; ++j) {
+                edit(expr, r);
+                edit(copy, r);
+                check(evaluate(expr, false).equals(evaluate(reread(expr), false)),
+                        "expression " + i + ", edit " + j);
+                check(evaluate(copy, false).equals(evaluate(reread(copy), false)),
+                        "copy " + i + ", edit " + j);
+            }
+        }
+    }
+
+    public void testLegacyFormat() throws IOException {
+        // 12.5E-3 * sin(r7) + 0.25 - 3E4 + 42!
+        final byte[] legacy = new LegacyWriter(11)
+                .constant("12", "5", -3)
+                .operator(R.id.op_mul)
+                .operator(R.id.fun_sin)
+                .preEval(7, "1.5")
+                .operator(R.id.rparen)
+                .operator(R.id.op_add)
+                .constant("", "25", 0)
+                .operator(R.id.op_sub)
+                .constant("3", null, 4)
+                .operator(R.id.op_add)
+                .constant("42", null, 0)
+                .toBytes();
+        final CalculatorExpr expected = new CalculatorExpr();
+        for (int id : new int[] {R.id.digit_1, R.id.digit_2, R.id.dec_point, R.id.digit_5}) {
+            expected.add(id);
+        }
+        expected.addExponent(-3);
+        expected.add(R.id.op_mul);
+        expected.add(R.id.fun_sin);
+        expected.append(expected.abbreviate(7, "1.5"));
+        expected.add(R.id.rparen);
+        for (int id : new int[] {R.id.op_add, R.id.dec_point, R.id.digit_2, R.id.digit_5,
+                R.id.op_sub, R.id.digit_3}) {
+            expected.add(id);
+        }
+        expected.addExponent(4);
+        for (int id : new int[] {R.id.op_add, R.id.digit_4, R.id.digit_2}) {
+            expected.add(id);
+        }
+        final CalculatorExpr fromStream =
+                new CalculatorExpr(new DataInputStream(new ByteArrayInputStream(legacy)));
+        final CalculatorExpr fromBuffer = new CalculatorExpr(ByteBuffer.wrap(legacy));
+        // Rewritten in the current format.
+        check(Arrays.equals(fromStream.toBytes(), expected.toBytes()), "read from stream");
+        check(Arrays.equals(fromBuffer.toBytes(), expected.toBytes()), "read from buffer");
+        check(expected.toBytes().length < legacy.length, "current format not smaller");
+        check(references(fromBuffer).equals(Arrays.asList(7L)), "reference");
+    }
+
+    public void testLegacyCorruptReference() throws IOException {
+        // Index -1 was written by an earlier bug, and is read as a conspicuous ".".
+        final byte[] legacy = new LegacyWriter(1).preEval(-1, "?").toBytes();
+        final CalculatorExpr expected = new CalculatorExpr();
+        expected.add(R.id.dec_point);
+        check(Arrays.equals(new CalculatorExpr(ByteBuffer.wrap(legacy)).toBytes(),
+                expected.toBytes()), "placeholder");
+    }
+
+    public void testLongIndices() throws IOException {
+        final CalculatorExpr expr = new CalculatorExpr();
+        expr.add(R.id.digit_1);
+        expr.add(R.id.op_add);
+        expr.append(expr.abbreviate(1L << 40, "r"));
+        expr.add(R.id.op_sub);
+        expr.append(expr.abbreviate(-2, "s"));
+        check(references(reread(expr)).equals(Arrays.asList(1L << 40, -2L)), "references");
+    }
+
+    public void testUnknownVersion() {
+        try {
+            new CalculatorExpr(ByteBuffer.wrap(new byte[] {(byte) 0x82, 0}));
+            check(false, "version 2 accepted");
+        } catch (IOException expected) {
+        }
+        try {
+            new CalculatorExpr(new DataInputStream(
+                    new ByteArrayInputStream(new byte[] {(byte) 0x82, 0})));
+            check(false, "version 2 accepted from stream");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Return a lazily decoded copy of expr, read from the middle of a larger buffer, as for a
+     * database row.
+     */
+    private static CalculatorExpr lazyCopy(CalculatorExpr expr) throws IOException {
+        final byte[] bytes = expr.toBytes();
+        final byte[] padded = new byte[bytes.length + 5];
+        Arrays.fill(padded, (byte) 0xff);
+        System.arraycopy(bytes, 0, padded, 3, bytes.length);
+        return new CalculatorExpr(ByteBuffer.wrap(padded, 3, bytes.length));
+    }
+
+    public void testLazyDecoding() throws IOException {
+        final Random r = new Random(45);
+        for (int i = 0; i < 200; ++i) {
+            final CalculatorExpr expr = new CalculatorExpr();
+            final int len = r.nextInt(30);
+            for (int j = 0; j < len; ++j) {
+                edit(expr, r);
+            }
+            if (r.nextInt(4) == 0) {
+                expr.append(expr.abbreviate(r.nextInt(1000), "r"));
+            }
+            final byte[] bytes = expr.toBytes();
+            final CalculatorExpr lazy = lazyCopy(expr);
+            // Written back from the encoded form, and from clones sharing it.
+            check(Arrays.equals(lazy.toBytes(), bytes), "lazy " + i);
+            final CalculatorExpr lazyClone = (CalculatorExpr) lazy.clone();
+            check(Arrays.equals(lazyClone.toBytes(), bytes), "lazy clone " + i);
+            check(lazy.isEmpty() == expr.isEmpty()
+                    && lazy.hasTrailingConstant() == expr.hasTrailingConstant(), "tokens " + i);
+            check(references(lazy).equals(references(expr)), "references " + i);
+            // Editing the decoded clone affects neither the lazy expression nor its encoding.
+            final int seed = r.nextInt();
+            final CalculatorExpr edited = (CalculatorExpr) expr.clone();
+            edit(edited, new Random(seed));
+            edit(lazyClone, new Random(seed));
+            check(Arrays.equals(lazyClone.toBytes(), edited.toBytes()), "edited clone " + i);
+            check(Arrays.equals(lazy.toBytes(), bytes), "lazy after clone edit " + i);
+            check(Arrays.equals(expr.toBytes(), bytes), "original after clone edit " + i);
+            if (references(expr).isEmpty()) {
+                check(evaluate(lazy, false).equals(evaluate(expr, false)), "value " + i);
+            }
+        }
+    }
+
+    public void testConcurrentDecoding() throws InterruptedException, IOException {
+        final CalculatorExpr expr = new CalculatorExpr();
+        final Random r = new Random(4545);
+        for (int i = 0; i < 200; ++i) {
+            expr.add(KEYS[r.nextInt(9)]);
+        }
+        final String expected = evaluate(expr, false);
+        final CalculatorExpr lazy = lazyCopy(expr);
+        final String[] results = new String[4];
+        final Thread[] threads = new Thread[results.length];
+        for (int i = 0; i < threads.length; ++i) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    results[thread] = evaluate(lazy, false);
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        for (String result : results) {
+            check(expected.equals(result), "result " + result + ", expected " + expected);
+        }
+    }
+}
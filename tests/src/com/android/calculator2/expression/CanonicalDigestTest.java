@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2.expression;
+
+import com.android.calculator2.R;
+import com.android.calculator2.UnifiedReal;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Checks that canonical expression digests identify values, and that the UnifiedReal
+ * representation stored with cached results survives a round trip.
+ */
+public class CanonicalDigestTest extends TestCase {
+    private static void check(boolean x, String s) {
+        if (!x) throw new AssertionFailedError(s);
+    }
+
+    /**
+     * Resolves references to expressions saved by the test, with degree mode for even indices.
+     * Results are never saved, so that all references are unevaluated.
+     */
+    private static class Resolver implements CalculatorExpr.ExprResolver {
+        final HashMap<Long, CalculatorExpr> mExprs = new HashMap<Long, CalculatorExpr>();
+
+        @Override
+        public CalculatorExpr getExpr(long index) {
+            return mExprs.get(index);
+        }
+
+        @Override
+        public boolean getDegreeMode(long index) {
+            return index % 2 == 0;
+        }
+
+        @Override
+        public UnifiedReal getResult(long index) {
+            return null;
+        }
+
+        @Override
+        public UnifiedReal putResultIfAbsent(long index, UnifiedReal result) {
+            return result;
+        }
+    }
+
+    private static CalculatorExpr expr(int... keys) {
+        final CalculatorExpr result = new CalculatorExpr();
+        for (int key : keys) {
+            result.add(key);
+        }
+        return result;
+    }
+
+    private static byte[] digest(CalculatorExpr expr, boolean degreeMode, Resolver r) {
+        return expr.canonicalDigest(degreeMode, r, new HashMap<Long, byte[]>());
+    }
+
+    private static boolean sameDigest(CalculatorExpr a, CalculatorExpr b, boolean degreeMode) {
+        final Resolver r = new Resolver();
+        return Arrays.equals(digest(a, degreeMode, r), digest(b, degreeMode, r));
+    }
+
+    public void testConstants() {
+        final CalculatorExpr oneAndAHalf = expr(R.id.digit_1, R.id.dec_point, R.id.digit_5);
+        check(sameDigest(oneAndAHalf,
+                expr(R.id.digit_0, R.id.digit_1, R.id.dec_point, R.id.digit_5, R.id.digit_0),
+                false), "leading and trailing zeroes");
+        final CalculatorExpr scientific = expr(R.id.digit_1, R.id.digit_5);
+        scientific.addExponent(-1);
+        check(sameDigest(oneAndAHalf, scientific, false), "exponent");
+        check(sameDigest(expr(R.id.digit_0), expr(R.id.dec_point, R.id.digit_0, R.id.digit_0),
+                false), "zero");
+        check(!sameDigest(oneAndAHalf, expr(R.id.digit_1, R.id.dec_point, R.id.digit_6), false),
+                "different constants");
+        check(!sameDigest(expr(R.id.digit_1, R.id.digit_5), expr(R.id.digit_1, R.id.digit_5,
+                R.id.digit_0), false), "different magnitudes");
+        check(!sameDigest(expr(R.id.dec_point), expr(R.id.digit_0), false), "missing digits");
+    }
+
+    public void testOperatorsAndModes() {
+        check(sameDigest(expr(R.id.digit_2, R.id.op_add, R.id.digit_3, R.id.op_mul),
+                expr(R.id.digit_2, R.id.op_add, R.id.digit_3, R.id.op_mul, R.id.op_sub), false),
+                "trailing binary operators");
+        // The first trailing binary operator affects percentages.
+        check(!sameDigest(expr(R.id.digit_2, R.id.op_add, R.id.digit_3, R.id.op_pct),
+                expr(R.id.digit_2, R.id.op_add, R.id.digit_3, R.id.op_pct, R.id.op_mul), false),
+                "trailing binary operator after percentage");
+        check(!sameDigest(expr(R.id.digit_2, R.id.op_add, R.id.digit_3),
+                expr(R.id.digit_2, R.id.op_mul, R.id.digit_3), false), "different operators");
+        final Resolver r = new Resolver();
+        final CalculatorExpr product = expr(R.id.digit_2, R.id.op_mul, R.id.digit_3);
+        check(Arrays.equals(digest(product, false, r), digest(product, true, r)),
+                "degree mode without trig functions");
+        final CalculatorExpr sine = expr(R.id.fun_sin, R.id.digit_3, R.id.digit_0);
+        check(!Arrays.equals(digest(sine, false, r), digest(sine, true, r)),
+                "degree mode with trig functions");
+    }
+
+    public void testReferences() {
+        final Resolver r = new Resolver();
+        // Two copies of sin(30), evaluated in different modes, and a copy of the first.
+        r.mExprs.put(1L, expr(R.id.fun_sin, R.id.digit_3, R.id.digit_0));
+        r.mExprs.put(2L, expr(R.id.fun_sin, R.id.digit_3, R.id.digit_0));
+        r.mExprs.put(3L, expr(R.id.fun_sin, R.id.digit_3, R.id.digit_0));
+        final CalculatorExpr ref1 = new CalculatorExpr();
+        ref1.append(ref1.abbreviate(1, "0.5"));
+        final CalculatorExpr ref2 = new CalculatorExpr();
+        ref2.append(ref2.abbreviate(2, "0.5"));
+        final CalculatorExpr ref3 = new CalculatorExpr();
+        ref3.append(ref3.abbreviate(3, "-0.98803"));
+        check(Arrays.equals(digest(ref1, false, r), digest(ref3, false, r)), "same contents");
+        check(!Arrays.equals(digest(ref1, false, r), digest(ref2, false, r)),
+                "different referenced modes");
+
+        // A long chain of references, each adding one to the previous.
+        final HashMap<Long, byte[]> digests = new HashMap<Long, byte[]>();
+        final long n = 5000;
+        r.mExprs.put(11L, expr(R.id.digit_1));
+        for (long i = 12; i < 10 + n; ++i) {
+            final CalculatorExpr e = new CalculatorExpr();
+            e.append(e.abbreviate(i - 1, "x"));
+            e.add(R.id.op_add);
+            e.add(R.id.digit_1);
+            r.mExprs.put(i, e);
+        }
+        final CalculatorExpr last = new CalculatorExpr();
+        last.append(last.abbreviate(9 + n, "x"));
+        check(last.canonicalDigest(false, r, digests) != null, "long chain");
+        check(digests.size() == n - 1, "referenced digests");
+    }
+
+    private static void checkRoundTrip(UnifiedReal u, String description) {
+        final byte[] bytes = u.toBytes();
+        check(bytes != null, description + " not serialized");
+        final UnifiedReal restored = UnifiedReal.fromBytes(bytes);
+        check(restored != null, description + " not restored");
+        check(restored.toStringTruncated(50).equals(u.toStringTruncated(50)),
+                description + " changed value");
+        check(restored.definitelyRational() == u.definitelyRational()
+                && restored.definitelyAlgebraic() == u.definitelyAlgebraic()
+                && restored.exactlyDisplayable() == u.exactlyDisplayable(),
+                description + " lost its representation");
+    }
+
+    public void testValueRoundTrip() {
+        checkRoundTrip(UnifiedReal.ZERO, "zero");
+        checkRoundTrip(new UnifiedReal(2).pow(new UnifiedReal(64)), "2^64");
+        checkRoundTrip(new UnifiedReal(-7).divide(new UnifiedReal(3)), "-7/3");
+        checkRoundTrip(UnifiedReal.PI.multiply(new UnifiedReal(3)), "3 pi");
+        checkRoundTrip(UnifiedReal.E.divide(new UnifiedReal(2)), "e/2");
+        checkRoundTrip(new UnifiedReal(18).sqrt(), "sqrt(18)");
+        checkRoundTrip(new UnifiedReal(3).ln(), "ln(3)");
+        checkRoundTrip(UnifiedReal.ONE.add(new UnifiedReal(2).sqrt()), "1 + sqrt(2)");
+        checkRoundTrip(new UnifiedReal(3).multiply(UnifiedReal.RADIANS_PER_DEGREE).sin(),
+                "sin(3 degrees)");
+        check(UnifiedReal.ONE.sin().toBytes() == null, "sin(1) serialized");
+        check(UnifiedReal.fromBytes(new byte[] {1, 0}) == null, "truncated bytes restored");
+    }
+
+    /**
+     * Return the serialized form of a single named factor of the given kind and argument, with
+     * coefficient one, as written by UnifiedReal.toBytes() version 1.
+     */
+    private static byte[] factorBytes(int kind, long arg) throws IOException {
+        final ByteArrayOutputStream byteArrayStream = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(byteArrayStream)) {
+            out.writeByte(1 /* version */);
+            out.writeInt(1 /* terms */);
+            for (int i = 0; i < 2; ++i) {
+                // Numerator and denominator.
+                out.writeInt(1);
+                out.writeByte(1);
+            }
+            out.writeByte(kind);
+            out.writeLong(arg);
+        }
+        return byteArrayStream.toByteArray();
+    }
+
+    private static final int FACTOR_MONOMIAL = 3;
+    private static final int FACTOR_LN = 4;
+
+    public void testNonCanonicalFactors() throws IOException {
+        check(UnifiedReal.fromBytes(factorBytes(FACTOR_MONOMIAL, 4 * 15)) != null, "sqrt(15)");
+        check(UnifiedReal.fromBytes(factorBytes(FACTOR_LN, 7)) != null, "ln(7)");
+        check(UnifiedReal.fromBytes(factorBytes(FACTOR_MONOMIAL, 4 * 12)) == null, "sqrt(12)");
+        check(UnifiedReal.fromBytes(factorBytes(FACTOR_MONOMIAL, 4 * 49L * 3 + 1)) == null,
+                "sqrt(147) * sqrt(5 + sqrt(5))");
+        check(UnifiedReal.fromBytes(factorBytes(FACTOR_LN, 9)) == null, "ln(9)");
+        check(UnifiedReal.fromBytes(factorBytes(FACTOR_LN, 1L << 40)) == null, "ln(2^40)");
+    }
+}
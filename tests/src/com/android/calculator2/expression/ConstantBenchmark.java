@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2.expression;
+
+import android.util.Log;
+
+import com.android.calculator2.R;
+import com.android.calculator2.UnifiedReal;
+import com.android.calculator2.util.KeyMaps;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+/**
+ * Times pasting very long numbers, one key at a time, as CalculatorActivity.addChars() does,
+ * and then evaluating them.  Both should take roughly linear time in the number of digits.
+ * Timings are logged; the test fails only if the result is wrong.
+ */
+public class ConstantBenchmark extends TestCase {
+    private static final String TAG = "ConstantBenchmark";
+
+    private static void check(boolean x, String s) {
+        if (!x) throw new AssertionFailedError(s);
+    }
+
+    private static String randomDigits(Random r, int n) {
+        final StringBuilder result = new StringBuilder(n);
+        result.append((char) ('1' + r.nextInt(9)));
+        for (int i = 1; i < n; ++i) {
+            result.append((char) ('0' + r.nextInt(10)));
+        }
+        return result.toString();
+    }
+
+    private static void add(CalculatorExpr expr, String digits) {
+        for (int i = 0; i < digits.length(); ++i) {
+            check(expr.add(KeyMaps.keyForDigVal(digits.charAt(i) - '0')), "add");
+        }
+    }
+
+    private static void benchmark(int n) throws CalculatorExpr.SyntaxException {
+        final Random r = new Random(n);
+        final String whole = randomDigits(r, n / 2);
+        final String fraction = randomDigits(r, n - n / 2);
+        final long start = System.nanoTime();
+        final CalculatorExpr expr = new CalculatorExpr();
+        add(expr, whole);
+        check(expr.add(R.id.dec_point), "decimal point");
+        add(expr, fraction);
+        final long pasted = System.nanoTime();
+        final UnifiedReal value = expr.eval(false, null);
+        final long evaluated = System.nanoTime();
+        // Deleting the digits again should also take linear time.
+        for (int i = 0; i <= n; ++i) {
+            expr.delete();
+        }
+        final long deleted = System.nanoTime();
+        Log.i(TAG, n + " digits: paste " + (pasted - start) / 1000000 + " ms, evaluate "
+                + (evaluated - pasted) / 1000000 + " ms, delete "
+                + (deleted - evaluated) / 1000000 + " ms");
+        check(expr.isEmpty(), "delete");
+        check(value.toStringTruncated(fraction.length()).equals(whole + "." + fraction),
+                "value of " + n + " digit constant");
+    }
+
+    public void testPaste10k() throws CalculatorExpr.SyntaxException {
+        benchmark(10000);
+    }
+
+    public void testPaste100k() throws CalculatorExpr.SyntaxException {
+        benchmark(100000);
+    }
+}
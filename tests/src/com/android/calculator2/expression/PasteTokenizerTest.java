@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2.expression;
+
+import android.view.View;
+
+import com.android.calculator2.R;
+import com.android.calculator2.util.KeyMaps;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that PasteTokenizer, which converts long pastes in the background, produces the same
+ * tokens as the key by key conversion CalculatorActivity.addChars() applies to short pastes.
+ */
+public class PasteTokenizerTest extends TestCase {
+    private static final KeyMaps.InputMap INPUT_MAP = KeyMaps.getInputMap('.', 'π');
+
+    // Pieces of convertible pasted text, including grouping separators and scientific notation.
+    private static final String[] PIECES = {
+        "0", "1", "2", "3", "4", "5", "6", "7", "8", "9", ".", " ", ",", "+", "-", "−",
+        "*", "×", "/", "÷", "^", "!", "%", "(", ")", "e", "p", "π", "√", "²", "E5",
+        "E-12", "E−7", "e+3", "√(", "12345678901234567890"
+    };
+
+    private static void check(boolean x, String s) {
+        if (!x) throw new AssertionFailedError(s);
+    }
+
+    /**
+     * Append text to expr one key at a time, following CalculatorActivity.addChars(text, false),
+     * and return the characters that could not be converted, or null.
+     */
+    private static String addChars(CalculatorExpr expr, String text) {
+        final int len = text.length();
+        int current = 0;
+        boolean lastWasDigit = false;
+        while (current < len) {
+            final char c = text.charAt(current);
+            if (Character.isSpaceChar(c) || c == ',') {
+                ++current;
+                continue;
+            }
+            final int k = INPUT_MAP.keyForChar(c);
+            int expEnd;
+            if (lastWasDigit
+                    && current != (expEnd = Evaluator.exponentEnd(INPUT_MAP, text, current))) {
+                expr.addExponent(Evaluator.exponentValue(INPUT_MAP, text, current, expEnd));
+                current = expEnd;
+                lastWasDigit = false;
+                continue;
+            }
+            final boolean isDigit = KeyMaps.digVal(k) != KeyMaps.NOT_DIGIT;
+            lastWasDigit = (isDigit || lastWasDigit && k == R.id.dec_point);
+            if (k != View.NO_ID) {
+                Evaluator.appendKey(expr, k);
+                current += Character.isSurrogate(c) ? 2 : 1;
+                continue;
+            }
+            final int f = INPUT_MAP.funForString(text, current);
+            if (f != View.NO_ID) {
+                Evaluator.appendKey(expr, f);
+                if (f == R.id.op_sqrt) {
+                    Evaluator.appendKey(expr, R.id.lparen);
+                }
+                current = text.indexOf('(', current) + 1;
+                continue;
+            }
+            return text.substring(current);
+        }
+        return null;
+    }
+
+    private static byte[] bytes(CalculatorExpr expr) throws IOException {
+        final ByteArrayOutputStream byteArrayStream = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(byteArrayStream)) {
+            expr.write(out);
+        }
+        return byteArrayStream.toByteArray();
+    }
+
+    private static String randomText(Random r, int minLength) {
+        final StringBuilder result = new StringBuilder();
+        while (result.length() < minLength) {
+            result.append(PIECES[r.nextInt(PIECES.length)]);
+        }
+        return result.toString();
+    }
+
+    private static PasteTokenizer compare(CalculatorExpr base, String text) throws IOException {
+        final CalculatorExpr expected = (CalculatorExpr) base.clone();
+        final String expectedUnprocessed = addChars(expected, text);
+        final PasteTokenizer tokenizer = new PasteTokenizer(INPUT_MAP, base, text);
+        check(tokenizer.run(null), "incomplete");
+        check(Arrays.equals(bytes(tokenizer.getExpr()), bytes(expected)), "tokens for " + text);
+        final String unprocessed = tokenizer.getUnprocessed();
+        check(unprocessed == null ? expectedUnprocessed == null
+                : unprocessed.equals(expectedUnprocessed), "unprocessed part of " + text);
+        return tokenizer;
+    }
+
+    public void testSameTokens() throws IOException {
+        final Random r = new Random(4711);
+        final CalculatorExpr base = new CalculatorExpr();
+        base.add(R.id.digit_7);
+        for (int i = 0; i < 500; ++i) {
+            compare(i % 2 == 0 ? new CalculatorExpr() : base, randomText(r, 1 + r.nextInt(40)));
+        }
+        // Long enough to be converted in the background, with several progress reports.
+        for (int i = 0; i < 3; ++i) {
+            check(compare(base, randomText(r, 20000)).getUnprocessed() == null, "unconverted");
+        }
+    }
+
+    public void testUnconvertible() throws IOException {
+        final CalculatorExpr base = new CalculatorExpr();
+        check(compare(base, "12+3?45").getUnprocessed().equals("?45"), "unprocessed ?45");
+        check(compare(base, "2×sin(3)").getUnprocessed().equals("sin(3)"), "unprocessed sin");
+    }
+
+    public void testCancel() {
+        final String text = randomText(new Random(42), 20000);
+        final CalculatorExpr base = new CalculatorExpr();
+        final PasteTokenizer tokenizer = new PasteTokenizer(INPUT_MAP, base, text);
+        final int[] reports = new int[1];
+        check(!tokenizer.run(new PasteTokenizer.ProgressListener() {
+            @Override
+            public boolean onProgress(int processed, int total) {
+                check(processed > 0 && processed < total, "progress");
+                return ++reports[0] < 2;
+            }
+        }), "not cancelled");
+        check(reports[0] == 2, "reports");
+        check(base.isEmpty(), "base modified");
+    }
+}
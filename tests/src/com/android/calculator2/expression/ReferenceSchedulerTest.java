@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2.expression;
+
+import com.android.calculator2.R;
+import com.android.calculator2.UnifiedReal;
+import com.hp.creals.CR;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the order in which ReferenceScheduler evaluates referenced expressions, and how it
+ * reports failures and interruption.
+ */
+public class ReferenceSchedulerTest extends TestCase {
+    // Long enough for a blocked evaluation to be considered stuck.
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private static void check(boolean x, String s) {
+        if (!x) throw new AssertionFailedError(s);
+    }
+
+    /**
+     * Resolves references to expressions saved by the test.  Evaluations of expressions marked
+     * as blocking wait until they are interrupted, and those marked as failing throw.
+     */
+    private static class Resolver implements CalculatorExpr.ExprResolver {
+        private final HashMap<Long, CalculatorExpr> mExprs = new HashMap<Long, CalculatorExpr>();
+        private final HashMap<Long, UnifiedReal> mResults = new HashMap<Long, UnifiedReal>();
+        private final HashMap<Long, RuntimeException> mFailures =
+                new HashMap<Long, RuntimeException>();
+        private final HashSet<Long> mBlocking = new HashSet<Long>();
+        // Indices of started evaluations, in the order they started.
+        private final ArrayList<Long> mStarted = new ArrayList<Long>();
+        final CountDownLatch mBlocked;
+        final CountDownLatch mInterrupted;
+
+        /**
+         * @param blocking the number of blocked evaluations the test waits for
+         */
+        Resolver(int blocking) {
+            mBlocked = new CountDownLatch(blocking);
+            mInterrupted = new CountDownLatch(blocking);
+        }
+
+        /**
+         * Save the expression digit + r[refs[0]] + r[refs[1]] ... with the given index.
+         */
+        void put(long index, int digit, long... refs) {
+            final CalculatorExpr expr = new CalculatorExpr();
+            expr.add(digit);
+            for (long ref : refs) {
+                expr.add(R.id.op_add);
+                expr.append(expr.abbreviate(ref, "r" + ref));
+            }
+            mExprs.put(index, expr);
+        }
+
+        void fail(long index, RuntimeException e) {
+            mFailures.put(index, e);
+        }
+
+        void block(long index) {
+            mBlocking.add(index);
+        }
+
+        synchronized ArrayList<Long> started() {
+            return new ArrayList<Long>(mStarted);
+        }
+
+        @Override
+        public CalculatorExpr getExpr(long index) {
+            return mExprs.get(index);
+        }
+
+        // Called only by CalculatorExpr.nestedEval(), at the start of each evaluation.
+        @Override
+        public boolean getDegreeMode(long index) {
+            synchronized (this) {
+                mStarted.add(index);
+            }
+            if (mBlocking.contains(index)) {
+                mBlocked.countDown();
+                try {
+                    Thread.sleep(Long.MAX_VALUE);
+                } catch (InterruptedException e) {
+                    mInterrupted.countDown();
+                    throw new CR.AbortedException();
+                }
+            }
+            final RuntimeException failure = mFailures.get(index);
+            if (failure != null) {
+                throw failure;
+            }
+            return false;
+        }
+
+        @Override
+        public synchronized UnifiedReal getResult(long index) {
+            return mResults.get(index);
+        }
+
+        @Override
+        public synchronized UnifiedReal putResultIfAbsent(long index, UnifiedReal result) {
+            final UnifiedReal previous = mResults.get(index);
+            if (previous != null) {
+                return previous;
+            }
+            mResults.put(index, result);
+            return result;
+        }
+    }
+
+    private static CalculatorExpr referring(long... refs) {
+        final CalculatorExpr result = new CalculatorExpr();
+        for (long ref : refs) {
+            if (!result.isEmpty()) {
+                result.add(R.id.op_add);
+            }
+            result.append(result.abbreviate(ref, "r" + ref));
+        }
+        return result;
+    }
+
+    public void testDiamond() throws CalculatorExpr.SyntaxException {
+        final Resolver er = new Resolver(0);
+        er.put(1, R.id.digit_2);
+        er.put(2, R.id.digit_1, 1);
+        er.put(3, R.id.digit_3, 1);
+        er.put(4, R.id.digit_4, 3, 2);
+        final CalculatorExpr expr = referring(4, 1);
+        check(new ReferenceScheduler(expr, er).order().equals(Arrays.asList(1L, 3L, 2L, 4L)),
+                "order");
+        new ReferenceScheduler(expr, er).evaluate();
+        // Each evaluated once, after the ones it refers to.
+        final ArrayList<Long> started = er.started();
+        check(started.size() == 4 && started.get(0) == 1 && started.get(3) == 4, "started");
+        check(er.getResult(4).definitelyEquals(new UnifiedReal(12)), "value");
+        check(new ReferenceScheduler(expr, er).order().isEmpty(), "evaluated");
+    }
+
+    public void testCycle() {
+        final Resolver er = new Resolver(0);
+        er.put(1, R.id.digit_1, 2);
+        er.put(2, R.id.digit_2, 3, 1);
+        er.put(3, R.id.digit_3);
+        final ArrayList<Long> order = new ReferenceScheduler(referring(1), er).order();
+        // The acyclic part comes first; the cycle is left for recursive evaluation.
+        check(order.size() == 3 && order.get(0) == 3, "order " + order);
+        check(new HashSet<Long>(order).equals(new HashSet<Long>(Arrays.asList(1L, 2L, 3L))),
+                "members " + order);
+    }
+
+    public void testFailureCancels() throws InterruptedException {
+        final Resolver er = new Resolver(1);
+        er.put(1, R.id.digit_1);
+        er.put(2, R.id.digit_2);
+        er.put(3, R.id.digit_3, 2);
+        er.fail(1, new UnifiedReal.ZeroDivisionException());
+        er.block(2);
+        try {
+            new ReferenceScheduler(referring(1, 2, 3), er).evaluate();
+            check(false, "no exception");
+        } catch (UnifiedReal.ZeroDivisionException expected) {
+        } catch (CalculatorExpr.SyntaxException e) {
+            check(false, "syntax exception");
+        }
+        // The blocked evaluation is interrupted if it started, and never starts otherwise.
+        check(!er.started().contains(2L)
+                || er.mInterrupted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "not cancelled");
+        check(!er.started().contains(3L), "referrer evaluated");
+    }
+
+    public void testFirstFailureInOrder() throws InterruptedException {
+        final RuntimeException first = new ArithmeticException("first");
+        final RuntimeException second = new ArithmeticException("second");
+        for (int i = 0; i < 10; ++i) {
+            // The second failure usually happens first, since the first waits for it.
+            final Resolver er = new Resolver(0) {
+                @Override
+                public boolean getDegreeMode(long index) {
+                    if (index == 1) {
+                        try {
+                            Thread.sleep(20);
+                        } catch (InterruptedException e) {
+                            throw new AssertionError("Interrupted");
+                        }
+                    }
+                    return super.getDegreeMode(index);
+                }
+            };
+            er.put(1, R.id.digit_1);
+            er.put(2, R.id.digit_2);
+            er.fail(1, first);
+            er.fail(2, second);
+            try {
+                new ReferenceScheduler(referring(1, 2), er).evaluate();
+                check(false, "no exception");
+            } catch (ArithmeticException e) {
+                check(e == first, "reported " + e.getMessage());
+            } catch (CalculatorExpr.SyntaxException e) {
+                check(false, "syntax exception");
+            }
+        }
+    }
+
+    public void testInterrupt() throws InterruptedException {
+        // Wait for one of them, since the pool may have only one thread.
+        final Resolver er = new Resolver(1);
+        er.put(1, R.id.digit_1);
+        er.put(2, R.id.digit_2);
+        er.block(1);
+        er.block(2);
+        final RuntimeException[] thrown = new RuntimeException[1];
+        final Thread evaluator = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    new ReferenceScheduler(referring(1, 2), er).evaluate();
+                } catch (RuntimeException e) {
+                    thrown[0] = e;
+                } catch (CalculatorExpr.SyntaxException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        evaluator.start();
+        check(er.mBlocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "not started");
+        evaluator.interrupt();
+        evaluator.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+        check(thrown[0] instanceof CR.AbortedException, "thrown " + thrown[0]);
+        check(er.mInterrupted.await(TIMEOUT_SECONDS, TimeUnit.SECONDS), "not cancelled");
+    }
+}
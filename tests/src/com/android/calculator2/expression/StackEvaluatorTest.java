@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.calculator2.expression;
+
+import com.android.calculator2.R;
+import com.android.calculator2.UnifiedReal;
+
+import junit.framework.AssertionFailedError;
+import junit.framework.TestCase;
+
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Checks that CalculatorExpr's stack evaluator agrees with evaluation of the parse tree, and
+ * that it handles nesting far too deep for the latter.
+ */
+public class StackEvaluatorTest extends TestCase {
+    // Keys whose random combinations evaluate quickly.
+    private static final int[] KEYS = {
+        R.id.digit_0, R.id.digit_1, R.id.digit_2, R.id.digit_5, R.id.digit_9, R.id.dec_point,
+        R.id.const_pi, R.id.const_e, R.id.op_add, R.id.op_sub, R.id.op_sub, R.id.op_mul,
+        R.id.op_div, R.id.op_sqr, R.id.op_pct, R.id.op_pct, R.id.op_sqrt, R.id.lparen,
+        R.id.lparen, R.id.rparen, R.id.rparen, R.id.fun_sin, R.id.fun_cos, R.id.fun_ln,
+        R.id.fun_arctan
+    };
+
+    private static void check(boolean x, String s) {
+        if (!x) throw new AssertionFailedError(s);
+    }
+
+    /**
+     * Resolves references to expressions saved by the test, with degree mode for even indices.
+     */
+    private static class Resolver implements CalculatorExpr.ExprResolver {
+        private final HashMap<Long, CalculatorExpr> mExprs;
+        private final HashMap<Long, UnifiedReal> mResults = new HashMap<Long, UnifiedReal>();
+
+        Resolver(HashMap<Long, CalculatorExpr> exprs) {
+            mExprs = exprs;
+        }
+
+        @Override
+        public CalculatorExpr getExpr(long index) {
+            return mExprs.get(index);
+        }
+
+        @Override
+        public boolean getDegreeMode(long index) {
+            return index % 2 == 0;
+        }
+
+        @Override
+        public synchronized UnifiedReal getResult(long index) {
+            return mResults.get(index);
+        }
+
+        @Override
+        public synchronized UnifiedReal putResultIfAbsent(long index, UnifiedReal result) {
+            final UnifiedReal previous = mResults.get(index);
+            if (previous != null) {
+                return previous;
+            }
+            mResults.put(index, result);
+            return result;
+        }
+    }
+
+    /**
+     * Evaluate a copy of expr with the given evaluator, without reusing any saved results.
+     * Return a description of the value or the exception.
+     */
+    private static String evaluate(CalculatorExpr expr, boolean stack, boolean degreeMode,
+            HashMap<Long, CalculatorExpr> saved) {
+        CalculatorExpr.maxTreeDepth = stack ? -1 : Integer.MAX_VALUE;
+        try {
+            final UnifiedReal value =
+                    ((CalculatorExpr) expr.clone()).eval(degreeMode, new Resolver(saved));
+            return "value " + value.toStringTruncated(20);
+        } catch (Exception e) {
+            return e.getClass().getName() + ": " + e.getMessage();
+        }
+    }
+
+    private int mSavedMaxTreeDepth;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSavedMaxTreeDepth = CalculatorExpr.maxTreeDepth;
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        CalculatorExpr.maxTreeDepth = mSavedMaxTreeDepth;
+        super.tearDown();
+    }
+
+    public void testRandomExpressionsAgree() {
+        final Random r = new Random(49);
+        final HashMap<Long, CalculatorExpr> saved = new HashMap<Long, CalculatorExpr>();
+        for (long i = 1; i <= 2000; ++i) {
+            final CalculatorExpr expr = new CalculatorExpr();
+            final int len = 1 + r.nextInt(12);
+            for (int j = 0; j < len; ++j) {
+                if (r.nextInt(15) == 0 && !saved.isEmpty()) {
+                    final long index = 1 + r.nextInt(saved.size());
+                    expr.append(expr.abbreviate(index, "r"));
+                } else {
+                    expr.add(KEYS[r.nextInt(KEYS.length)]);
+                }
+            }
+            final boolean degreeMode = r.nextBoolean();
+            final String tree = evaluate(expr, false, degreeMode, saved);
+            final String stack = evaluate(expr, true, degreeMode, saved);
+            check(tree.equals(stack), "expression " + i + ": tree " + tree + ", stack " + stack);
+            saved.put((long) saved.size() + 1, expr);
+        }
+    }
+
+    public void testDeepNesting() throws CalculatorExpr.SyntaxException {
+        final int n = 5000;
+        final CalculatorExpr parens = new CalculatorExpr();
+        final CalculatorExpr functions = new CalculatorExpr();
+        final CalculatorExpr powers = new CalculatorExpr();
+        for (int i = 0; i < n; ++i) {
+            parens.add(R.id.lparen);
+            functions.add(R.id.fun_sin);
+            powers.add(R.id.digit_1);
+            powers.add(R.id.op_pow);
+        }
+        parens.add(R.id.digit_2);
+        functions.add(R.id.digit_0);
+        powers.add(R.id.digit_2);
+        for (int i = 0; i < n; ++i) {
+            parens.add(R.id.rparen);
+            if (i % 2 == 0) {
+                functions.add(R.id.rparen);  // Closing parentheses are optional.
+            }
+        }
+        check(parens.eval(false, null).toStringTruncated(3).equals("2.000"), "parentheses");
+        check(functions.eval(false, null).toStringTruncated(3).equals("0.000"), "functions");
+        check(powers.eval(false, null).toStringTruncated(3).equals("1.000"), "powers");
+    }
+}